@@ -0,0 +1,118 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.bu.ist.apps.aws.task.BenchmarkData;
+import edu.bu.ist.apps.aws.task.Task;
+import edu.bu.ist.apps.aws.task.TaskFactory;
+import edu.bu.ist.apps.aws.task.TaskRunner;
+import edu.bu.ist.apps.aws.task.s3.InMemoryS3;
+import edu.bu.ist.apps.aws.task.s3.S3ClientRegistry;
+import edu.bu.ist.apps.aws.task.s3.S3ObjectCache;
+
+/**
+ * Measures a complete CONTAINER_ENV_VARS custom resource request, from the ResourceProperties through to the json
+ * body of the response sent back to cloudformation, with the environment variables file served by InMemoryS3.
+ *
+ * @author wrh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseDataBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int entries;
+
+	@Param({ "true", "false" })
+	public boolean cache;
+
+	private Map<String, Object> input = new LinkedHashMap<String, Object>();
+	private Logger logger = (String msg) -> { };
+	private ResponseData responseData;
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override public void write(int b) { }
+		@Override public void write(byte[] b, int off, int len) { }
+	};
+
+	@Setup
+	public void setup() throws Exception {
+		S3ObjectCache.getInstance().clear();
+		new InMemoryS3()
+			.addObject(BenchmarkData.BUCKET, BenchmarkData.ENV_FILE, BenchmarkData.getEnvironmentVariables(entries))
+			.register(BenchmarkData.REGION, BenchmarkData.PROFILE);
+
+		Map<String, Object> resourceProperties = new LinkedHashMap<String, Object>();
+		resourceProperties.put("task", Task.CONTAINER_ENV_VARS.getShortname());
+		resourceProperties.put("region", BenchmarkData.REGION);
+		resourceProperties.put("s3bucket", BenchmarkData.BUCKET);
+		resourceProperties.put("s3file", BenchmarkData.ENV_FILE);
+		resourceProperties.put("profile", BenchmarkData.PROFILE);
+		resourceProperties.put("cache", String.valueOf(cache));
+		resourceProperties.put("outputmask", BenchmarkData.OUTPUT_MASK);
+
+		input.put("RequestType", "Create");
+		input.put("StackId", "arn:aws:cloudformation:us-east-1:123456789012:stack/benchmark/1");
+		input.put("RequestId", "benchmark-request");
+		input.put("LogicalResourceId", "BenchmarkResource");
+		input.put("ResourceProperties", resourceProperties);
+
+		responseData = newResponseData();
+	}
+
+	@TearDown
+	public void tearDown() {
+		S3ClientRegistry.getInstance().clear();
+		S3ObjectCache.getInstance().clear();
+	}
+
+	private ResponseData newResponseData() throws Exception {
+		return new ResponseData(new ResponseDataParms()
+				.setInput(input)
+				.setRequestType("CREATE")
+				.setTaskFactory(new TaskFactory())
+				.setTaskRunner(new TaskRunner())
+				.setBase64(false)
+				.setLogger(logger));
+	}
+
+	@Benchmark
+	public ResponseData construction() throws Exception {
+		return newResponseData();
+	}
+
+	@Benchmark
+	public String responseBody() {
+		return CustomResourceHandler.getResponseBody(input, "SUCCESS", "benchmark-log-stream", responseData).toString();
+	}
+
+	@Benchmark
+	public long streamedResponseBody() throws IOException {
+		// As sent by CustomResourceHandler.sendResponse: a counting pass, then the body written out as UTF-8.
+		ResponseWriter writer = new ResponseWriter(input, "SUCCESS", "benchmark-log-stream", responseData);
+		long length = writer.getLength();
+		writer.writeTo(DISCARD);
+		return length;
+	}
+
+	@Benchmark
+	public String request() throws Exception {
+		return CustomResourceHandler.getResponseBody(input, "SUCCESS", "benchmark-log-stream", newResponseData()).toString();
+	}
+}
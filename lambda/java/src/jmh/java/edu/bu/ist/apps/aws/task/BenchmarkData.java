@@ -0,0 +1,55 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Deterministic content shared by the benchmarks.
+ *
+ * @author wrh
+ *
+ */
+public class BenchmarkData {
+
+	public static final String BUCKET = "benchmark-bucket";
+	public static final String REGION = "us-east-1";
+	public static final String PROFILE = "benchmark";
+	public static final String ENV_FILE = "qa/core/environment.variables.s3";
+
+	private static final String[] SENSITIVE = { 
+			"AWS_ACCESS_KEY_ID", "AWS_SECRET_ACCESS_KEY", "MONGO_PASS", "SERVICE_SECRET_1", "SERVICE_SECRET_2" };
+
+	public static final String OUTPUT_MASK = "{"
+			+ "class: edu.bu.ist.apps.aws.task.BasicOutputMask, "
+			+ "parameters: { "
+			+ "  fieldsToMask: { "
+			+ "    full: [SERVICE_SECRET_1], "
+			+ "    logs: [AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY, MONGO_PASS, SERVICE_SECRET_2]"
+			+ "  }"
+			+ "}}";
+
+	/**
+	 * Restrict default constructor
+	 */
+	private BenchmarkData() {
+		super();
+	}
+
+	/**
+	 * @return The content of an environment variables file in properties format with the specified number of entries,
+	 * a few of which have names that are masked by OUTPUT_MASK.
+	 */
+	public static byte[] getEnvironmentVariables(int entries) {
+		StringBuilder s = new StringBuilder("# Environment variables for benchmarking\n");
+		for(int i=0; i<entries; i++) {
+			s.append(getName(i)).append('=').append("value-").append(i).append("-abcdefghijklmnopqrstuvwxyz0123456789\n");
+		}
+		return s.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return The name of the environment variable at the specified index of getEnvironmentVariables.
+	 */
+	public static String getName(int index) {
+		return index < SENSITIVE.length ? SENSITIVE[index] : "VARIABLE_" + index;
+	}
+}
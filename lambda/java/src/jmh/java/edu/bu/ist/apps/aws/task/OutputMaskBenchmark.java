@@ -0,0 +1,61 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.bu.ist.apps.aws.lambda.Logger;
+
+/**
+ * Measures building an OutputMask from its json and masking values with BasicOutputMask.
+ *
+ * @author wrh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputMaskBenchmark {
+
+	private static final int KEYS = 100;
+
+	private Logger logger = (String msg) -> { };
+	private OutputMask outputmask;
+	private String[] keys = new String[KEYS];
+	private String[] values = new String[KEYS];
+
+	@Setup
+	public void setup() {
+		outputmask = OutputMask.getInstance(BenchmarkData.OUTPUT_MASK, logger);
+		for(int i=0; i<KEYS; i++) {
+			keys[i] = BenchmarkData.getName(i);
+			values[i] = "value-" + i + "-abcdefghijklmnopqrstuvwxyz0123456789";
+		}
+	}
+
+	@Benchmark
+	public OutputMask getInstance() {
+		return OutputMask.getInstance(BenchmarkData.OUTPUT_MASK, logger);
+	}
+
+	@Benchmark
+	public void getOutput(Blackhole blackhole) {
+		for(int i=0; i<KEYS; i++) {
+			blackhole.consume(outputmask.getOutput(keys[i], values[i]));
+		}
+	}
+
+	@Benchmark
+	public void getLogOutput(Blackhole blackhole) {
+		for(int i=0; i<KEYS; i++) {
+			blackhole.consume(outputmask.getLogOutput(keys[i], values[i]));
+		}
+	}
+}
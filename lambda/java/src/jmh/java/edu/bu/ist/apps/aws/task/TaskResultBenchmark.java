@@ -0,0 +1,52 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.bu.ist.apps.aws.lambda.Logger;
+
+/**
+ * Measures parsing an environment variables file into a TaskResult and producing its masked views.
+ *
+ * @author wrh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TaskResultBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int entries;
+
+	private byte[] content;
+	private OutputMask outputmask;
+
+	@Setup
+	public void setup() {
+		Logger logger = (String msg) -> { };
+		content = BenchmarkData.getEnvironmentVariables(entries);
+		outputmask = OutputMask.getInstance(BenchmarkData.OUTPUT_MASK, logger);
+	}
+
+	@Benchmark
+	public TaskResult getInstanceFromProperties() {
+		return TaskResult.getInstanceFromProperties(content, outputmask);
+	}
+
+	@Benchmark
+	public Map<String, Object> getMaskedResults() {
+		TaskResult result = TaskResult.getInstanceFromProperties(content, outputmask);
+		result.getMaskedResults();
+		return result.getMaskedResultsForLogging();
+	}
+}
@@ -0,0 +1,70 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.bu.ist.apps.aws.task.BenchmarkData;
+
+/**
+ * Measures S3File.download against InMemoryS3 for a range of object sizes and request latencies,
+ * with and without ranged download. The S3ObjectCache is disabled so every invocation is a full download.
+ *
+ * @author wrh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class S3FileBenchmark {
+
+	private static final String KEY = "benchmark/object.bin";
+
+	@Param({ "4096", "1048576", "16777216" })
+	public int objectSize;
+
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	@Param({ "0", "4194304" })
+	public long partSize;
+
+	private S3FileParms parms;
+
+	@Setup
+	public void setup() {
+		new InMemoryS3()
+			.setLatencyMillis(latencyMillis)
+			.addObject(BenchmarkData.BUCKET, KEY, objectSize, 42)
+			.register(BenchmarkData.REGION, BenchmarkData.PROFILE);
+
+		parms = new S3FileParms()
+				.setRegion(BenchmarkData.REGION)
+				.setProfilename(BenchmarkData.PROFILE)
+				.setBucketname(BenchmarkData.BUCKET)
+				.setFilename(KEY)
+				.setPartSize(partSize)
+				.setUseCache(false)
+				.setLogger((String msg) -> { });
+	}
+
+	@TearDown
+	public void tearDown() {
+		S3ClientRegistry.getInstance().clear();
+	}
+
+	@Benchmark
+	public long download() throws Exception {
+		try(S3File file = new S3File(parms)) {
+			return file.getSize();
+		}
+	}
+}
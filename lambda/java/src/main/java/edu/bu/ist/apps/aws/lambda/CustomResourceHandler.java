@@ -1,10 +1,16 @@
 package edu.bu.ist.apps.aws.lambda;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONObject;
 
@@ -12,8 +18,10 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
+import edu.bu.ist.apps.aws.task.Deadline;
 import edu.bu.ist.apps.aws.task.TaskFactory;
 import edu.bu.ist.apps.aws.task.TaskRunner;
+import edu.bu.ist.apps.aws.task.WorkerPool;
 
 /**
  * Documentation for RequestHandler interface:
@@ -30,15 +38,42 @@ public class CustomResourceHandler implements RequestHandler<Map<String, Object>
 
 	protected Context context;
 	protected Map<String, Object> input;
-	protected String responseStatus = "SUCCESS"; 
+	protected volatile String responseStatus = "SUCCESS"; 
+	protected volatile String responseReason;
 	protected LambdaLogger logger;
+	protected ScrubbingLogger scrubbingLogger;
+	
+	/**
+	 * Time reserved at the end of the lambda invocation for sending the response to cloud-formation.
+	 */
+	public static final long RESPONSE_MARGIN_MILLIS = 3000;
+	
+	/**
+	 * Time by which a task must finish before the deadline for the whole request, so that it can give up on what is
+	 * left of its work and return what it has (ie: the public keys downloaded so far) before it would be cancelled.
+	 */
+	public static final long TASK_MARGIN_MILLIS = 1000;
 	
 	@Override
 	public Object handleRequest(Map<String, Object> input, Context context) {
 		
 		this.input = input;
 		this.context = context;		
-		this.logger = context.getLogger();
+		LambdaLogger lambdaLogger = context.getLogger();
+		this.logger = lambdaLogger;
+		this.scrubbingLogger = new ScrubbingLogger((String msg) -> lambdaLogger.log(msg));
+		// A warm lambda container reuses this instance, so nothing may carry over from the last request.
+		this.responseStatus = "SUCCESS";
+		this.responseReason = null;
+		
+		String requestType = String.valueOf(input.get("RequestType")).toUpperCase();
+		if(new ResponseDataParms().setRequestType(requestType).isUnknownRequestType()) {
+			logger.log("input.requestType: ERROR! Unknown requestType \"" + requestType + "\"");
+			responseStatus = "FAILED";
+		}
+		else {
+			logger.log("input.requestType: " + requestType);
+		}
 
 		/**
 		 * NOTE: You must send a response with a status code on all cases if this request is being made by
@@ -47,41 +82,97 @@ public class CustomResourceHandler implements RequestHandler<Map<String, Object>
 		 * "Custom Resource failed to stabilize in expected time" and rolling back.
 		 * If this happens, rollback will hang and you will have trouble deleting the stack.
 		 */
+		ResponseData responseData = null;
+		try {
+			// Run the task on the shared pool so that it can be abandoned if it would otherwise leave no time to respond.
+			// An abandoned task may still be running during the next invocation, which reuses this instance, so the 
+			// task is given a snapshot of everything it needs rather than reading the fields of this instance.
+			Map<String, Object> request = snapshot(input);
+			ScrubbingLogger taskLogger = scrubbingLogger;
+			Deadline deadline = getDeadline();
+			responseData = WorkerPool.call(() -> getResponseData(request, requestType, taskLogger, deadline), deadline);
+		}
+		catch(TimeoutException e) {
+			setFailed("Task did not finish in the time available to it: " + context.getRemainingTimeInMillis() 
+				+ "ms left, " + RESPONSE_MARGIN_MILLIS + "ms of which is reserved for this response");
+		}
+		catch(ExecutionException e) {
+			// This should make it as a single entry in cloudwatch logs, not separate entry per line of stacktrace.
+			scrubbingLogger.printStackTrace(e.getCause(), System.err);
+			setFailed(e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			setFailed("Interrupted while waiting for the task to finish");
+		}
+		
 		try {
-			sendResponse(input, context, getResponseData());
+			sendResponse(input, context, responseData);
 		}
 		catch(Exception e) {
 			responseStatus = "FAILED";
-			// This should make it as a single entry in cloudwatch logs, not separate entry per line of stacktrace.
-			e.printStackTrace(System.err);
+			scrubbingLogger.printStackTrace(e, System.err);
 			sendResponse(input, context, null);
 		}
 	    
 	    return null;
 	}
 	
-	ResponseData getResponseData() throws Exception {    
-	    String requestType = String.valueOf(input.get("RequestType")).toUpperCase();
-	    
+	/**
+	 * Respond with a FAILED status and the reason (scrubbed of any secrets), and no data.
+	 */
+	void setFailed(String reason) {
+		responseStatus = "FAILED";
+		responseReason = scrubbingLogger.scrub(reason);
+		scrubbingLogger.log("FAILED: " + reason);
+	}
+	
+	ResponseData getResponseData(Map<String, Object> request, String requestType, ScrubbingLogger logger, Deadline deadline) throws Exception {    
 	    ResponseDataParms parms = new ResponseDataParms()
-	    		.setInput(input)
+	    		.setInput(request)
 	    		.setRequestType(requestType)
 	    		.setTaskFactory(new TaskFactory())
-	    		.setTaskRunner(new TaskRunner())
+	    		.setTaskRunner(new TaskRunner(deadline.minus(TASK_MARGIN_MILLIS)))
 	    		.setBase64(false)
-	    		.setLogger((String msg) -> logger.log(msg));
-	    
-	    if(parms.isUnknownRequestType()) {
-	    	logger.log("input.requestType: ERROR! Unknown requestType \"" + String.valueOf(requestType + "\""));
-		    responseStatus = "FAILED";
-	    }
-	    else {
-	    	logger.log("input.requestType: " + requestType);
-	    }
+	    		.setLogger(logger);
 	    
 	    return new ResponseData(parms);	    	
 	}
 
+	/**
+	 * @return An unmodifiable deep copy of the input: nested maps and lists are copied too.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T snapshot(T value) {
+		if(value instanceof Map<?,?>) {
+			Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+			for(Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet()) {
+				copy.put(entry.getKey(), snapshot(entry.getValue()));
+			}
+			return (T) Collections.unmodifiableMap(copy);
+		}
+		if(value instanceof List<?>) {
+			List<Object> copy = new ArrayList<Object>();
+			for(Object item : (List<?>) value) {
+				copy.add(snapshot(item));
+			}
+			return (T) Collections.unmodifiableList(copy);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The time by which tasks must be finished to leave time to send a response before the lambda function times out.
+	 */
+	Deadline getDeadline() {
+		long remaining = context.getRemainingTimeInMillis();
+		if(remaining <= 0) {
+			// Not running as a lambda function (ie: a test), so there is no time limit.
+			return Deadline.NONE;
+		}
+		return Deadline.fromRemainingMillis(remaining).minus(RESPONSE_MARGIN_MILLIS);
+	}
+	
 	void sendResponse(
 			final Map<String, Object> input,
 		    final Context context,
@@ -95,21 +186,14 @@ public class CustomResourceHandler implements RequestHandler<Map<String, Object>
 	        connection.setDoOutput(true);
 	        connection.setRequestMethod("PUT");
 	    	
-	        // Add the standard Custom Resource Request Object properties per reference:
-	        // https://docs.aws.amazon.com/AWSCloudFormation/latest/UserGuide/crpg-ref-requests.html
-	        JSONObject responseBody = new JSONObject();
-	        responseBody.put("Status", responseStatus);
-	        responseBody.put("PhysicalResourceId", context.getLogStreamName());
-	        responseBody.put("StackId", input.get("StackId"));
-	        responseBody.put("RequestId", input.get("RequestId"));
-	        responseBody.put("LogicalResourceId", input.get("LogicalResourceId"));
-	        if(responseData != null && ! responseData.isEmpty()) {
-	        	responseBody.put("Data", new JSONObject(responseData));
-	        }	        
 	        
-	        OutputStreamWriter response = new OutputStreamWriter(connection.getOutputStream());
-	        response.write(responseBody.toString());
-	        response.close();
+	        // Stream the body straight onto the connection as UTF-8, with its length known up front.
+	        ResponseWriter responseBody = new ResponseWriter(input, responseStatus, context.getLogStreamName(), responseData)
+	        		.setReason(responseReason);
+	        connection.setFixedLengthStreamingMode(responseBody.getLength());
+	        try(OutputStream response = connection.getOutputStream()) {
+	        	responseBody.writeTo(response);
+	        }
 	        context.getLogger().log("Response Code: " + connection.getResponseCode());
 	    }
 	    catch(IOException e) {
@@ -117,5 +201,29 @@ public class CustomResourceHandler implements RequestHandler<Map<String, Object>
 	    	e.printStackTrace(System.err);
 	    }
 	}
+	
+	/**
+	 * Add the standard Custom Resource Request Object properties per reference:
+	 * https://docs.aws.amazon.com/AWSCloudFormation/latest/UserGuide/crpg-ref-requests.html
+	 * <p>
+	 * NOTE: sendResponse writes the same body with a ResponseWriter instead, without building this tree.
+	 */
+	static JSONObject getResponseBody(
+			Map<String, Object> input, 
+			String responseStatus, 
+			String physicalResourceId, 
+			ResponseData responseData) {
+		
+		JSONObject responseBody = new JSONObject();
+		responseBody.put("Status", responseStatus);
+		responseBody.put("PhysicalResourceId", physicalResourceId);
+		responseBody.put("StackId", input.get("StackId"));
+		responseBody.put("RequestId", input.get("RequestId"));
+		responseBody.put("LogicalResourceId", input.get("LogicalResourceId"));
+		if(responseData != null && ! responseData.isEmpty()) {
+			responseBody.put("Data", new JSONObject(responseData));
+		}
+		return responseBody;
+	}
 
 }
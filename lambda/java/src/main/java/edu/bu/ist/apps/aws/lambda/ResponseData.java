@@ -1,14 +1,20 @@
 package edu.bu.ist.apps.aws.lambda;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONObject;
 
+import edu.bu.ist.apps.aws.task.ResponsePacker;
+import edu.bu.ist.apps.aws.task.ResultStore;
 import edu.bu.ist.apps.aws.task.Task;
 import edu.bu.ist.apps.aws.task.TaskFactory;
 import edu.bu.ist.apps.aws.task.TaskResult;
 import edu.bu.ist.apps.aws.task.TaskRunner;
+import edu.bu.ist.apps.aws.task.ValueEncoder;
 
 /**
  * When calling a lambda function custom resource from a cloudformation stack template, any items beyond the service token that
@@ -25,6 +31,9 @@ import edu.bu.ist.apps.aws.task.TaskRunner;
 public class ResponseData extends LinkedHashMap<String, Object> {
 
 	private static final long serialVersionUID = 42155840541234301L;
+	private static final String[] CREDENTIAL_PROPERTIES = new String[] { "accesskey", "secretkey" };
+	// The PhysicalResourceId of a response is the name of the log stream (ie: "2018/10/18/[$LATEST]" + 32 hex digits).
+	private static final int PHYSICAL_RESOURCE_ID_ALLOWANCE = 64;
 	private ResponseDataParms parms;
 	
 	/**
@@ -35,23 +44,22 @@ public class ResponseData extends LinkedHashMap<String, Object> {
 		super();
 	}
 	
-	public ResponseData(ResponseDataParms parms) {
+	/**
+	 * @param parms
+	 * @throws Exception If the task fails, so that the failure can be reported as such rather than as data.
+	 * A task asked to tolerate failures (ie: allowpartial) returns what it could get instead of throwing.
+	 */
+	public ResponseData(ResponseDataParms parms) throws Exception {
 		this.parms = parms;
 		
-		try {	
-			if(parms.isDeleteRequestType() ) {
-				log("-----------------------------------------");
-				log("   DELETING RESOURCE...");
-				log("-----------------------------------------");
-				log("Delete successful.");
-			}
-			else {
-				parseInput();
-			}
+		if(parms.isDeleteRequestType() ) {
+			log("-----------------------------------------");
+			log("   DELETING RESOURCE...");
+			log("-----------------------------------------");
+			log("Delete successful.");
 		}
-		catch (Exception e) {
-			e.printStackTrace(System.err);
-			putAndLog("ERROR - " + e.getClass().getSimpleName() + ": ", e.getMessage());
+		else {
+			parseInput();
 		}
 	}
 	
@@ -62,31 +70,82 @@ public class ResponseData extends LinkedHashMap<String, Object> {
 	 */
 	private void parseInput() throws Exception {
 		
-		// Put the original input back into the output for debugging purposes.
-		log("-----------------------------------------");
-		log("   INPUT:");
-		log("-----------------------------------------");
-		
 		// ResourceProperties are intended as input parameters for a lambda function.
 		// Run the lambda function with these parameters and put the results to this map.
 		if(parms.getInput().containsKey("ResourceProperties")) {
 			
-			putAndLog("input", parms.getInput());
-			
 			Object rsrcProps = parms.getInput().get("ResourceProperties");
-			Task task = parms.getTaskFactory().extractTask(rsrcProps, parms.getLogger());
+			parms.addSecrets(getCredentials(rsrcProps));
 			
-			if(! Task.UNKNOWN.equals(task)) {
-				
-				TaskResult result = parms.getTaskRunner().run(task, rsrcProps, parms.getLogger());
+			put("input", parms.getInput());
+			
+			// What happened to the result is logged after the input, which is itself not logged until the secrets of  
+			// the result are known, so that any of them that the input echoes are masked.
+			List<String> notes = new ArrayList<String>();
+			TaskResult result = null;
+			try {
+				Task task = parms.getTaskFactory().extractTask(rsrcProps, parms.getLogger());
 				
-				if(result.isValid()) {
+				if(! Task.UNKNOWN.equals(task)) {
 					
-					if(result.containsIllegalCharacters() || parms.isBase64()) {
-						result.convertToBase64();
-					}
+					result = parms.getTaskRunner().run(task, rsrcProps, parms.getLogger());
 					
-					putAll(result.getMaskedResults());
+					if(result.isValid()) {
+						
+						ResultStore store = parms.getTaskRunner().getResultStore(rsrcProps, parms.getLogger());
+						String json = store == null ? null : ResultStore.toJson(result.getMaskedResults());
+						if(json != null && isTrue(rsrcProps, "spill")) {
+							// Asked not to return the result, so return where to find it instead.
+							notes.add(storeResult(store, json, result));
+						}
+						else if(isTrue(rsrcProps, "pack")) {
+							// Packed data is base64 already, and too compressed for any value to show up in it as is.
+							ResponsePacker packer = new ResponsePacker();
+							putAll(packer.pack(result.getMaskedResults()));
+							notes.add("Packed " + result.getResults().size() + " values: " + packer);
+							if( ! packer.fitsResponse()) {
+								notes.add("WARNING! Packed data exceeds the " + ResponsePacker.RESPONSE_LIMIT + " byte limit of a custom resource response");
+							}
+						}
+						else {
+							// Encode all values if asked to, otherwise only those that could not be returned as they are.
+							Map<String, Object> data = new LinkedHashMap<String, Object>();
+							List<String> encoded = null;
+							boolean encodeAll = parms.isBase64() || isTrue(rsrcProps, "base64");
+							if(encodeAll || result.containsIllegalCharacters()) {
+								encoded = result.convertToBase64(encodeAll);
+								if( ! encoded.isEmpty()) {
+									data.put(ValueEncoder.ENCODED_KEYS, String.join(",", encoded));
+								}
+							}
+							data.putAll(result.getMaskedResults());
+							
+							if(json != null && getResponseLength(data) > ResponsePacker.RESPONSE_LIMIT) {
+								// Too large to return, so return where to find it instead.
+								notes.add(storeResult(store, json, result));
+							}
+							else {
+								if(encoded != null) {
+									notes.add("Base64 encoded: " + encoded);
+								}
+								putAll(data);
+							}
+						}
+						
+						// Values masked in the output must not turn up anywhere else in the logs either (encoded or not).
+						parms.addSecrets(result.getSensitiveValues());
+					}
+				}
+			}
+			finally {
+				logInput();
+				for(String note : notes) {
+					log(note);
+				}
+			}
+			
+			if(result != null) {
+				if(result.isValid()) {
 					
 					//put("result", result.getMaskedResults());
 					
@@ -100,11 +159,73 @@ public class ResponseData extends LinkedHashMap<String, Object> {
 		}
 		else {
 			parms.addInput("ResourceProperties", "ERROR! No Resource Properties!");
-			putAndLog("input", parms.getInput());
+			put("input", parms.getInput());
+			logInput();
 			log(" ");
 		}
 	}
 	
+	/**
+	 * Store the result and put the pointer to it in its place.
+	 * @return What to log about it.
+	 */
+	private String storeResult(ResultStore store, String json, TaskResult result) throws IOException {
+		Map<String, Object> pointer = store.store(json);
+		putAll(pointer);
+		return "Result of " + result.getResults().size() + " values stored at " + pointer.get(ResultStore.LOCATION);
+	}
+	
+	/**
+	 * @param data Data to return in addition to what is in this map already (ie: the echoed input).
+	 * @return The size in bytes of the whole custom resource response body with the data in it, as ResponseWriter 
+	 * will write it. The PhysicalResourceId is not known until the response is sent, so is allowed for.
+	 */
+	private long getResponseLength(Map<String, Object> data) {
+		Map<String, Object> responseData = new LinkedHashMap<String, Object>(this);
+		responseData.putAll(data);
+		return new ResponseWriter(parms.getInput(), "SUCCESS", "", responseData).getLength() + PHYSICAL_RESOURCE_ID_ALLOWANCE;
+	}
+	
+	/**
+	 * Put the original input back into the output for debugging purposes.
+	 */
+	private void logInput() {
+		log("-----------------------------------------");
+		log("   INPUT:");
+		log("-----------------------------------------");
+		log("input", parms.getInput(), null);
+	}
+	
+	/**
+	 * @return Any credentials among the resource properties (only passed in when running locally).
+	 */
+	private List<String> getCredentials(Object rsrcProps) {
+		List<String> credentials = new ArrayList<String>();
+		if(rsrcProps instanceof Map<?,?>) {
+			for(String name : CREDENTIAL_PROPERTIES) {
+				Object value = ((Map<?,?>) rsrcProps).get(name);
+				if(value != null) {
+					credentials.add(String.valueOf(value));
+				}
+			}
+		}
+		return credentials;
+	}
+	
+	/**
+	 * @return True if the resource property is set to true, ie: "base64: true" to have all output values base64 encoded, 
+	 * "pack: true" to have them packed (see ResponsePacker), or "spill: true" to have them stored (see ResultStore) 
+	 * even if small enough to return.
+	 */
+	private boolean isTrue(Object rsrcProps, String name) {
+		if(rsrcProps instanceof Map<?,?>) {
+			Object value = ((Map<?,?>) rsrcProps).get(name);
+			return value != null && Boolean.parseBoolean(String.valueOf(value).trim());
+		}
+		return false;
+	}
+	
+	@SuppressWarnings("unused")
 	private void putAndLog(Object key, Object val) {
 		put(String.valueOf(key), val);
 		log(key, val, null);
@@ -1,5 +1,6 @@
 package edu.bu.ist.apps.aws.lambda;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.TreeMap;
@@ -58,6 +59,15 @@ public class ResponseDataParms {
 		this.logger = logger;
 		return this;
 	}
+	/**
+	 * Scrub the secrets out of anything logged from now on, if the logger is a ScrubbingLogger.
+	 * @param secrets
+	 */
+	public void addSecrets(Collection<String> secrets) {
+		if(logger instanceof ScrubbingLogger) {
+			((ScrubbingLogger) logger).addSecrets(secrets);
+		}
+	}
 	public TaskFactory getTaskFactory() {
 		return taskFactory;
 	}
@@ -0,0 +1,292 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes the json body of a custom resource response (see CustomResourceHandler.sendResponse) as UTF-8 directly to
+ * an output stream, without first building a JSONObject tree of it and then a string of that tree.
+ * <p>
+ * The body is serialized twice: once just to count its bytes, so that the length can be set on the connection up
+ * front (fixed-length streaming mode, rather than having the connection buffer the whole body to find out), and
+ * then again onto the connection's output through a small buffer.
+ * <p>
+ * Maps are written as json objects in their own order, collections and arrays as json arrays, numbers and booleans
+ * as they are, and anything else as a string of its toString value. As with JSONObject, map entries with null values
+ * are left out. Strings are escaped as JSONObject.quote escapes them.
+ *
+ * @author wrh
+ *
+ */
+public class ResponseWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Map<String, Object> body = new LinkedHashMap<String, Object>();
+	private long length = -1;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private ResponseWriter() {
+		super();
+	}
+
+	/**
+	 * Add the standard Custom Resource Response Object properties per reference:
+	 * https://docs.aws.amazon.com/AWSCloudFormation/latest/UserGuide/crpg-ref-responses.html
+	 */
+	public ResponseWriter(Map<String, Object> input, String responseStatus, String physicalResourceId, Map<String, Object> responseData) {
+		body.put("Status", responseStatus);
+		body.put("PhysicalResourceId", physicalResourceId);
+		body.put("StackId", input.get("StackId"));
+		body.put("RequestId", input.get("RequestId"));
+		body.put("LogicalResourceId", input.get("LogicalResourceId"));
+		if(responseData != null && ! responseData.isEmpty()) {
+			body.put("Data", responseData);
+		}
+	}
+
+	/**
+	 * @param reason Why the request failed, or null. Shown by cloudformation as the reason for the failure of the resource.
+	 */
+	public ResponseWriter setReason(String reason) {
+		if(reason == null) {
+			body.remove("Reason");
+		}
+		else {
+			body.put("Reason", reason);
+		}
+		length = -1;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes writeTo will write.
+	 */
+	public long getLength() {
+		if(length < 0) {
+			try {
+				Utf8Sink counter = new Utf8Sink(null);
+				writeValue(body, counter);
+				counter.flush();
+				length = counter.count;
+			}
+			catch(IOException e) {
+				// Cannot happen, since nothing is written.
+				throw new IllegalStateException(e);
+			}
+		}
+		return length;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		Utf8Sink sink = new Utf8Sink(out);
+		writeValue(body, sink);
+		sink.flush();
+	}
+
+	@Override
+	public String toString() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, getLength()));
+		try {
+			writeTo(out);
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void writeValue(Object value, Utf8Sink sink) throws IOException {
+		if(value == null || JSONObject.NULL.equals(value)) {
+			sink.write("null");
+		}
+		else if(value instanceof Map<?,?>) {
+			sink.write('{');
+			boolean first = true;
+			for(Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet()) {
+				if(entry.getValue() == null)
+					continue;
+				if( ! first)
+					sink.write(',');
+				first = false;
+				writeString(String.valueOf(entry.getKey()), sink);
+				sink.write(':');
+				writeValue(entry.getValue(), sink);
+			}
+			sink.write('}');
+		}
+		else if(value instanceof Collection<?>) {
+			sink.write('[');
+			boolean first = true;
+			for(Object item : (Collection<?>) value) {
+				if( ! first)
+					sink.write(',');
+				first = false;
+				writeValue(item, sink);
+			}
+			sink.write(']');
+		}
+		else if(value.getClass().isArray()) {
+			sink.write('[');
+			for(int i = 0; i < Array.getLength(value); i++) {
+				if(i > 0)
+					sink.write(',');
+				writeValue(Array.get(value, i), sink);
+			}
+			sink.write(']');
+		}
+		else if(value instanceof JSONObject || value instanceof JSONArray) {
+			// Already json.
+			sink.write(value.toString());
+		}
+		else if(value instanceof Boolean) {
+			sink.write(value.toString());
+		}
+		else if(value instanceof Number && isFinite((Number) value)) {
+			sink.write(JSONObject.numberToString((Number) value));
+		}
+		else {
+			writeString(String.valueOf(value), sink);
+		}
+	}
+
+	private static boolean isFinite(Number n) {
+		if(n instanceof Double)
+			return ! ((Double) n).isInfinite() && ! ((Double) n).isNaN();
+		if(n instanceof Float)
+			return ! ((Float) n).isInfinite() && ! ((Float) n).isNaN();
+		return true;
+	}
+
+	/**
+	 * Write a quoted string, escaped the same way as JSONObject.quote.
+	 */
+	private static void writeString(String s, Utf8Sink sink) throws IOException {
+		sink.write('"');
+		char previous = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '\\':
+				case '"':
+					sink.write('\\');
+					sink.write(c);
+					break;
+				case '/':
+					if(previous == '<')
+						sink.write('\\');
+					sink.write(c);
+					break;
+				case '\b': sink.write("\\b"); break;
+				case '\t': sink.write("\\t"); break;
+				case '\n': sink.write("\\n"); break;
+				case '\f': sink.write("\\f"); break;
+				case '\r': sink.write("\\r"); break;
+				default:
+					if(c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+						sink.write("\\u");
+						sink.write(HEX[c >> 12 & 0xF]);
+						sink.write(HEX[c >> 8 & 0xF]);
+						sink.write(HEX[c >> 4 & 0xF]);
+						sink.write(HEX[c & 0xF]);
+					}
+					else {
+						sink.write(c);
+					}
+			}
+			previous = c;
+		}
+		sink.write('"');
+	}
+
+	/**
+	 * Encodes characters as UTF-8 into a buffer that is written out whenever it fills, or only counts the bytes if
+	 * there is no stream. An unpaired surrogate is written as "?", as String.getBytes would.
+	 */
+	private static class Utf8Sink {
+		private final OutputStream out;
+		private final byte[] buf;
+		private int pos;
+		private long count;
+		private char high;
+
+		private Utf8Sink(OutputStream out) {
+			this.out = out;
+			this.buf = out == null ? null : new byte[8192];
+		}
+
+		private void write(String s) throws IOException {
+			for(int i = 0; i < s.length(); i++) {
+				write(s.charAt(i));
+			}
+		}
+
+		private void write(char c) throws IOException {
+			if(high != 0) {
+				char h = high;
+				high = 0;
+				if(Character.isLowSurrogate(c)) {
+					int cp = Character.toCodePoint(h, c);
+					put(0xF0 | cp >> 18);
+					put(0x80 | cp >> 12 & 0x3F);
+					put(0x80 | cp >> 6 & 0x3F);
+					put(0x80 | cp & 0x3F);
+					return;
+				}
+				put('?');
+			}
+			if(c < 0x80) {
+				put(c);
+			}
+			else if(c < 0x800) {
+				put(0xC0 | c >> 6);
+				put(0x80 | c & 0x3F);
+			}
+			else if(Character.isHighSurrogate(c)) {
+				high = c;
+			}
+			else if(Character.isLowSurrogate(c)) {
+				put('?');
+			}
+			else {
+				put(0xE0 | c >> 12);
+				put(0x80 | c >> 6 & 0x3F);
+				put(0x80 | c & 0x3F);
+			}
+		}
+
+		private void put(int b) throws IOException {
+			count++;
+			if(out == null)
+				return;
+			if(pos == buf.length) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+			buf[pos++] = (byte) b;
+		}
+
+		private void flush() throws IOException {
+			if(high != 0) {
+				high = 0;
+				put('?');
+			}
+			if(out != null && pos > 0) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
+
+/**
+ * A Logger that scrubs every known secret value (see SecretScrubber) out of each message before passing it on to
+ * the Logger it wraps. Secrets can be added at any time, ie: once a task has produced values that its OutputMask
+ * masks, and apply to all messages logged afterwards, from any thread.
+ *
+ * @author wrh
+ *
+ */
+public class ScrubbingLogger implements Logger {
+
+	private Logger logger;
+	private volatile SecretScrubber scrubber = SecretScrubber.EMPTY;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private ScrubbingLogger() {
+		super();
+	}
+
+	public ScrubbingLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	@Override
+	public void log(String message) {
+		logger.log(scrubber.scrub(message));
+	}
+
+	/**
+	 * Scrub the secrets out of all messages logged from now on.
+	 * @param secrets
+	 */
+	public synchronized void addSecrets(Collection<String> secrets) {
+		if(secrets == null || secrets.isEmpty())
+			return;
+		scrubber = scrubber.with(secrets);
+	}
+
+	public String scrub(String s) {
+		return scrubber.scrub(s);
+	}
+
+	public SecretScrubber getScrubber() {
+		return scrubber;
+	}
+
+	/**
+	 * Print the stack trace of an exception to the stream with any secrets (ie: in exception messages) scrubbed out.
+	 * The trace is printed in a single write so that it makes it into cloudwatch as a single entry.
+	 * @param e
+	 * @param out
+	 */
+	public void printStackTrace(Throwable e, PrintStream out) {
+		StringWriter trace = new StringWriter();
+		e.printStackTrace(new PrintWriter(trace));
+		out.print(scrubber.scrub(trace.toString()));
+		out.flush();
+	}
+}
@@ -0,0 +1,176 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Replaces every occurrence of any of a set of secret values in a string with asterisks, so that a secret that finds
+ * its way into a log message (ie: in an exception message or an echoed input map) is not written out as is.
+ * <p>
+ * The secrets are compiled into an Aho-Corasick automaton: a trie of the secrets whose states also record where to
+ * continue from when the next character does not extend the current match, and the longest secret ending at that
+ * state. A string is scrubbed in a single pass over its characters, whatever the number of secrets, and is returned
+ * as is (without copying) if it contains none of them.
+ * <p>
+ * Instances are immutable, and so safe to share between threads.
+ *
+ * @author wrh
+ *
+ */
+public class SecretScrubber {
+
+	/**
+	 * Values shorter than this are not treated as secrets, since they would match too much ordinary text.
+	 */
+	public static final int MIN_SECRET_LENGTH = 6;
+	public static final char MASK_CHAR = '*';
+
+	public static final SecretScrubber EMPTY = new SecretScrubber(new LinkedHashSet<String>());
+
+	private final Set<String> secrets;
+	// State transitions of the automaton: for each state, the characters that lead out of it in ascending order, and
+	// the state each leads to. State 0 is the root. Primitive arrays, so scanning a character boxes nothing.
+	private final char[][] edgeChars;
+	private final int[][] edgeStates;
+	private final int[] failure;
+	// The length of the longest secret ending at each state (following failure links), 0 if none.
+	private final int[] matchLength;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private SecretScrubber() {
+		this(new LinkedHashSet<String>());
+	}
+
+	private SecretScrubber(Set<String> secrets) {
+		this.secrets = secrets;
+
+		// Build the trie of secrets, sorted edges and all.
+		List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		List<Integer> length = new ArrayList<Integer>();
+		trie.add(new TreeMap<Character, Integer>());
+		length.add(0);
+		for(String secret : secrets) {
+			int state = 0;
+			for(int i = 0; i < secret.length(); i++) {
+				Integer next = trie.get(state).get(secret.charAt(i));
+				if(next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					length.add(0);
+					trie.get(state).put(secret.charAt(i), next);
+				}
+				state = next;
+			}
+			length.set(state, Math.max(length.get(state), secret.length()));
+		}
+
+		int states = trie.size();
+		edgeChars = new char[states][];
+		edgeStates = new int[states][];
+		matchLength = new int[states];
+		for(int state = 0; state < states; state++) {
+			Map<Character, Integer> edges = trie.get(state);
+			edgeChars[state] = new char[edges.size()];
+			edgeStates[state] = new int[edges.size()];
+			int e = 0;
+			for(Map.Entry<Character, Integer> edge : edges.entrySet()) {
+				edgeChars[state][e] = edge.getKey();
+				edgeStates[state][e++] = edge.getValue();
+			}
+			matchLength[state] = length.get(state);
+		}
+
+		// Breadth first, link each state to the state of the longest proper suffix of its path that is in the trie.
+		failure = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for(int child : edgeStates[0]) {
+			queue[tail++] = child;
+		}
+		while(head < tail) {
+			int state = queue[head++];
+			matchLength[state] = Math.max(matchLength[state], matchLength[failure[state]]);
+			for(int e = 0; e < edgeChars[state].length; e++) {
+				int child = edgeStates[state][e];
+				failure[child] = next(failure[state], edgeChars[state][e]);
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * @param secrets Values to scrub. Nulls, and values shorter than MIN_SECRET_LENGTH (after trimming) are ignored.
+	 * @return
+	 */
+	public static SecretScrubber getInstance(Collection<String> secrets) {
+		Set<String> kept = new LinkedHashSet<String>();
+		if(secrets != null) {
+			for(String secret : secrets) {
+				if(secret != null && secret.trim().length() >= MIN_SECRET_LENGTH) {
+					kept.add(secret);
+				}
+			}
+		}
+		return kept.isEmpty() ? EMPTY : new SecretScrubber(kept);
+	}
+
+	/**
+	 * @return A scrubber for the secrets of this one plus the additional secrets.
+	 */
+	public SecretScrubber with(Collection<String> moreSecrets) {
+		Set<String> combined = new LinkedHashSet<String>(secrets);
+		combined.addAll(moreSecrets);
+		return getInstance(combined);
+	}
+
+	private int next(int state, char c) {
+		while(true) {
+			int e = Arrays.binarySearch(edgeChars[state], c);
+			if(e >= 0)
+				return edgeStates[state][e];
+			if(state == 0)
+				return 0;
+			state = failure[state];
+		}
+	}
+
+	/**
+	 * @param s
+	 * @return The string with every character that is part of an occurrence of a secret replaced with an asterisk.
+	 */
+	public String scrub(String s) {
+		if(s == null || secrets.isEmpty())
+			return s;
+		char[] scrubbed = null;
+		int state = 0;
+		int maskedTo = -1;
+		for(int i = 0; i < s.length(); i++) {
+			state = next(state, s.charAt(i));
+			int len = matchLength[state];
+			if(len > 0) {
+				if(scrubbed == null)
+					scrubbed = s.toCharArray();
+				// Matches are found in order of where they end, so only the part not already masked needs masking.
+				for(int j = Math.max(i - len + 1, maskedTo + 1); j <= i; j++) {
+					scrubbed[j] = MASK_CHAR;
+				}
+				maskedTo = i;
+			}
+		}
+		return scrubbed == null ? s : new String(scrubbed);
+	}
+
+	public int getSecretCount() {
+		return secrets.size();
+	}
+}
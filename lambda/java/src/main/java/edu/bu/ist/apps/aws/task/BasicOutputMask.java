@@ -1,5 +1,14 @@
 package edu.bu.ist.apps.aws.task;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -8,77 +17,227 @@ import org.json.JSONObject;
  * A value is masked if a lookup in a provided json object matches its key in either a "full" of "logs" array of field names.
  * If a match is found in the full array, both output and logging output are masked.
  * If a match is found in the logs array, just the logging output is masked.
- * 
+ * <p>
+ * Field names are matched ignoring case. Besides plain names, an array may contain wildcard patterns, where "*"
+ * matches any run of characters and "?" any single character (ie: "*_SECRET*", "AWS_*"), and regular expressions
+ * enclosed in slashes (ie: "/MONGO_(USER|PASS)/"). A pattern must match the whole field name.
+ * <p>
+ * The arrays are compiled once, when the mask is constructed: plain names into a hash set, and all the patterns of
+ * an array into a single combined expression whose verdict for each field name is remembered, so masking a field
+ * costs a hash lookup however many names and patterns there are.
+ * <p>
+ * A whole map of values can be masked in one call (getOutputs, getLogOutputs). Masks are taken from a shared buffer
+ * of asterisks rather than built for each value, and maps of PARALLEL_THRESHOLD entries or more are split into
+ * chunks that are masked concurrently on the WorkerPool.
+ *
  * @author wrh
  *
  */
 public class BasicOutputMask implements OutputMask {
 
-	private JSONObject parameters;	
-	private static final String MASK_CHAR = "*";
-	
+	private static final char MASK_CHAR = '*';
+	private static final int MAX_REMEMBERED_FIELDS = 10000;
+	private static final String[] masks = new String[128];
+	private static volatile char[] maskBuffer = new char[0];
+
+	/**
+	 * Maps with at least this many entries are masked concurrently.
+	 */
+	public static final int PARALLEL_THRESHOLD = 2048;
+	private static final int CHUNK_SIZE = 512;
+
+	private final FieldRules full;
+	private final FieldRules logs;
+
+	/**
+	 * The field names and patterns of one array (full or logs) of the json.
+	 */
+	private static class FieldRules {
+		private boolean all;
+		private final Set<String> names = new HashSet<String>();
+		private Pattern patterns;
+		private final Map<String, Boolean> verdicts = new ConcurrentHashMap<String, Boolean>();
+
+		private FieldRules(JSONArray fields) {
+			if(fields == null)
+				return;
+			if(fields.length() == 1 && OutputMask.ALL_FIELDS.equalsIgnoreCase(fields.getString(0))) {
+				// "all" only has its special meaning on its own.
+				all = true;
+				return;
+			}
+			StringBuilder combined = new StringBuilder();
+			for(int i = 0; i < fields.length(); i++) {
+				String field = fields.getString(i);
+				String regex = toRegex(field);
+				if(regex == null) {
+					names.add(field.toLowerCase(Locale.ROOT));
+					continue;
+				}
+				if(combined.length() > 0)
+					combined.append('|');
+				combined.append("(?:").append(regex).append(')');
+			}
+			if(combined.length() > 0) {
+				patterns = Pattern.compile(combined.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+			}
+		}
+
+		private boolean matches(String key) {
+			if(all)
+				return true;
+			if(names.isEmpty() && patterns == null)
+				return false;
+			Boolean verdict = verdicts.get(key);
+			if(verdict == null) {
+				verdict = names.contains(key.toLowerCase(Locale.ROOT)) || (patterns != null && patterns.matcher(key).matches());
+				if(verdicts.size() < MAX_REMEMBERED_FIELDS) {
+					verdicts.put(key, verdict);
+				}
+			}
+			return verdict;
+		}
+
+		/**
+		 * @return The regular expression for a wildcard or slash enclosed field, or null for a plain field name.
+		 */
+		private static String toRegex(String field) {
+			if(field.length() > 2 && field.startsWith("/") && field.endsWith("/")) {
+				return field.substring(1, field.length() - 1);
+			}
+			if(field.indexOf('*') == -1 && field.indexOf('?') == -1) {
+				return null;
+			}
+			StringBuilder regex = new StringBuilder();
+			int literal = 0;
+			for(int i = 0; i < field.length(); i++) {
+				char c = field.charAt(i);
+				if(c == '*' || c == '?') {
+					if(i > literal)
+						regex.append(Pattern.quote(field.substring(literal, i)));
+					regex.append(c == '*' ? ".*" : ".");
+					literal = i + 1;
+				}
+			}
+			if(literal < field.length())
+				regex.append(Pattern.quote(field.substring(literal)));
+			return regex.toString();
+		}
+	}
+
 	public BasicOutputMask(String json) {
-		parameters = new JSONObject(json);
+		JSONObject parameters = new JSONObject(json);
+		JSONObject fieldsToMask = parameters.optJSONObject("fieldsToMask");
+		full = new FieldRules(getFieldsToMask(fieldsToMask, "full"));
+		logs = new FieldRules(getFieldsToMask(fieldsToMask, "logs"));
 	}
-	
+
 	@Override
 	public String getLogOutput(String key, Object value) {
-		return getMaskForField( key, getMaskForField(key, value, "logs"), "full");
+		return mask(key, value, true);
 	}
 
 	@Override
 	public String getOutput(String key, Object value) {
-		return getMaskForField(key, value, "full");
+		return mask(key, value, false);
 	}
 
-	private String getMaskForField(String key, Object value, String type) {
-		
-		if(key == null || value == null)
-			return null;
-		if(String.valueOf(value).trim().isEmpty())
+	@Override
+	public Map<String, String> getOutputs(Map<String, ?> values) {
+		return mask(values, false);
+	}
+
+	@Override
+	public Map<String, String> getLogOutputs(Map<String, ?> values) {
+		return mask(values, true);
+	}
+
+	private String mask(String key, Object value, boolean forLogs) {
+		String s = getValue(key, value);
+		if(s == null)
 			return null;
-		
-		if(maskAllFields(type)) {
-			return getMask(((String) value).length());
+		return full.matches(key) || (forLogs && logs.matches(key)) ? getMask(s.length()) : s;
+	}
+
+	private Map<String, String> mask(Map<String, ?> values, boolean forLogs) {
+		Map<String, String> masked = new LinkedHashMap<String, String>(values.size() * 4 / 3 + 1);
+		if(values.size() < PARALLEL_THRESHOLD) {
+			for(Map.Entry<String, ?> entry : values.entrySet()) {
+				masked.put(entry.getKey(), mask(entry.getKey(), entry.getValue(), forLogs));
+			}
+			return masked;
+		}
+
+		String[] keys = new String[values.size()];
+		Object[] raw = new Object[keys.length];
+		int i = 0;
+		for(Map.Entry<String, ?> entry : values.entrySet()) {
+			keys[i] = entry.getKey();
+			raw[i++] = entry.getValue();
 		}
-		
-		StringBuilder mask = new StringBuilder((String) value);	
-		
-		JSONArray fieldsToMask = getFieldsToMask(type);		
-		if(fieldsToMask != null) {
-			fieldsToMask.forEach( (field) -> {
-				if(key.equalsIgnoreCase((String) field)) {
-					mask.replace(0, mask.length(), getMask(mask.length()));
-					return;
+		String[] outputs = new String[keys.length];
+		int chunks = (keys.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		try {
+			Map<Integer, Exception> failures = WorkerPool.invokeAll(chunks, Runtime.getRuntime().availableProcessors(), true, (int chunk) -> {
+				for(int j = chunk * CHUNK_SIZE, end = Math.min(j + CHUNK_SIZE, keys.length); j < end; j++) {
+					outputs[j] = mask(keys[j], raw[j], forLogs);
 				}
 			});
+			if( ! failures.isEmpty()) {
+				Exception e = failures.values().iterator().next();
+				throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+			}
+		}
+		catch (InterruptedException e) {
+			// Finish on this thread, but leave the interrupt for the caller to notice.
+			Thread.currentThread().interrupt();
+			for(int j = 0; j < keys.length; j++) {
+				outputs[j] = mask(keys[j], raw[j], forLogs);
+			}
+		}
+		for(int j = 0; j < keys.length; j++) {
+			masked.put(keys[j], outputs[j]);
 		}
-		
-		return mask.toString();		
+		return masked;
+	}
+
+	/**
+	 * @return The value as a string, or null if there is no key, or the value is null or blank.
+	 */
+	private String getValue(String key, Object value) {
+		if(key == null || value == null)
+			return null;
+		String s = String.valueOf(value);
+		if(s.trim().isEmpty())
+			return null;
+		return s;
 	}
-	
-	private JSONArray getFieldsToMask(String type) {
-		if(parameters.has("fieldsToMask") && parameters.getJSONObject("fieldsToMask").has(type)) {
-			return parameters.getJSONObject("fieldsToMask").getJSONArray(type);
+
+	private JSONArray getFieldsToMask(JSONObject fieldsToMask, String type) {
+		if(fieldsToMask != null && fieldsToMask.has(type)) {
+			return fieldsToMask.getJSONArray(type);
 		}
 		return null;
 	}
-	
-	private boolean maskAllFields(String type) {
-		JSONArray fieldsToMask = getFieldsToMask(type);
-		if(fieldsToMask != null && fieldsToMask.length() == 1) {
-			if(OutputMask.ALL_FIELDS.equalsIgnoreCase(fieldsToMask.getString(0))) {
-				return true;
+
+	private String getMask(int length) {
+		if(length >= masks.length) {
+			char[] buffer = maskBuffer;
+			if(buffer.length < length) {
+				// Grow the shared buffer. It only ever holds asterisks, so a thread still using the old one is unaffected.
+				buffer = new char[Math.max(length, buffer.length * 2)];
+				Arrays.fill(buffer, MASK_CHAR);
+				maskBuffer = buffer;
 			}
+			return new String(buffer, 0, length);
 		}
-		return false;
-	}
-	
-	private String getMask(int length) {
-		StringBuilder s = new StringBuilder();
-		for(int i=1; i<=length; i++) {
-			s.append(MASK_CHAR);
+		String mask = masks[length];
+		if(mask == null) {
+			char[] chars = new char[length];
+			Arrays.fill(chars, MASK_CHAR);
+			// A benign race: two threads may build the same mask, but either is correct.
+			masks[length] = mask = new String(chars);
 		}
-		return s.toString();
+		return mask;
 	}
 }
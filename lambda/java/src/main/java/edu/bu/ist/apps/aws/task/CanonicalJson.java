@@ -0,0 +1,87 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Canonical json and its SHA-256 digest, so that json that differs only in formatting or key order can be recognized
+ * as the same (ie: to share a cached OutputMask, or to store a result only once, see ResultStore).
+ *
+ * @author wrh
+ *
+ */
+public class CanonicalJson {
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private CanonicalJson() {
+		super();
+	}
+
+	/**
+	 * @return The json with its object keys sorted and no insignificant whitespace.
+	 */
+	public static String canonicalize(Object json) {
+		StringBuilder s = new StringBuilder();
+		canonicalize(json, s);
+		return s.toString();
+	}
+
+	private static void canonicalize(Object json, StringBuilder s) {
+		if(json instanceof JSONObject) {
+			JSONObject obj = (JSONObject) json;
+			List<String> keys = new ArrayList<String>(obj.keySet());
+			Collections.sort(keys);
+			s.append('{');
+			for(int i = 0; i < keys.size(); i++) {
+				if(i > 0)
+					s.append(',');
+				s.append(JSONObject.quote(keys.get(i))).append(':');
+				canonicalize(obj.get(keys.get(i)), s);
+			}
+			s.append('}');
+		}
+		else if(json instanceof JSONArray) {
+			JSONArray array = (JSONArray) json;
+			s.append('[');
+			for(int i = 0; i < array.length(); i++) {
+				if(i > 0)
+					s.append(',');
+				canonicalize(array.get(i), s);
+			}
+			s.append(']');
+		}
+		else if(json instanceof String) {
+			s.append(JSONObject.quote((String) json));
+		}
+		else {
+			s.append(JSONObject.valueToString(json));
+		}
+	}
+
+	/**
+	 * @return The SHA-256 digest of the UTF-8 bytes of the string in hex.
+	 */
+	public static String digest(String s) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for(byte b : MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8))) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every java platform supports SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+}
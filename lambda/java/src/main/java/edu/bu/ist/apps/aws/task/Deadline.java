@@ -0,0 +1,73 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which work must be finished, typically derived from Context.getRemainingTimeInMillis() of the
+ * lambda function, less enough time to send the response to cloudformation. Anything that waits or retries should
+ * give up rather than run past it, since a lambda function that times out sends no response at all.
+ *
+ * @author wrh
+ *
+ */
+public class Deadline {
+
+	/**
+	 * No time limit (ie: when running locally).
+	 */
+	public static final Deadline NONE = new Deadline();
+
+	private final boolean limited;
+	private final long expiresAtNanos;
+
+	/**
+	 * Restrict default constructor
+	 */
+	private Deadline() {
+		this.limited = false;
+		this.expiresAtNanos = 0;
+	}
+
+	private Deadline(long expiresAtNanos) {
+		this.limited = true;
+		this.expiresAtNanos = expiresAtNanos;
+	}
+
+	/**
+	 * @param remainingMillis The time left from now.
+	 */
+	public static Deadline fromRemainingMillis(long remainingMillis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMillis)));
+	}
+
+	/**
+	 * @return A deadline the specified number of milliseconds earlier than this one.
+	 */
+	public Deadline minus(long millis) {
+		if( ! limited)
+			return this;
+		return new Deadline(expiresAtNanos - TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * @return The time left in milliseconds, zero if expired, or Long.MAX_VALUE if there is no time limit.
+	 */
+	public long getRemainingMillis() {
+		if( ! limited)
+			return Long.MAX_VALUE;
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+	}
+
+	public boolean isExpired() {
+		return limited && expiresAtNanos - System.nanoTime() <= 0;
+	}
+
+	public boolean isLimited() {
+		return limited;
+	}
+
+	@Override
+	public String toString() {
+		return limited ? "Deadline [remaining=" + getRemainingMillis() + "ms]" : "Deadline [none]";
+	}
+}
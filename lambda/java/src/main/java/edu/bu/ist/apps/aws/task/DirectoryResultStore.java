@@ -0,0 +1,58 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A ResultStore that writes to a local directory, as a stand-in for S3 when running locally or in tests.
+ *
+ * @author wrh
+ *
+ */
+public class DirectoryResultStore implements ResultStore {
+
+	private File directory;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private DirectoryResultStore() {
+		super();
+	}
+
+	public DirectoryResultStore(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return new File(directory, name).isFile();
+	}
+
+	@Override
+	public void put(String name, byte[] content) throws IOException {
+		Files.createDirectories(directory.toPath());
+		// Write to a temporary file first so that a partly written result is never found under the name.
+		Path temp = Files.createTempFile(directory.toPath(), name, ".tmp");
+		try {
+			Files.write(temp, content);
+			Files.move(temp, new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@Override
+	public String getLocation(String name) {
+		return new File(directory, name).toURI().toString();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
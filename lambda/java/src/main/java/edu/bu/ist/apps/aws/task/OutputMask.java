@@ -1,10 +1,7 @@
 package edu.bu.ist.apps.aws.task;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import edu.bu.ist.apps.aws.lambda.Logger;
 
@@ -23,47 +20,46 @@ public interface OutputMask {
 	
 	public String getOutput(String key, Object value);
 	
+	/**
+	 * Mask the values of a whole map at once, ie: all entries of a TaskResult.
+	 * By default, each entry is masked separately by getOutput. Implementations can override this to share work across entries.
+	 * @param values
+	 * @return The masked values, in the same order as the map passed in.
+	 */
+	public default Map<String, String> getOutputs(Map<String, ?> values) {
+		Map<String, String> masked = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, ?> entry : values.entrySet()) {
+			masked.put(entry.getKey(), getOutput(entry.getKey(), entry.getValue()));
+		}
+		return masked;
+	}
+	
+	/**
+	 * Mask the values of a whole map at once for logging. 
+	 * By default, each entry is masked separately by getLogOutput.
+	 * @param values
+	 * @return The masked values, in the same order as the map passed in.
+	 */
+	public default Map<String, String> getLogOutputs(Map<String, ?> values) {
+		Map<String, String> masked = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, ?> entry : values.entrySet()) {
+			masked.put(entry.getKey(), getLogOutput(entry.getKey(), entry.getValue()));
+		}
+		return masked;
+	}
+	
 	/**
 	 * Static factory that will return an existing implementation of this interface based on the classname value
 	 * from the supplied json object. 
 	 * The implementation class must have a constructor with a single string parameter of json.
 	 * The json matches the implementation and has no specification here, except that it must parse as json.
+	 * Masks are cached by the OutputMaskRegistry, so the same json always gets the same instance.
 	 * 
 	 * @param json
 	 * @return
 	 */
 	public static OutputMask getInstance(String json, Logger logger)  {
-		
-		OutputMask maskImpl = null;
-		
-		try {
-			
-			JSONObject jsonObj = new JSONObject(json);
-			String className = jsonObj.getString("class");
-			Class<?> clazz = Class.forName(className);
-			String parameters = jsonObj.getJSONObject("parameters").toString();
-			Constructor<?> con = clazz.getConstructor(String.class);
-			maskImpl = (OutputMask) con.newInstance(parameters);
-			
-		} catch (JSONException e) {
-			logException(e, logger);
-		} catch (ClassNotFoundException e) {
-			logException(e, logger);
-		} catch (NoSuchMethodException e) {
-			logException(e, logger);
-		} catch (SecurityException e) {
-			logException(e, logger);
-		} catch (InstantiationException e) {
-			logException(e, logger);
-		} catch (IllegalAccessException e) {
-			logException(e, logger);
-		} catch (IllegalArgumentException e) {
-			logException(e, logger);
-		} catch (InvocationTargetException e) {
-			logException(e, logger);
-		}
-		
-		return maskImpl;
+		return OutputMaskRegistry.getInstance().getMask(json, logger);
 	}
 	
 	public static void logException(Exception e, Logger logger) {
@@ -0,0 +1,161 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.bu.ist.apps.aws.lambda.Logger;
+
+/**
+ * A process-wide registry of OutputMask implementations and of the masks built from them, held in static scope so
+ * that it survives between invocations of a warm lambda container.
+ * <p>
+ * Implementations are resolved to a factory only once: BasicOutputMask is bound up front, and any other class is
+ * looked up by name the first time it is asked for, after which its constructor is kept. Built masks are cached, so
+ * each task run that passes the same outputmask json gets the same mask without the json being parsed again. The
+ * exact json string is looked up first, then, failing that, a SHA-256 digest of its normalized form (keys sorted,
+ * whitespace and quoting removed), so that json differing only in formatting shares a mask too.
+ * <p>
+ * NOTE: Cached masks are shared between threads and invocations, so an implementation must be thread-safe and must
+ * not change once constructed.
+ *
+ * @author wrh
+ *
+ */
+public class OutputMaskRegistry {
+
+	public static final int MAX_CACHED_MASKS = 256;
+
+	private static final OutputMaskRegistry instance = new OutputMaskRegistry();
+
+	private final ConcurrentMap<String, Function<String, OutputMask>> factories = new ConcurrentHashMap<String, Function<String, OutputMask>>();
+	private final ConcurrentMap<String, OutputMask> byJson = new ConcurrentHashMap<String, OutputMask>();
+	private final ConcurrentMap<String, OutputMask> byDigest = new ConcurrentHashMap<String, OutputMask>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Restrict default constructor
+	 */
+	private OutputMaskRegistry() {
+		register(BasicOutputMask.class.getName(), (String parameters) -> new BasicOutputMask(parameters));
+	}
+
+	public static OutputMaskRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Bind a class name to a factory that builds a mask from the parameters json, so that no reflection is needed.
+	 * @param className
+	 * @param factory
+	 */
+	public void register(String className, Function<String, OutputMask> factory) {
+		factories.put(className, factory);
+	}
+
+	/**
+	 * Get the mask for the json (see OutputMask.getInstance), building it only if an equivalent json has not been seen before.
+	 * @param json
+	 * @param logger
+	 * @return The mask, or null if the json is invalid or the mask cannot be built, in which case the reason is logged.
+	 */
+	public OutputMask getMask(String json, Logger logger) {
+		OutputMask mask = json == null ? null : byJson.get(json);
+		if(mask != null) {
+			hits.incrementAndGet();
+			return mask;
+		}
+		try {
+			JSONObject jsonObj = new JSONObject(json);
+			String digest = CanonicalJson.digest(CanonicalJson.canonicalize(jsonObj));
+			mask = byDigest.get(digest);
+			if(mask == null) {
+				misses.incrementAndGet();
+				String className = jsonObj.getString("class");
+				Function<String, OutputMask> factory = getFactory(className);
+				String parameters = jsonObj.getJSONObject("parameters").toString();
+				mask = factory.apply(parameters);
+				if(byDigest.size() >= MAX_CACHED_MASKS) {
+					byDigest.clear();
+				}
+				byDigest.put(digest, mask);
+			}
+			else {
+				hits.incrementAndGet();
+			}
+			if(byJson.size() >= MAX_CACHED_MASKS) {
+				byJson.clear();
+			}
+			byJson.put(json, mask);
+			return mask;
+		}
+		catch(FactoryException e) {
+			OutputMask.logException((Exception) e.getCause(), logger);
+		}
+		catch(JSONException | ClassNotFoundException | NoSuchMethodException | SecurityException e) {
+			OutputMask.logException(e, logger);
+		}
+		catch(IllegalArgumentException | ClassCastException e) {
+			// Thrown by the constructor of a registered mask (ie: PatternSyntaxException for an invalid /regex/ rule).
+			OutputMask.logException(e, logger);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The factory for the class, binding one to its String constructor if the class is not registered.
+	 */
+	private Function<String, OutputMask> getFactory(String className) throws ClassNotFoundException, NoSuchMethodException {
+		Function<String, OutputMask> factory = factories.get(className);
+		if(factory != null)
+			return factory;
+		Class<?> clazz = Class.forName(className);
+		Constructor<?> con = clazz.getConstructor(String.class);
+		factory = (String parameters) -> {
+			try {
+				return (OutputMask) con.newInstance(parameters);
+			}
+			catch(InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | ClassCastException e) {
+				throw new FactoryException(e);
+			}
+		};
+		Function<String, OutputMask> existing = factories.putIfAbsent(className, factory);
+		return existing == null ? factory : existing;
+	}
+
+	/**
+	 * Carries a failure to construct a mask reflectively out of a factory.
+	 */
+	private static class FactoryException extends RuntimeException {
+		private static final long serialVersionUID = -2400462131520950372L;
+		private FactoryException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	public void clear() {
+		byJson.clear();
+		byDigest.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "OutputMaskRegistry [factories=" + factories.size() + ", masks=" + byDigest.size()
+				+ ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+}
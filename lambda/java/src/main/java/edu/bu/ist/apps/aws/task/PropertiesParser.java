@@ -0,0 +1,304 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Parses the content of a properties file the way java.util.Properties.load(InputStream) does (ISO 8859-1 content,
+ * comment lines starting with # or !, line continuations, "=", ":" or whitespace separators and backslash escapes,
+ * including \\uxxxx), but without its overhead: Properties is a synchronized Hashtable that must be loaded through a
+ * buffered stream and then copied out again, and it loses the order of the entries in the file.
+ * <p>
+ * Instead, bytes are scanned where they lie (a byte array, or a buffer memory-mapped from a spooled S3File), a line at
+ * a time into a single reused character buffer, and each entry is handed to an EntryHandler in file order as soon as
+ * its line is complete. Strings are created only for the keys and values of entries, never for comments, blank lines
+ * or the lines themselves, and a key or value without escapes becomes a string without any further conversion.
+ * <p>
+ * Content can be fed in chunks of any size as it arrives, with entries that span chunks carried over, followed by a
+ * call to finish once there is no more content.
+ *
+ * @author wrh
+ *
+ */
+public class PropertiesParser {
+
+	/**
+	 * Receives each entry as it is parsed.
+	 */
+	@FunctionalInterface
+	public interface EntryHandler {
+		public void entry(String key, String value);
+	}
+
+	private EntryHandler handler;
+	private char[] line = new char[256];
+	private int len;
+
+	// State of the line being read, carried over from one chunk to the next.
+	private boolean skipWhiteSpace = true;
+	private boolean isCommentLine;
+	private boolean isNewLine = true;
+	private boolean appendedLineBegin;
+	private boolean precedingBackslash;
+	private boolean skipLF;
+	private boolean hasEscape;
+	private int entries;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private PropertiesParser() {
+		super();
+	}
+
+	public PropertiesParser(EntryHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Parse the entire content of a buffer. The position of the buffer is not changed.
+	 * @param buf
+	 * @return The entries in the order they appear. A key that appears more than once keeps its first position and last value.
+	 */
+	public static LinkedHashMap<String, String> parse(ByteBuffer buf) {
+		LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+		PropertiesParser parser = new PropertiesParser((String key, String value) -> map.put(key, value));
+		parser.feed(buf);
+		parser.finish();
+		return map;
+	}
+
+	public static LinkedHashMap<String, String> parse(byte[] bytes) {
+		return parse(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Parse the content of a stream as it is read. The stream is read to the end, but not closed.
+	 * @param in
+	 * @param handler
+	 * @throws IOException
+	 */
+	public static void parse(InputStream in, EntryHandler handler) throws IOException {
+		PropertiesParser parser = new PropertiesParser(handler);
+		byte[] chunk = new byte[8192];
+		int read;
+		while((read = in.read(chunk)) != -1) {
+			parser.feed(chunk, 0, read);
+		}
+		parser.finish();
+	}
+
+	public void feed(byte[] bytes, int offset, int length) {
+		feed(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/**
+	 * Parse the remaining content of a buffer, passing every entry completed by it to the handler.
+	 * The position of the buffer is not changed.
+	 * @param buf
+	 */
+	public void feed(ByteBuffer buf) {
+		if(buf.hasArray()) {
+			byte[] array = buf.array();
+			for(int i = buf.arrayOffset() + buf.position(), end = buf.arrayOffset() + buf.limit(); i < end; i++) {
+				accept((char) (array[i] & 0xFF));
+			}
+		}
+		else {
+			for(int i = buf.position(), end = buf.limit(); i < end; i++) {
+				accept((char) (buf.get(i) & 0xFF));
+			}
+		}
+	}
+
+	/**
+	 * Pass the last entry to the handler if the content did not end with a line break.
+	 */
+	public void finish() {
+		if(len > 0 && ! isCommentLine) {
+			if(precedingBackslash) {
+				len--;
+			}
+			entry();
+		}
+		newLine();
+	}
+
+	/**
+	 * @return The number of entries passed to the handler so far.
+	 */
+	public int getEntryCount() {
+		return entries;
+	}
+
+	/**
+	 * Follows the same rules as the LineReader of java.util.Properties to build up one logical line at a time.
+	 */
+	private void accept(char c) {
+		if(skipLF) {
+			skipLF = false;
+			if(c == '\n')
+				return;
+		}
+		if(skipWhiteSpace) {
+			if(c == ' ' || c == '\t' || c == '\f')
+				return;
+			if( ! appendedLineBegin && (c == '\r' || c == '\n'))
+				return;
+			skipWhiteSpace = false;
+			appendedLineBegin = false;
+		}
+		if(isNewLine) {
+			isNewLine = false;
+			if(c == '#' || c == '!') {
+				isCommentLine = true;
+				return;
+			}
+		}
+		if(c != '\n' && c != '\r') {
+			if(isCommentLine) {
+				// Nothing in a comment is kept.
+				return;
+			}
+			if(len == line.length) {
+				line = Arrays.copyOf(line, len * 2);
+			}
+			line[len++] = c;
+			if(c == '\\') {
+				precedingBackslash = ! precedingBackslash;
+				hasEscape = true;
+			}
+			else {
+				precedingBackslash = false;
+			}
+			return;
+		}
+
+		// Reached the end of a line.
+		if(isCommentLine || len == 0) {
+			newLine();
+			return;
+		}
+		if(precedingBackslash) {
+			// The line continues on the next one, minus the backslash and the leading whitespace of the next one.
+			len--;
+			skipWhiteSpace = true;
+			appendedLineBegin = true;
+			precedingBackslash = false;
+			if(c == '\r')
+				skipLF = true;
+			return;
+		}
+		entry();
+		newLine();
+		if(c == '\r')
+			skipLF = true;
+	}
+
+	private void newLine() {
+		len = 0;
+		skipWhiteSpace = true;
+		isCommentLine = false;
+		isNewLine = true;
+		appendedLineBegin = false;
+		precedingBackslash = false;
+		hasEscape = false;
+	}
+
+	/**
+	 * Split the logical line into key and value the way Properties.load does and pass them to the handler.
+	 */
+	private void entry() {
+		int keyLen = 0;
+		int valueStart = len;
+		boolean hasSep = false;
+		boolean backslash = false;
+		while(keyLen < len) {
+			char c = line[keyLen];
+			if((c == '=' || c == ':') && ! backslash) {
+				valueStart = keyLen + 1;
+				hasSep = true;
+				break;
+			}
+			else if((c == ' ' || c == '\t' || c == '\f') && ! backslash) {
+				valueStart = keyLen + 1;
+				break;
+			}
+			backslash = c == '\\' ? ! backslash : false;
+			keyLen++;
+		}
+		while(valueStart < len) {
+			char c = line[valueStart];
+			if(c != ' ' && c != '\t' && c != '\f') {
+				if( ! hasSep && (c == '=' || c == ':'))
+					hasSep = true;
+				else
+					break;
+			}
+			valueStart++;
+		}
+		String key = convert(0, keyLen);
+		String value = convert(valueStart, len - valueStart);
+		entries++;
+		handler.entry(key, value);
+	}
+
+	/**
+	 * Replace escapes (ie: \t, \\uxxxx) with the characters they stand for.
+	 */
+	private String convert(int offset, int length) {
+		if( ! hasEscape) {
+			return new String(line, offset, length);
+		}
+		StringBuilder s = null;
+		int end = offset + length;
+		int start = offset;
+		for(int i = offset; i < end; i++) {
+			if(line[i] != '\\')
+				continue;
+			if(s == null)
+				s = new StringBuilder(length);
+			s.append(line, start, i - start);
+			if(++i == end) {
+				// A lone trailing backslash stands for nothing.
+				start = end;
+				break;
+			}
+			char c = line[i];
+			if(c == 'u') {
+				if(i + 4 >= end) {
+					throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+				}
+				int value = 0;
+				for(int j = 1; j <= 4; j++) {
+					int digit = Character.digit(line[i + j], 16);
+					if(digit < 0) {
+						throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+					}
+					value = (value << 4) + digit;
+				}
+				s.append((char) value);
+				i += 4;
+			}
+			else {
+				switch(c) {
+					case 't': c = '\t'; break;
+					case 'r': c = '\r'; break;
+					case 'n': c = '\n'; break;
+					case 'f': c = '\f'; break;
+				}
+				s.append(c);
+			}
+			start = i + 1;
+		}
+		if(s == null) {
+			return new String(line, offset, length);
+		}
+		s.append(line, start, end - start);
+		return s.toString();
+	}
+}
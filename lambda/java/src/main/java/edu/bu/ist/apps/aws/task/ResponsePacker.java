@@ -0,0 +1,230 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs the values of a TaskResult into as few characters as possible, so that more of them fit into the 4096 byte
+ * limit that cloudformation puts on a custom resource response (ie: the public keys of many users in one call, where
+ * each key alone is about 2K).
+ * <p>
+ * The values are first reduced to a canonical binary form: a public ssh key ("ssh-rsa AAAA... user@host") is reduced
+ * to the bytes its base64 text stands for, without the comment, and any other value to its UTF-8 bytes. These are
+ * written out one after the other, deflated, base64 encoded, and split over numbered attributes (Data1, Data2...)
+ * of no more than the part length each. DataParts holds the number of parts, and DataSize the number of characters
+ * over all of them.
+ * <p>
+ * The packed format (before deflating) is:
+ * <pre>
+ *   byte    version (1)
+ *   int     number of entries
+ *   per entry:
+ *     UTF     key
+ *     byte    type (0 = text, 1 = ssh public key)
+ *     int     length of the data
+ *     byte[]  data (UTF-8 text, or the decoded key, which names its own algorithm)
+ * </pre>
+ * with numbers big-endian as written by DataOutputStream. See unpack for the reverse.
+ *
+ * @author wrh
+ *
+ */
+public class ResponsePacker {
+
+	public static final int RESPONSE_LIMIT = 4096;
+	public static final int DEFAULT_PART_LENGTH = 2048;
+	public static final String DATA_PREFIX = "Data";
+	public static final String PARTS = "DataParts";
+	public static final String SIZE = "DataSize";
+
+	private static final byte VERSION = 1;
+	private static final byte TEXT = 0;
+	private static final byte SSH_KEY = 1;
+	private static final Pattern SSH_KEY_PATTERN = Pattern.compile(
+			"\\s*(ssh-rsa|ssh-dss|ssh-ed25519|ecdsa-sha2-nistp\\d+) +([A-Za-z0-9+/]+={0,2})(\\s.*)?", Pattern.DOTALL);
+
+	private int partLength;
+	private int rawSize;
+	private int packedSize;
+	private int parts;
+
+	public ResponsePacker() {
+		this(DEFAULT_PART_LENGTH);
+	}
+
+	public ResponsePacker(int partLength) {
+		if(partLength < 4) {
+			throw new IllegalArgumentException("Part length must be at least 4, not " + partLength);
+		}
+		this.partLength = partLength;
+	}
+
+	/**
+	 * @param values The (masked) values to pack, ie: TaskResult.getMaskedResults()
+	 * @return The DataParts and DataSize attributes, followed by the numbered Data attributes.
+	 * @throws IOException
+	 */
+	public Map<String, Object> pack(Map<String, ?> values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		rawSize = 0;
+		try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+			out.writeByte(VERSION);
+			out.writeInt(values.size());
+			for(Map.Entry<String, ?> entry : values.entrySet()) {
+				String value = entry.getValue() == null ? "" : String.valueOf(entry.getValue());
+				byte[] key = decodeSshKey(value);
+				byte type = key == null ? TEXT : SSH_KEY;
+				byte[] data = key == null ? value.getBytes(StandardCharsets.UTF_8) : key;
+				out.writeUTF(entry.getKey());
+				out.writeByte(type);
+				out.writeInt(data.length);
+				out.write(data);
+				rawSize += entry.getKey().length() + value.length();
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		String encoded = Base64.getEncoder().encodeToString(bytes.toByteArray());
+		packedSize = encoded.length();
+		parts = Math.max(1, (packedSize + partLength - 1) / partLength);
+		Map<String, Object> packed = new LinkedHashMap<String, Object>();
+		packed.put(PARTS, String.valueOf(parts));
+		packed.put(SIZE, String.valueOf(packedSize));
+		for(int i = 0; i < parts; i++) {
+			packed.put(DATA_PREFIX + (i + 1), encoded.substring(i * partLength, Math.min(packedSize, (i + 1) * partLength)));
+		}
+		return packed;
+	}
+
+	/**
+	 * @return The bytes of the key if the value is a public ssh key whose data names the same algorithm as its text, otherwise null.
+	 */
+	static byte[] decodeSshKey(String value) {
+		Matcher m = SSH_KEY_PATTERN.matcher(value);
+		if( ! m.matches())
+			return null;
+		byte[] key;
+		try {
+			key = Base64.getDecoder().decode(m.group(2));
+		}
+		catch(IllegalArgumentException e) {
+			return null;
+		}
+		String algorithm = getSshKeyAlgorithm(key);
+		if( ! m.group(1).equals(algorithm))
+			return null;
+		// The value must come back the same (minus the comment) when unpacked.
+		if( ! Base64.getEncoder().encodeToString(key).equals(m.group(2)))
+			return null;
+		return key;
+	}
+
+	/**
+	 * @return The algorithm name that a public ssh key starts with (a 4 byte length followed by that many characters), or null.
+	 */
+	private static String getSshKeyAlgorithm(byte[] key) {
+		if(key.length < 4)
+			return null;
+		int length = ByteBuffer.wrap(key).getInt();
+		if(length <= 0 || length > key.length - 4)
+			return null;
+		return new String(key, 4, length, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Reverse of pack. Public ssh keys come back as "algorithm base64", without their comments.
+	 * @param packed The attributes returned by pack.
+	 * @return The values in the order they were packed.
+	 * @throws IOException If the attributes are incomplete or not in the packed format.
+	 */
+	public static Map<String, String> unpack(Map<String, ?> packed) throws IOException {
+		Object partCount = packed.get(PARTS);
+		if(partCount == null) {
+			throw new IOException("No " + PARTS + " attribute");
+		}
+		StringBuilder encoded = new StringBuilder();
+		for(int i = 1; i <= Integer.parseInt(String.valueOf(partCount)); i++) {
+			Object part = packed.get(DATA_PREFIX + i);
+			if(part == null) {
+				throw new IOException("Missing attribute " + DATA_PREFIX + i);
+			}
+			encoded.append(part);
+		}
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(encoded.toString());
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("Packed data is not valid base64", e);
+		}
+
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		try(DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+			byte version = in.readByte();
+			if(version != VERSION) {
+				throw new IOException("Unknown packed format version: " + version);
+			}
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				byte type = in.readByte();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if(type == SSH_KEY) {
+					values.put(key, getSshKeyAlgorithm(data) + " " + Base64.getEncoder().encodeToString(data));
+				}
+				else {
+					values.put(key, new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return The number of characters of the keys and values packed by the last call to pack.
+	 */
+	public int getRawSize() {
+		return rawSize;
+	}
+
+	/**
+	 * @return The number of characters of the packed data over all parts.
+	 */
+	public int getPackedSize() {
+		return packedSize;
+	}
+
+	public int getParts() {
+		return parts;
+	}
+
+	/**
+	 * @return True if the packed data alone is within the limit of a custom resource response (the rest of the response takes a few hundred bytes more).
+	 */
+	public boolean fitsResponse() {
+		return packedSize < RESPONSE_LIMIT;
+	}
+
+	@Override
+	public String toString() {
+		return "ResponsePacker [rawSize=" + rawSize + ", packedSize=" + packedSize + ", parts=" + parts
+				+ ", limit=" + RESPONSE_LIMIT + "]";
+	}
+}
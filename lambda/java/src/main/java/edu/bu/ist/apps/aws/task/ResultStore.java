@@ -0,0 +1,68 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Somewhere to write a whole (masked) task result that is too large to return in a custom resource response, so that
+ * only a pointer to it need be returned instead (see store).
+ * <p>
+ * A result is stored as json, under a name made from the SHA-256 digest of that json. So storing the same result
+ * again (ie: when a stack is updated without the result having changed) finds it already there and writes nothing.
+ *
+ * @author wrh
+ *
+ */
+public interface ResultStore {
+
+	public static final String LOCATION = "ResultLocation";
+	public static final String DIGEST = "ResultDigest";
+	public static final String SIZE = "ResultSize";
+
+	/**
+	 * @param name
+	 * @return True if there is already content stored under the name.
+	 * @throws IOException
+	 */
+	public boolean exists(String name) throws IOException;
+
+	public void put(String name, byte[] content) throws IOException;
+
+	/**
+	 * @param name
+	 * @return Where content stored under the name can be found (ie: an s3 url).
+	 */
+	public String getLocation(String name);
+
+	/**
+	 * Store json (see toJson) unless it is already stored.
+	 * @param json
+	 * @return The pointer to return in place of the result: its location, digest and size in bytes.
+	 * @throws IOException
+	 */
+	public default Map<String, Object> store(String json) throws IOException {
+		byte[] content = json.getBytes(StandardCharsets.UTF_8);
+		String digest = CanonicalJson.digest(json);
+		String name = digest + ".json";
+		if( ! exists(name)) {
+			put(name, content);
+		}
+		Map<String, Object> pointer = new LinkedHashMap<String, Object>();
+		pointer.put(LOCATION, getLocation(name));
+		pointer.put(DIGEST, digest);
+		pointer.put(SIZE, String.valueOf(content.length));
+		return pointer;
+	}
+
+	/**
+	 * @param values
+	 * @return The values as json with the keys sorted, so that the same values always give the same json (and digest).
+	 */
+	public static String toJson(Map<String, ?> values) {
+		return CanonicalJson.canonicalize(new JSONObject(values));
+	}
+}
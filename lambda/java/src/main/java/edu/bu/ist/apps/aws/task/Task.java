@@ -17,6 +17,10 @@ public enum Task {
 			"Get the public rsa keys stored in S3 bucket so user "
 			+ "data script in EC2 creation can place them in the appropriate home folders"),
 	
+	EC2_PUBLIC_KEYS_BY_PREFIX("get.ec2.public.keys.by.prefix",
+			"Get all public rsa keys stored in S3 bucket under a common prefix, deriving "
+			+ "user names from the key file names"),
+	
 	UNKNOWN("unknown.task",
 			"The string used to identify the task matches no known task");
 	
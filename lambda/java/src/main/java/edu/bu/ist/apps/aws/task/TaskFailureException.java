@@ -0,0 +1,44 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports every failure among a group of independent units of work that make up a single task (ie: the download of
+ * each public key for EC2_PUBLIC_KEYS), rather than just the first. Each failure is also attached as a suppressed
+ * exception, so all of their stack traces are printed along with this one.
+ * 
+ * @author wrh
+ *
+ */
+public class TaskFailureException extends Exception {
+
+	private static final long serialVersionUID = -3094716150944162310L;
+	private Map<String, Exception> failures;
+	
+	public TaskFailureException(String message, Map<String, Exception> failures) {
+		super(buildMessage(message, failures));
+		this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, Exception>(failures));
+		for(Exception e : failures.values()) {
+			addSuppressed(e);
+		}
+	}
+	
+	private static String buildMessage(String message, Map<String, Exception> failures) {
+		StringBuilder s = new StringBuilder(message).append(" (").append(failures.size()).append(" failed)");
+		for(Map.Entry<String, Exception> failure : failures.entrySet()) {
+			Exception e = failure.getValue();
+			s.append("\n   ").append(failure.getKey()).append(": ")
+				.append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
+		}
+		return s.toString();
+	}
+	
+	/**
+	 * @return The exception for each failed unit of work, keyed by what identifies it (ie: username), in order.
+	 */
+	public Map<String, Exception> getFailures() {
+		return failures;
+	}
+}
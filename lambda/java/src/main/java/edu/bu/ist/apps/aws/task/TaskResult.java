@@ -1,15 +1,17 @@
 package edu.bu.ist.apps.aws.task;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 
+import edu.bu.ist.apps.aws.lambda.Logger;
+import edu.bu.ist.apps.aws.task.s3.ContentListener;
 import edu.bu.ist.apps.aws.task.s3.S3File;
 import edu.bu.ist.apps.aws.task.s3.S3FileParms;
 
@@ -24,9 +26,15 @@ import edu.bu.ist.apps.aws.task.s3.S3FileParms;
  */
 public class TaskResult {
 
-	private LinkedHashMap<String, Object> results = new LinkedHashMap<String, Object>();
+	private LinkedHashMap<String, TaskResultItem> results = new LinkedHashMap<String, TaskResultItem>();
 	private OutputMask outputMask;
 	
+	// Views of the results, built when first asked for and discarded whenever the results change.
+	private List<TaskResultItem> resultsView;
+	private Map<String, Object> maskedView;
+	private Map<String, Object> logView;
+	private ValueEncoder encoder;
+	
 	/**
 	 * Restrict default constructor
 	 */
@@ -58,57 +66,157 @@ public class TaskResult {
 	
 	public static TaskResult getInstanceFromMap(Map<String, Object> rawResult, OutputMask outputMask) {
 		TaskResult tr = new TaskResult(outputMask);
-		tr.results.putAll(rawResult);
+		tr.putAll(rawResult);
 		return tr;
 	}
 	/**
 	 * This method returns a TaskResult instance whose map contains a single entry keyed as "blob".
-	 * The value of this entry is the provided byte array converted to a string (probably file content).
+	 * The value of this entry is the provided byte array decoded as UTF-8 to a string (probably file content).
 	 * @param bytes
 	 * @param outputMask
 	 * @return
 	 */
 	public static TaskResult getInstanceFromBlob(byte[] bytes, OutputMask outputMask) {
 		TaskResult tr = new TaskResult(outputMask);
-		tr.results.put("blob", new String(bytes));
+		tr.put("blob", new String(bytes, StandardCharsets.UTF_8));
+		return tr;
+	}
+
+	/**
+	 * This method returns a TaskResult instance whose map contains a single entry keyed as "blob".
+	 * The value of this entry is the content of the provided buffer (ie: S3File.getBuffer()) decoded as UTF-8 to a string.
+	 * @param buf
+	 * @param outputMask
+	 * @return
+	 */
+	public static TaskResult getInstanceFromBlob(ByteBuffer buf, OutputMask outputMask) {
+		TaskResult tr = new TaskResult(outputMask);
+		tr.put("blob", StandardCharsets.UTF_8.decode(buf.duplicate()).toString());
 		return tr;
 	}
 
 	/**
-	 * This method returns a TaskResult instance whose map is loaded from a properties object.
-	 * The properties object is loaded from the provided byte array converted to an input stream.
+	 * This method returns a TaskResult instance whose map is loaded from properties file content.
+	 * The content is parsed directly out of the provided buffer, which may be memory-mapped from a spooled 
+	 * S3File, so it does not have to be copied into a byte array first. Entries keep the order of the file.
+	 * @param buf
+	 * @param outputMask
+	 * @return
+	 */
+	public static TaskResult getInstanceFromProperties(ByteBuffer buf, OutputMask outputMask) {
+		PropertiesLoader loader = new PropertiesLoader(outputMask, null);
+		if(buf != null) {
+			loader.content(buf);
+		}
+		return loader.getResult();
+	}
+	
+	/**
+	 * This method returns a TaskResult instance whose map is loaded from properties file content.
+	 * The content is parsed directly out of the provided byte array. Entries keep the order of the file.
 	 * @param bytes
 	 * @return
 	 */
 	public static TaskResult getInstanceFromProperties(byte[] bytes, OutputMask outputMask) {
+		return getInstanceFromProperties(bytes == null ? null : ByteBuffer.wrap(bytes), outputMask);
+	}
+	
+	public static TaskResult getInstanceFromProperties(InputStream in, OutputMask outputMask) throws IOException {
+		return getInstanceFromProperties(in, outputMask, null);
+	}
+	
+	/**
+	 * This method returns a TaskResult instance whose map is loaded from properties file content.
+	 * The content is parsed directly from the provided input stream (ie: S3FileStream.getInputStream()) as it
+	 * arrives, so it is never held in memory in its entirety. Entries keep the order of the file.
+	 * A malformed \\uxxxx escape ends the parse, keeping the entries parsed before it, but a failure to read the stream
+	 * is thrown, so that a download that breaks off is never mistaken for a shorter file.
+	 * The stream is left open, so that the caller can still read what remains of it (ie: S3FileStream.verify) before 
+	 * closing it.
+	 * @param in
+	 * @param outputMask
+	 * @param logger Told of content that cannot be parsed, may be null.
+	 * @return
+	 * @throws IOException
+	 */
+	public static TaskResult getInstanceFromProperties(InputStream in, OutputMask outputMask, Logger logger) throws IOException {
 		
 		TaskResult tr = new TaskResult(outputMask);
-		BufferedInputStream bis = null;
+		if(in == null)
+			return tr;
 		
 		try {
-			// Load the properties
-			bis = new BufferedInputStream(new ByteArrayInputStream(bytes));
-			Properties props = new Properties();
-			props.load(bis);
-			
-			// Transfer the properties over to the map
-			for(Object key : props.keySet()) {
-				tr.results.put(String.valueOf(key), props.get(key));
-			}
+			PropertiesParser.parse(in, (String key, String value) -> tr.putMasked(key, value));
 		} 
-		catch (Exception e) {
-			e.printStackTrace();
-		}
-		finally {
-			if(bis != null) {
-				try { bis.close(); } 
-				catch (IOException e) { /* Do nothing */ }
-			}
+		catch (IllegalArgumentException e) {
+			logMalformed(tr, e, logger);
 		}
 		
 		return tr;
 	}
 	
+	/**
+	 * Builds a TaskResult from properties file content passed to it a chunk at a time as it is downloaded 
+	 * (ie: by an S3File), so that parsing, and the masking of each entry as soon as it is parsed, overlap the download
+	 * instead of following it. Content that cannot be parsed ends the parse and the entries parsed before it are kept,
+	 * as with getInstanceFromProperties. Failures of the download itself are left to the S3File to throw.
+	 */
+	public static class PropertiesLoader implements ContentListener {
+		private TaskResult tr;
+		private PropertiesParser parser;
+		private Logger logger;
+		private boolean failed;
+		public PropertiesLoader(OutputMask outputMask) {
+			this(outputMask, null);
+		}
+		/**
+		 * @param outputMask
+		 * @param logger Told of content that cannot be parsed, may be null.
+		 */
+		public PropertiesLoader(OutputMask outputMask, Logger logger) {
+			this.tr = new TaskResult(outputMask);
+			this.logger = logger;
+			this.parser = new PropertiesParser((String key, String value) -> tr.putMasked(key, value));
+		}
+		@Override
+		public void content(ByteBuffer chunk) {
+			if(failed)
+				return;
+			try {
+				parser.feed(chunk);
+			}
+			catch (IllegalArgumentException e) {
+				failed = true;
+				logMalformed(tr, e, logger);
+			}
+		}
+		/**
+		 * @return The result, once all of the content has been passed in.
+		 */
+		public TaskResult getResult() {
+			if( ! failed) {
+				try {
+					parser.finish();
+				}
+				catch (IllegalArgumentException e) {
+					logMalformed(tr, e, logger);
+				}
+				failed = true;
+			}
+			return tr;
+		}
+	}
+	
+	/**
+	 * Report properties content that could not be parsed. Only the count of the entries kept and the message of the 
+	 * parser are logged, never the content itself, which may be secret.
+	 */
+	private static void logMalformed(TaskResult tr, IllegalArgumentException e, Logger logger) {
+		if(logger != null) {
+			logger.log(String.format("WARNING!: Properties content could not be parsed after %d entries: %s", tr.results.size(), e.getMessage()));
+		}
+	}
+	
 	public static TaskResult getMergedInstance(List<TaskResult> results, OutputMask outputmask) {
 		TaskResult merged = new TaskResult(outputmask);
 		for(TaskResult mergeable : results) {
@@ -119,58 +227,185 @@ public class TaskResult {
 		return merged;
 	}
 	
-	public void putAll(Map<String, Object> results) {
-		if(results == null)
+	public void putAll(Map<String, Object> entries) {
+		if(entries == null)
 			return;
-		results.putAll(results);
+		for(Map.Entry<String, Object> entry : entries.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
 	}
 	
 	public void put(String key, Object value) {
-		results.put(key, value);
+		results.put(key, new TaskResultItem(key, value, outputMask));
+		invalidate();
+	}
+	
+	/**
+	 * Put an entry and apply the output mask to it right away, rather than when the results are first asked for.
+	 */
+	private void putMasked(String key, Object value) {
+		TaskResultItem item = new TaskResultItem(key, value, outputMask);
+		item.resolve();
+		results.put(key, item);
+		invalidate();
 	}
 	
 	public void replaceKey(String existingKey, String newKey) {
-		Object temp = results.get(existingKey);
-		if(temp == null)
+		TaskResultItem temp = results.get(existingKey);
+		if(temp == null || temp.getUnmaskedValue() == null)
 			return;
-		results.put(newKey, temp);
+		put(newKey, temp.getUnmaskedValue());
 		results.remove(existingKey);
+		invalidate();
 	}
-		
+	
+	private void invalidate() {
+		resultsView = null;
+		maskedView = null;
+		logView = null;
+	}
+	
+	/**
+	 * @return The results in the order they were put, as an unmodifiable list that is reused until the results change.
+	 */
 	public List<TaskResultItem> getResults() {
-		List<TaskResultItem> maskedResults = new ArrayList<TaskResultItem>();
-
-		for (Iterator<String> iterator = results.keySet().iterator(); iterator.hasNext();) {
-			String key = iterator.next();
-			Object value = results.get(key);
-			maskedResults.add(new TaskResultItem(key, value, outputMask));
+		if(resultsView == null) {
+			resultsView = Collections.unmodifiableList(new ArrayList<TaskResultItem>(results.values()));
 		}
-		return maskedResults;
+		return resultsView;
 	}
 	
+	/**
+	 * @return The masked results as an unmodifiable map that is reused until the results change. 
+	 * The output mask is applied to each value only once, to all values not yet masked in a single call.
+	 */
 	public Map<String, Object> getMaskedResults() {
-		Map<String, Object> map = new LinkedHashMap<String, Object>();
-		for(TaskResultItem result : getResults()) {
-			map.put(result.getKey(), result.getValue());
+		if(maskedView == null) {
+			maskPending(false);
+			Map<String, Object> map = new LinkedHashMap<String, Object>(capacity(results.size()));
+			for(TaskResultItem result : results.values()) {
+				map.put(result.getKey(), result.getValue());
+			}
+			maskedView = Collections.unmodifiableMap(map);
 		}
-		return map;
+		return maskedView;
 	}
 	
+	/**
+	 * @return The results masked for logging as an unmodifiable map that is reused until the results change.
+	 * The output mask is applied to each value only once, to all values not yet masked in a single call.
+	 */
 	public Map<String, Object> getMaskedResultsForLogging() {
-		Map<String, Object> map = new LinkedHashMap<String, Object>();
-		for(TaskResultItem result : getResults()) {
-			map.put(result.getKey(), result.getLogValue());
+		if(logView == null) {
+			maskPending(true);
+			Map<String, Object> map = new LinkedHashMap<String, Object>(capacity(results.size()));
+			for(TaskResultItem result : results.values()) {
+				map.put(result.getKey(), result.getLogValue());
+			}
+			logView = Collections.unmodifiableMap(map);
+		}
+		return logView;
+	}
+	
+	/**
+	 * Apply the output mask in bulk (see OutputMask.getOutputs) to the items that have not been masked yet.
+	 * @param forLogs
+	 */
+	private void maskPending(boolean forLogs) {
+		if(outputMask == null)
+			return;
+		Map<String, Object> pending = new LinkedHashMap<String, Object>(capacity(results.size()));
+		for(TaskResultItem item : results.values()) {
+			if( ! (forLogs ? item.isLogMasked() : item.isMasked())) {
+				pending.put(item.getKey(), item.getUnmaskedValue());
+			}
+		}
+		if(pending.isEmpty())
+			return;
+		Map<String, String> masked = forLogs ? outputMask.getLogOutputs(pending) : outputMask.getOutputs(pending);
+		for(Map.Entry<String, String> entry : masked.entrySet()) {
+			TaskResultItem item = results.get(entry.getKey());
+			if(forLogs)
+				item.setLogValue(entry.getValue());
+			else
+				item.setValue(entry.getValue());
 		}
-		return map;
 	}
 	
+	private static int capacity(int size) {
+		// Large enough to hold every entry without rehashing at the default load factor.
+		return (int) (size / 0.75f) + 1;
+	}
+	
+	/**
+	 * @return The unmasked values of the entries that the output mask masks in logs (including those it masks in output),
+	 * so that they can be scrubbed out of anything else that is logged (see ScrubbingLogger).
+	 * The base64 encoding of such a value is included too if it has been encoded.
+	 */
+	public List<String> getSensitiveValues() {
+		List<String> values = new ArrayList<String>();
+		for(TaskResultItem item : results.values()) {
+			Object value = item.getUnmaskedValue();
+			String logValue = item.getLogValue();
+			if(value != null && logValue != null && ! logValue.equals(String.valueOf(value))) {
+				values.add(String.valueOf(value));
+				if(item.isEncoded() && item.getValue() != null) {
+					values.add(item.getValue());
+				}
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * @return True if any masked value has a character that is not printable ascii (see ValueEncoder).
+	 * Values already scanned are not scanned again by convertToBase64.
+	 */
 	public boolean containsIllegalCharacters() {
+		// Mask whatever has not been masked yet in one call, rather than item by item.
+		getMaskedResults();
+		ValueEncoder encoder = getEncoder();
+		for(TaskResultItem item : results.values()) {
+			if(item.needsEncoding(encoder))
+				return true;
+		}
 		return false;
-		// TODO: Finish this.
 	}
-	public void convertToBase64() {
-		// TODO: Finish this.
+	
+	/**
+	 * Base64 encode the masked values that contain illegal characters, leaving the rest as they are.
+	 * @return The keys of the encoded entries.
+	 */
+	public List<String> convertToBase64() {
+		return convertToBase64(false);
 	}
+	
+	/**
+	 * Base64 encode masked values.
+	 * @param all Encode every value, not just those that contain illegal characters.
+	 * @return The keys of the encoded entries.
+	 */
+	public List<String> convertToBase64(boolean all) {
+		getMaskedResults();
+		ValueEncoder encoder = getEncoder();
+		List<String> keys = new ArrayList<String>();
+		for(TaskResultItem item : results.values()) {
+			if(item.isEncoded() || (all ? item.getValue() != null : item.needsEncoding(encoder))) {
+				item.encode(encoder);
+				keys.add(item.getKey());
+			}
+		}
+		invalidate();
+		return keys;
+	}
+	
+	private ValueEncoder getEncoder() {
+		if(encoder == null) {
+			encoder = new ValueEncoder();
+		}
+		return encoder;
+	}
+	
 	public boolean isValid() {
 		return ! results.isEmpty();
 	}
@@ -2,9 +2,23 @@ package edu.bu.ist.apps.aws.task;
 
 public class TaskResultItem {
 
+	/**
+	 * Don't mask anything - simply return the input value as the output value.
+	 */
+	private static final OutputMask NO_MASK = new OutputMask() {
+		@Override public String getLogOutput(String key, Object value) { return String.valueOf(value); }
+		@Override public String getOutput(String key, Object value) { return String.valueOf(value); }			
+	};
+
 	private String key;
 	private Object value;
 	private OutputMask outputmask;
+	private String maskedValue;
+	private String logValue;
+	private boolean masked;
+	private boolean logMasked;
+	private Boolean needsEncoding;
+	private boolean encoded;
 	
 	public TaskResultItem(String key, Object value) {
 		this(key, value, null);
@@ -14,30 +28,82 @@ public class TaskResultItem {
 		super();
 		this.key = key;
 		this.value = value;
-		if(outputmask == null) {
-			/**
-			 * Don't mask anything - simply return the input value as the output value.
-			 */
-			this.outputmask = new OutputMask() {
-				@Override public String getLogOutput(String key, Object value) { return String.valueOf(value); }
-				@Override public String getOutput(String key, Object value) { return String.valueOf(value); }			
-			};
-		}
-		else {
-			this.outputmask = outputmask;
-		}
+		this.outputmask = outputmask == null ? NO_MASK : outputmask;
 	}
 	
 	public String getKey() {
 		return key;
 	}
 	
+	/**
+	 * Apply the output mask now. Either way, it is only ever applied once.
+	 */
+	public void resolve() {
+		getValue();
+		getLogValue();
+	}
+	
 	public String getLogValue() {
-		return outputmask.getLogOutput(key, value);
+		if( ! logMasked) {
+			logValue = outputmask.getLogOutput(key, value);
+			logMasked = true;
+		}
+		return logValue;
 	}
 	
 	public String getValue() {
-		return outputmask.getOutput(key, value);
+		if( ! masked) {
+			maskedValue = outputmask.getOutput(key, value);
+			masked = true;
+		}
+		return maskedValue;
+	}
+	
+	boolean isMasked() {
+		return masked;
+	}
+	
+	boolean isLogMasked() {
+		return logMasked;
+	}
+	
+	/**
+	 * Set the value as already masked, ie: by the output mask applied to all the results at once.
+	 */
+	void setValue(String maskedValue) {
+		this.maskedValue = maskedValue;
+		masked = true;
+	}
+	
+	void setLogValue(String logValue) {
+		this.logValue = logValue;
+		logMasked = true;
+	}
+	
+	/**
+	 * @return True if the masked value has characters that must be base64 encoded. The value is only scanned once.
+	 */
+	boolean needsEncoding(ValueEncoder encoder) {
+		if(needsEncoding == null) {
+			needsEncoding = encoder.needsEncoding(getValue());
+		}
+		return needsEncoding;
+	}
+	
+	/**
+	 * Replace the masked value with its base64 encoding. The log value is left as it is.
+	 */
+	void encode(ValueEncoder encoder) {
+		String value = getValue();
+		if(encoded || value == null)
+			return;
+		maskedValue = encoder.encode(value);
+		encoded = true;
+		needsEncoding = false;
+	}
+	
+	public boolean isEncoded() {
+		return encoded;
 	}
 	
 	public Object getUnmaskedValue() {
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -11,6 +12,9 @@ import org.json.JSONObject;
 import edu.bu.ist.apps.aws.lambda.Logger;
 import edu.bu.ist.apps.aws.task.s3.S3File;
 import edu.bu.ist.apps.aws.task.s3.S3FileParms;
+import edu.bu.ist.apps.aws.task.s3.S3FileStream;
+import edu.bu.ist.apps.aws.task.s3.S3PrefixListing;
+import edu.bu.ist.apps.aws.task.s3.S3ResultStore;
 
 /**
  * A TaskRunner identifies and runs a single task.
@@ -23,6 +27,25 @@ import edu.bu.ist.apps.aws.task.s3.S3FileParms;
  */
 public class TaskRunner {
 	
+	public static final int DEFAULT_KEY_PARALLELISM = 8;
+	public static final String DEFAULT_KEY_PREFIX = "rsa-key-";
+	public static final String DEFAULT_KEY_SUFFIX = ".pub";
+	public static final String FAILED_KEYS = "FailedKeys";
+	
+	private Deadline deadline;
+	
+	public TaskRunner() {
+		this(Deadline.NONE);
+	}
+	
+	/**
+	 * @param deadline The time by which any task must be finished (ie: the lambda function times out), 
+	 * so that waiting on S3 is given up in time to respond.
+	 */
+	public TaskRunner(Deadline deadline) {
+		this.deadline = deadline;
+	}
+	
 	public TaskResult run(Task task, Object resourceProperties) throws Exception {
 		return run(task, resourceProperties, null);
 	}
@@ -38,42 +61,93 @@ public class TaskRunner {
 				 * There is a properties file sitting in an S3 bucket that contains the environment variables to 
 				 * pass to docker run command for container. Go get that file.
 				 */
-				S3File s3file = getS3FileResult(resourceProperties, logger);
+				S3FileParms parms = getS3FileParms(resourceProperties, null, logger);
 				maskJson = extractValue(resourceProperties, "outputmask", logger);
 				outputmask = OutputMask.getInstance(maskJson, logger);
-				result = TaskResult.getInstanceFromProperties(s3file.getBytes(), outputmask);				
+				if(parms.useRangedDownload()) {
+					// Parse and mask each range of the file as soon as it and the ranges before it are downloaded.
+					TaskResult.PropertiesLoader loader = new TaskResult.PropertiesLoader(outputmask, logger);
+					try(S3File s3file = new S3File(parms, loader)) {
+						s3file.load();
+						result = loader.getResult();
+					}
+				}
+				else {
+					// Parse and mask the file as it streams in rather than downloading it in full first.
+					try(S3FileStream s3stream = new S3FileStream(parms)) {
+						result = TaskResult.getInstanceFromProperties(s3stream.getInputStream(), outputmask, logger);
+						// Corrupted content fails here, before the result is used.
+						s3stream.verify();
+					}
+				}
 				break;
 			case EC2_PUBLIC_KEYS:
-				// TODO: The limit to a CustomResource response is 4k. Each public key is at least 2K.
-				// Therefore need to call this one at a time for each key from the cloudformation template.
-				// OR better yet, do this:
+				// NOTE: The limit to a CustomResource response is 4k. Each public key is at least 2K.
+				// Set the "pack: true" resource property to have the keys packed (see ResponsePacker) so that several 
+				// fit into one response. Otherwise call this one at a time for each key from the cloudformation template.
+				// OR do this:
 				// https://aws.amazon.com/blogs/devops/authenticated-file-downloads-with-cloudformation/
 				/**
 				 * There are a number of public rsa keys files sitting in an s3 bucket. Get each by name and
 				 * create a TaskResult that houses them all, indexed by their provided user names.
 				 */				
-				List<TaskResult> results = new ArrayList<TaskResult>();
 				maskJson = extractValue(resourceProperties, "outputmask", logger);
 				outputmask = OutputMask.getInstance(maskJson, logger);
 				String s3FileJson = extractValue(resourceProperties, "s3files", logger);
 				JSONArray keysinfo = new JSONObject(s3FileJson).getJSONArray("s3keyfiles");
+				int keyParallelism = getIntValue(resourceProperties, "keyparallelism", DEFAULT_KEY_PARALLELISM, logger);
+				
+				List<KeyFile> keyfiles = new ArrayList<KeyFile>();
+				for(int i=0; i<keysinfo.length(); i++) {
+					JSONObject keyinfo = keysinfo.getJSONObject(i);
+					keyfiles.add(new KeyFile(keyinfo.getString("user"), keyinfo.getString("keyfile")));
+				}
+				
+				Map<String, Exception> failedKeys = new LinkedHashMap<String, Exception>();
+				List<TaskResult> results = downloadPublicKeys(keyfiles, resourceProperties, outputmask, keyParallelism, failedKeys, logger);
+				
+				result = getKeysResult(results, failedKeys, "Could not download all public keys", resourceProperties, outputmask, logger);
+				break;
+			case EC2_PUBLIC_KEYS_BY_PREFIX:
+				/**
+				 * The public rsa key files are found by listing everything in the s3 bucket under a prefix (ie: "ecs/ssh-keys/"), 
+				 * so a new user can be added just by uploading their key there. The user name comes from the key file name, minus
+				 * a leading keyprefix and trailing keysuffix (ie: "ecs/ssh-keys/rsa-key-wrh.pub" is the key for user "wrh").
+				 * Only files with that prefix and suffix are downloaded. Each page of the listing is downloaded while 
+				 * the next page is being listed.
+				 */
+				maskJson = extractValue(resourceProperties, "outputmask", logger);
+				outputmask = OutputMask.getInstance(maskJson, logger);
+				String s3prefix = extractValue(resourceProperties, "s3prefix", logger);
+				String keyprefix = getStringValue(resourceProperties, "keyprefix", DEFAULT_KEY_PREFIX, logger);
+				String keysuffix = getStringValue(resourceProperties, "keysuffix", DEFAULT_KEY_SUFFIX, logger);
+				int parallelism = getIntValue(resourceProperties, "keyparallelism", DEFAULT_KEY_PARALLELISM, logger);
+				int pageSize = getIntValue(resourceProperties, "pagesize", S3PrefixListing.DEFAULT_PAGE_SIZE, logger);
+				
+				S3FileParms listParms = getS3FileParms(resourceProperties, s3prefix, logger);
+				if( ! listParms.isComplete()) {
+					listParms.logIssue();
+					throw new IllegalArgumentException(listParms.getIssueMessage().replace("filename", "s3prefix"));
+				}
+				S3PrefixListing listing = new S3PrefixListing(
+						listParms.getS3Client(), listParms.getBucketname(), s3prefix, pageSize, WorkerPool.getExecutor());
 				
-				// Get each s3file as its own TaskResult and merge them into a single TaskResult
-				keysinfo.forEach( (keyinfo) -> {
-					String username = ((JSONObject) keyinfo).getString("user");
-					String keyfile = ((JSONObject) keyinfo).getString("keyfile");
-					try {							
-						S3File downloaded = getS3FileResult(resourceProperties, keyfile, logger);
-						TaskResult tempResult = TaskResult.getInstanceFromBlob(downloaded.getBytes(), outputmask);
-						tempResult.replaceKey("blob", username);
-						results.add(tempResult);
-					} 
-					catch (Exception e) {
-						throw new RuntimeException(e);
+				List<TaskResult> pageResults = new ArrayList<TaskResult>();
+				Map<String, Exception> failedPrefixKeys = new LinkedHashMap<String, Exception>();
+				while(listing.hasNextPage()) {
+					List<KeyFile> page = new ArrayList<KeyFile>();
+					for(String key : listing.nextPage()) {
+						String name = key.substring(key.lastIndexOf('/') + 1);
+						if(name.startsWith(keyprefix) && name.endsWith(keysuffix) && name.length() > keyprefix.length() + keysuffix.length()) {
+							page.add(new KeyFile(name.substring(keyprefix.length(), name.length() - keysuffix.length()), key));
+						}
 					}
-				});
+					pageResults.addAll(downloadPublicKeys(page, resourceProperties, outputmask, parallelism, failedPrefixKeys, logger));
+				}
+				log(logger, "Found " + (pageResults.size() + failedPrefixKeys.size()) + " public keys under " + s3prefix);
 				
-				result = TaskResult.getMergedInstance(results, outputmask);
+				result = getKeysResult(pageResults, failedPrefixKeys, "Could not download all public keys under " + s3prefix, 
+						resourceProperties, outputmask, logger);
 				break;
 			case UNKNOWN:
 				
@@ -83,11 +157,109 @@ public class TaskRunner {
 		return result;
 	}
 	
-	private S3File getS3FileResult(Object resourceProperties, Logger logger) throws Exception {
-		return getS3FileResult(resourceProperties, null, logger);
+	/**
+	 * Merge the downloaded keys into one result. Every key that could not be downloaded is reported, not just the first.
+	 * If the "allowpartial: true" resource property is set, the keys that were downloaded are returned anyway, along 
+	 * with a FailedKeys entry listing those that were not, unless none were downloaded at all.
+	 * @throws TaskFailureException If any key could not be downloaded and a partial result is not allowed.
+	 */
+	private TaskResult getKeysResult(List<TaskResult> results, Map<String, Exception> failedKeys, String message, 
+			Object resourceProperties, OutputMask outputmask, Logger logger) throws TaskFailureException {
+		
+		if(failedKeys.isEmpty()) {
+			return TaskResult.getMergedInstance(results, outputmask);
+		}
+		TaskFailureException failure = new TaskFailureException(message, failedKeys);
+		boolean allowPartial = Boolean.parseBoolean(getStringValue(resourceProperties, "allowpartial", "false", logger).trim());
+		if( ! allowPartial || results.isEmpty()) {
+			throw failure;
+		}
+		log(logger, "Returning a partial result. " + failure.getMessage());
+		TaskResult result = TaskResult.getMergedInstance(results, outputmask);
+		result.put(FAILED_KEYS, String.join(", ", failedKeys.keySet()));
+		return result;
+	}
+	
+	/**
+	 * The name of a user and the s3 file that holds their public key.
+	 */
+	private static class KeyFile {
+		private String user;
+		private String keyfile;
+		private KeyFile(String user, String keyfile) {
+			this.user = user;
+			this.keyfile = keyfile;
+		}
+		@Override
+		public String toString() {
+			return user + " (" + keyfile + ")";
+		}
 	}
+	
+	/**
+	 * Download each public key file concurrently as its own TaskResult, keyed by user name.
+	 * @return The TaskResults in the same order as the key files, regardless of the order the downloads finished in.
+	 * Any key file that could not be downloaded is left out, and its exception is added to failedKeys.
+	 */
+	private List<TaskResult> downloadPublicKeys(List<KeyFile> keyfiles, Object resourceProperties, OutputMask outputmask, 
+			int parallelism, Map<String, Exception> failedKeys, Logger logger) throws InterruptedException {
+		
+		TaskResult[] downloads = new TaskResult[keyfiles.size()];
+		Map<Integer, Exception> failures = WorkerPool.invokeAll(keyfiles.size(), parallelism, false, (int index) -> {
+			KeyFile keyfile = keyfiles.get(index);
+			if(deadline.isExpired()) {
+				// Leave time to respond with whatever has been downloaded so far.
+				throw new TimeoutException("Out of time before downloading " + keyfile);
+			}
+			try(S3File downloaded = getS3FileResult(resourceProperties, keyfile.keyfile, logger)) {
+				TaskResult tempResult = TaskResult.getInstanceFromBlob(downloaded.getBuffer(), outputmask);
+				tempResult.replaceKey("blob", keyfile.user);
+				downloads[index] = tempResult;
+			}
+		});
+		
+		for(Map.Entry<Integer, Exception> failure : failures.entrySet()) {
+			failedKeys.put(keyfiles.get(failure.getKey()).toString(), failure.getValue());
+		}
 		
+		List<TaskResult> results = new ArrayList<TaskResult>();
+		for(TaskResult download : downloads) {
+			if(download != null)
+				results.add(download);
+		}
+		return results;
+	}
+	
+	/**
+	 * Get the store to write results too large for a custom resource response to, if the resource properties name 
+	 * a resultbucket (and optionally a resultprefix). The store uses the same region and credentials as the task.
+	 * @param resourceProperties
+	 * @param logger
+	 * @return The store, or null if no resultbucket is named.
+	 */
+	public ResultStore getResultStore(Object resourceProperties, Logger logger) {
+		String resultBucket = extractValue(resourceProperties, "resultbucket", logger);
+		if(resultBucket == null)
+			return null;
+		String resultPrefix = getStringValue(resourceProperties, "resultprefix", S3ResultStore.DEFAULT_PREFIX, logger);
+		S3FileParms parms = getS3FileParms(resourceProperties, resultPrefix, logger).setBucketname(resultBucket);
+		if( ! parms.isComplete()) {
+			parms.logIssue();
+			throw new IllegalArgumentException(parms.getIssueMessage().replace("filename", "resultprefix"));
+		}
+		return new S3ResultStore(parms.getS3Client(), resultBucket, resultPrefix);
+	}
+	
+	private void log(Logger logger, String message) {
+		if(logger != null)
+			logger.log(message);
+	}
+	
 	private S3File getS3FileResult(Object resourceProperties, String s3filename, Logger logger) throws Exception {
+		return new S3File(getS3FileParms(resourceProperties, s3filename, logger));
+	}
+		
+	private S3FileParms getS3FileParms(Object resourceProperties, String s3filename, Logger logger) {
 		/**
 		 *  Get all possible expected parameters from the resourceProperties object.
 		 *  NOTE: 
@@ -110,18 +282,87 @@ public class TaskRunner {
 		String profile = extractValue(resourceProperties, "profile", logger); // Needed if running locally.
 		String accessKey = extractValue(resourceProperties, "accesskey", logger); // Needed if running locally.
 		String secretKey = extractValue(resourceProperties, "secretkey", logger); // Needed if running locally.
+		Long partSize = getLongValue(resourceProperties, "partsize", logger); // Optional: download large files in ranges.
+		Long parallelism = getLongValue(resourceProperties, "parallelism", logger); // Optional: ranges downloaded at once.
+		Long spoolThreshold = getLongValue(resourceProperties, "spoolthreshold", logger); // Optional: size to spool to /tmp above.
+		String versionId = extractValue(resourceProperties, "s3versionid", logger); // Optional: defaults to the latest version.
+		String cache = extractValue(resourceProperties, "cache", logger); // Optional: set to false to bypass the object cache.
+		String decompress = extractValue(resourceProperties, "decompress", logger); // Optional: set to false to keep gzip/deflate content as is.
+		String verify = extractValue(resourceProperties, "verify", logger); // Optional: set to false to skip the MD5 check of downloads.
+		String hedge = extractValue(resourceProperties, "hedge", logger); // Optional: set to true to hedge slow requests and retry failed ones.
+		Long hedgeAfter = getLongValue(resourceProperties, "hedgeafter", logger); // Optional: millis to wait before hedging, until latencies are known.
+		Long maxRetries = getLongValue(resourceProperties, "maxretries", logger); // Optional: retries of a failed request when hedging.
 		
 		// profile and accessKey/secretKey can be null if running as part of a cloud-formation execution.
-		S3File s3file = new S3File(new S3FileParms()
+		S3FileParms parms = new S3FileParms()
 				.setRegion(region)
 				.setBucketname(s3bucket)
 				.setFilename(s3filename)
 				.setLogger(logger)
 				.setProfilename(profile)
 				.setAccessKey(accessKey)
-				.setSecretKey(secretKey));
+				.setSecretKey(secretKey)
+				.setVersionId(versionId)
+				.setDeadline(deadline);
 		
-		return s3file;
+		if(partSize != null) {
+			parms.setPartSize(partSize);
+		}
+		if(parallelism != null) {
+			parms.setParallelism(parallelism.intValue());
+		}
+		if(spoolThreshold != null) {
+			parms.setSpoolThreshold(spoolThreshold);
+		}
+		if(cache != null) {
+			parms.setUseCache(Boolean.parseBoolean(cache.trim()));
+		}
+		if(decompress != null) {
+			parms.setDecompress(Boolean.parseBoolean(decompress.trim()));
+		}
+		if(verify != null) {
+			parms.setVerifyChecksum(Boolean.parseBoolean(verify.trim()));
+		}
+		if(hedge != null) {
+			parms.setTailLatencyMode(Boolean.parseBoolean(hedge.trim()));
+		}
+		if(hedgeAfter != null) {
+			parms.setHedgeAfterMillis(hedgeAfter);
+		}
+		if(maxRetries != null) {
+			parms.setMaxRetries(maxRetries.intValue());
+		}
+		
+		return parms;
+	}
+	
+	private String getStringValue(Object resourceProperties, String name, String defaultValue, Logger logger) {
+		String value = extractValue(resourceProperties, name, logger);
+		return value == null ? defaultValue : value;
+	}
+	
+	private int getIntValue(Object resourceProperties, String name, int defaultValue, Logger logger) {
+		Long value = getLongValue(resourceProperties, name, logger);
+		if(value == null || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			return defaultValue;
+		return value.intValue();
+	}
+	
+	/**
+	 * @return The numeric value of the named property, or null if it is missing or not a number (logged as a warning), 
+	 * so that the default applies, as it would in S3FileParms.
+	 */
+	private Long getLongValue(Object resourceProperties, String name, Logger logger) {
+		String value = extractValue(resourceProperties, name, logger);
+		if(value == null || value.trim().isEmpty())
+			return null;
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e) {
+			log(logger, "WARNING!: " + name + " is not a number: " + value);
+			return null;
+		}
 	}
 	
 	private String extractValue(Object resourceProperties, String name, Logger logger) {
@@ -169,6 +410,21 @@ public class TaskRunner {
 				+ "  }"
 				+ "}}");
 		result = runner.run(Task.EC2_PUBLIC_KEYS, resourceProperties, logger);		
-		System.out.println(result);				
+		System.out.println(result);
+		
+		
+		// 3) Run a task that gets every public ssh key found under a prefix.
+		resourceProperties.remove("s3files");
+		resourceProperties.put("s3prefix", "ecs/ssh-keys/");
+		resourceProperties.put("outputmask", "{"
+				+ "class: edu.bu.ist.apps.aws.task.BasicOutputMask, "
+				+ "parameters: { "
+				+ "  fieldsToMask: { "
+				+ "    full: [], "
+				+ "    logs: [all]"
+				+ "  }"
+				+ "}}");
+		result = runner.run(Task.EC2_PUBLIC_KEYS_BY_PREFIX, resourceProperties, logger);		
+		System.out.println(result);
 	}
 }
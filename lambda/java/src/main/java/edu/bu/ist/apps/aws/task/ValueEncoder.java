@@ -0,0 +1,166 @@
+package edu.bu.ist.apps.aws.task;
+
+/**
+ * Finds the result values that cannot be passed back to cloudformation as they are, and base64 encodes them.
+ * <p>
+ * A value needs encoding only if it contains a character that the response cannot carry: a control character other 
+ * than a tab or line break (ie: the NUL bytes of binary content), or half of a surrogate pair without the other half.
+ * Line breaks, tabs and non-ascii characters are carried by the json of the response, and cloudformation cannot 
+ * decode base64, so a value that has only those (ie: a public key, which ends with a line break) is returned as it is.
+ * <p>
+ * Values are scanned a word at a time: four characters are packed into a long and tested together with a few 
+ * arithmetic operations on their 16 bit lanes, so that the common case of a plain value costs one branch per four 
+ * characters. Only a word with a lane below a space or at 0x8000 and above is checked character by character.
+ * <p>
+ * A value is encoded as the base64 of its UTF-8 bytes (the same as Base64.getEncoder().encodeToString(s.getBytes(UTF_8))),
+ * but without the intermediate byte array: each character is converted to UTF-8 and fed into the base64 output as it
+ * is read, and the output is written to a buffer that is reused from one value to the next.
+ * <p>
+ * NOTE: Not thread-safe, since the buffers are reused. Use one instance per thread.
+ *
+ * @author wrh
+ *
+ */
+public class ValueEncoder {
+
+	/**
+	 * The response attribute that lists the keys of the values that were base64 encoded (comma separated), so that 
+	 * whatever consumes the response can tell which values to decode.
+	 */
+	public static final String ENCODED_KEYS = "EncodedKeys";
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	// Masks for four 16 bit lanes of a long.
+	private static final long SPACES = 0x0020002000200020L;
+	private static final long BIT_15 = 0x8000800080008000L;
+
+	private char[] chars = new char[512];
+	private char[] out = new char[512];
+	private int pos;
+	private int bits;
+	private int byteCount;
+
+	/**
+	 * @param s
+	 * @return True if the value has any character that the response cannot carry.
+	 */
+	public boolean needsEncoding(String s) {
+		if(s == null)
+			return false;
+		int len = s.length();
+		for(int start = 0; start < len; start += chars.length) {
+			int n = Math.min(chars.length, len - start);
+			s.getChars(start, start + n, chars, 0);
+			int i = 0;
+			for( ; i + 4 <= n; i += 4) {
+				long word = chars[i] | (long) chars[i + 1] << 16 | (long) chars[i + 2] << 32 | (long) chars[i + 3] << 48;
+				if(mayBeIllegal(word) && isIllegal(s, start + i, 4))
+					return true;
+			}
+			if(i < n && isIllegal(s, start + i, n - i))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param word Four characters, one per 16 bit lane.
+	 * @return False if none of the characters can be illegal, which is when every lane is from a space up to 0x7FFF.
+	 */
+	static boolean mayBeIllegal(long word) {
+		// Subtracting a space sets bit 15 of a lane below 0x20 that did not have it set already (a borrow can only spill
+		// into a higher lane when a lower one has already matched). A lane that has bit 15 set may be a surrogate.
+		return ((((word - SPACES) & ~word) | word) & BIT_15) != 0;
+	}
+
+	/**
+	 * @return True if any of the count characters of the value from the offset cannot be carried by the response.
+	 * The characters either side of them are looked at to tell whether a surrogate at either end is paired.
+	 */
+	private static boolean isIllegal(String s, int offset, int count) {
+		for(int i = offset; i < offset + count; i++) {
+			char c = s.charAt(i);
+			if(isIllegal(c))
+				return true;
+			if(Character.isHighSurrogate(c) && (i + 1 == s.length() || ! Character.isLowSurrogate(s.charAt(i + 1))))
+				return true;
+			if(Character.isLowSurrogate(c) && (i == 0 || ! Character.isHighSurrogate(s.charAt(i - 1))))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return True for a control character other than a tab or line break.
+	 */
+	static boolean isIllegal(char c) {
+		return c < 0x20 && c != '\t' && c != '\n' && c != '\r';
+	}
+
+	/**
+	 * @param s
+	 * @return The base64 encoding of the UTF-8 bytes of the value.
+	 */
+	public String encode(String s) {
+		int len = s.length();
+		// No character takes more than 3 bytes (a surrogate pair takes 4 for 2), so 3 bytes (4 characters out) per character is enough.
+		if(out.length < len * 4) {
+			out = new char[Math.max(len * 4, out.length * 2)];
+		}
+		pos = 0;
+		bits = 0;
+		byteCount = 0;
+		for(int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				put(c);
+			}
+			else if(c < 0x800) {
+				put(0xC0 | c >> 6);
+				put(0x80 | c & 0x3F);
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				put(0xF0 | cp >> 18);
+				put(0x80 | cp >> 12 & 0x3F);
+				put(0x80 | cp >> 6 & 0x3F);
+				put(0x80 | cp & 0x3F);
+			}
+			else if(Character.isSurrogate(c)) {
+				// An unpaired surrogate cannot be encoded, so is replaced as String.getBytes would.
+				put('?');
+			}
+			else {
+				put(0xE0 | c >> 12);
+				put(0x80 | c >> 6 & 0x3F);
+				put(0x80 | c & 0x3F);
+			}
+		}
+		if(byteCount == 1) {
+			out[pos++] = ALPHABET[bits >> 2 & 0x3F];
+			out[pos++] = ALPHABET[bits << 4 & 0x3F];
+			out[pos++] = '=';
+			out[pos++] = '=';
+		}
+		else if(byteCount == 2) {
+			out[pos++] = ALPHABET[bits >> 10 & 0x3F];
+			out[pos++] = ALPHABET[bits >> 4 & 0x3F];
+			out[pos++] = ALPHABET[bits << 2 & 0x3F];
+			out[pos++] = '=';
+		}
+		return new String(out, 0, pos);
+	}
+
+	private void put(int b) {
+		bits = bits << 8 | b;
+		if(++byteCount == 3) {
+			out[pos++] = ALPHABET[bits >> 18 & 0x3F];
+			out[pos++] = ALPHABET[bits >> 12 & 0x3F];
+			out[pos++] = ALPHABET[bits >> 6 & 0x3F];
+			out[pos++] = ALPHABET[bits & 0x3F];
+			bits = 0;
+			byteCount = 0;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package edu.bu.ist.apps.aws.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide pool of daemon threads for running a batch of indexed units of work concurrently.
+ * <p>
+ * The pool is held in static scope so that its threads survive across warm lambda invocations instead of being
+ * created and torn down with every request. Concurrency for any one batch is bounded by the parallelism value
+ * passed in, not by the size of the pool: that number of workers is started (the calling thread being one of them),
+ * and each worker repeatedly claims the next unclaimed index until there are none left.
+ *
+ * @author wrh
+ *
+ */
+public class WorkerPool {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "worker-pool-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// A single thread is plenty for running the occasional short action at a deadline (see schedule).
+	private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "worker-pool-scheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		// Actions are mostly cancelled (ie: the download finished in time), so do not keep them queued until they are due.
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * A single unit of work identified by its position in the batch.
+	 */
+	@FunctionalInterface
+	public interface IndexedTask {
+		public void run(int index) throws Exception;
+	}
+
+	/**
+	 * Restrict default constructor
+	 */
+	private WorkerPool() {
+		super();
+	}
+
+	public static ExecutorService getExecutor() {
+		return pool;
+	}
+
+	/**
+	 * Run a single piece of work on the pool, waiting for it no longer than the deadline allows. If the deadline passes
+	 * first, the work is cancelled (its thread is interrupted) so that the caller can still respond in time. Interrupting
+	 * does not stop work on other threads, nor a blocked socket read, so S3 requests are aborted at their own deadline 
+	 * (see S3Requester), and the work must not depend on anything that the caller goes on to change.
+	 *
+	 * @param work
+	 * @param deadline
+	 * @return What the work returned.
+	 * @throws TimeoutException If the deadline passed before the work finished.
+	 * @throws ExecutionException If the work failed. The cause is what it threw.
+	 * @throws InterruptedException If the calling thread is interrupted while waiting. The work is cancelled.
+	 */
+	public static <T> T call(Callable<T> work, Deadline deadline) throws TimeoutException, ExecutionException, InterruptedException {
+		Future<T> future = pool.submit(work);
+		try {
+			if( ! deadline.isLimited()) {
+				return future.get();
+			}
+			return future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+		}
+		finally {
+			// Has no effect if the work finished.
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Run a short action (ie: aborting a download) once the deadline passes, unless it is cancelled first.
+	 * Nothing is run for a deadline with no time limit.
+	 *
+	 * @param action
+	 * @param deadline
+	 * @return The scheduled action, to cancel once it is no longer needed.
+	 */
+	public static ScheduledFuture<?> schedule(Runnable action, Deadline deadline) {
+		long delay = deadline.isLimited() ? deadline.getRemainingMillis() : Long.MAX_VALUE;
+		return scheduler.schedule(action, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run the task once for every index from 0 to taskCount - 1, with no more than parallelism indexes in progress at once.
+	 * This method does not return until every claimed index has finished.
+	 *
+	 * @param taskCount The number of indexes to run.
+	 * @param parallelism The maximum number of indexes to run at the same time.
+	 * @param failFast If true, no further indexes are claimed once any index has failed.
+	 * @param task The work to run for each index.
+	 * @return The exceptions thrown by any failed indexes, ordered by index. Empty if all succeeded.
+	 * @throws InterruptedException If the calling thread is interrupted while waiting. Outstanding work is cancelled.
+	 */
+	public static Map<Integer, Exception> invokeAll(int taskCount, int parallelism, boolean failFast, IndexedTask task) throws InterruptedException {
+
+		Map<Integer, Exception> failures = Collections.synchronizedMap(new TreeMap<Integer, Exception>());
+		if(taskCount <= 0)
+			return failures;
+
+		AtomicInteger nextIndex = new AtomicInteger();
+		AtomicBoolean failed = new AtomicBoolean();
+		Runnable worker = () -> {
+			int index;
+			while((index = nextIndex.getAndIncrement()) < taskCount) {
+				if(failFast && failed.get())
+					return;
+				if(Thread.currentThread().isInterrupted())
+					return;
+				try {
+					task.run(index);
+				}
+				catch(Exception e) {
+					failures.put(index, e);
+					failed.set(true);
+				}
+			}
+		};
+
+		int workers = Math.max(1, Math.min(parallelism, taskCount));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for(int i=1; i<workers; i++) {
+				futures.add(pool.submit(worker));
+			}
+			// The calling thread would otherwise sit idle, so make it one of the workers.
+			worker.run();
+			for(Future<?> f : futures) {
+				try {
+					f.get();
+				}
+				catch (ExecutionException e) {
+					// Should not happen since the worker catches everything thrown by the task.
+					failures.put(-1, e);
+				}
+			}
+		}
+		finally {
+			for(Future<?> f : futures) {
+				f.cancel(true);
+			}
+		}
+
+		if(Thread.interrupted()) {
+			throw new InterruptedException("Interrupted while waiting on " + taskCount + " tasks");
+		}
+
+		return failures;
+	}
+}
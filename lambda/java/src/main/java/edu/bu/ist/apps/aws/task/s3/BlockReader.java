@@ -0,0 +1,134 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the content of an InputStream in large blocks rather than one byte at a time.
+ * If the length of the content is known ahead of time (ie: the Content-Length of an S3 object), the
+ * destination array is allocated at exactly that size and handed back as is, without any intermediate
+ * buffer and without the extra copy that ByteArrayOutputStream.toByteArray() would make.
+ * <p>
+ * NOTE: A block read that returns 0 bytes is treated as a signal to fall back to a single byte read for that
+ * iteration. A real InputStream only does this for a zero length request, but a mocked S3ObjectInputStream
+ * that only stubs read() will return 0 from the unstubbed read(byte[], int, int), and so can still be consumed.
+ *
+ * @author wrh
+ *
+ */
+public class BlockReader {
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	private static final int UNKNOWN_LENGTH_INITIAL_SIZE = 8 * 1024;
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private int blockSize;
+
+	public BlockReader() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	public BlockReader(int blockSize) {
+		if(blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be greater than zero: " + blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Read the stream until it is exhausted.
+	 * @param in
+	 * @param contentLength The expected number of bytes, or a negative value if not known.
+	 * @return The content of the stream.
+	 * @throws IOException
+	 */
+	public byte[] readFully(InputStream in, long contentLength) throws IOException {
+		return readFully(in, contentLength, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Read the stream until it is exhausted, or until limit bytes have been read, whichever comes first.
+	 * Reading stops at the limit, so the rest of the stream is left to be read by other means (ie: spooled to a file).
+	 * @param in
+	 * @param contentLength The expected number of bytes, or a negative value if not known.
+	 * @param limit The most bytes to read.
+	 * @return The content of the stream, or the first limit bytes of it.
+	 * @throws IOException
+	 */
+	public byte[] readFully(InputStream in, long contentLength, int limit) throws IOException {
+
+		if(contentLength > MAX_ARRAY_SIZE) {
+			throw new IOException("Content length of " + contentLength + " bytes is too large to hold in a byte array");
+		}
+
+		byte[] buf = new byte[(int) Math.min(contentLength >= 0 ? contentLength : UNKNOWN_LENGTH_INITIAL_SIZE, limit)];
+		int count = 0;
+
+		while(count < limit) {
+			if(count == buf.length) {
+				// Either the content length was exactly right, in which case the stream should now be at its end,
+				// or the content length was unknown (or wrong) and the array must grow.
+				int b = in.read();
+				if(b == -1) {
+					break;
+				}
+				buf = grow(buf, count + 1, limit);
+				buf[count++] = (byte) b;
+				continue;
+			}
+			int n = read(in, buf, count, Math.min(blockSize, buf.length - count));
+			if(n == -1) {
+				break;
+			}
+			count += n;
+		}
+
+		return count == buf.length ? buf : Arrays.copyOf(buf, count);
+	}
+
+	/**
+	 * Read exactly len bytes of the stream into the supplied array, starting at the specified offset.
+	 * This allows several streams (ie: the byte ranges of a single S3 object) to fill their own regions of a shared array.
+	 * @throws IOException If the stream ends before len bytes have been read.
+	 */
+	public void readFully(InputStream in, byte[] dest, int off, int len) throws IOException {
+		int count = 0;
+		while(count < len) {
+			int n = read(in, dest, off + count, Math.min(blockSize, len - count));
+			if(n == -1) {
+				throw new IOException("Stream ended after " + count + " of " + len + " expected bytes");
+			}
+			count += n;
+		}
+	}
+
+	/**
+	 * Perform a single block read into the supplied array.
+	 * @return The number of bytes read, or -1 if the end of the stream has been reached.
+	 * @throws IOException
+	 */
+	int read(InputStream in, byte[] buf, int off, int len) throws IOException {
+		int n = in.read(buf, off, len);
+		if(n == 0 && len > 0) {
+			int b = in.read();
+			if(b == -1) {
+				return -1;
+			}
+			buf[off] = (byte) b;
+			return 1;
+		}
+		return n;
+	}
+
+	private byte[] grow(byte[] buf, int minCapacity, int limit) throws IOException {
+		if(minCapacity > MAX_ARRAY_SIZE) {
+			throw new IOException("Content is too large to hold in a byte array");
+		}
+		int newCapacity = (int) Math.min((long) buf.length << 1, MAX_ARRAY_SIZE);
+		return Arrays.copyOf(buf, Math.min(Math.max(Math.max(newCapacity, minCapacity), UNKNOWN_LENGTH_INITIAL_SIZE), limit));
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+}
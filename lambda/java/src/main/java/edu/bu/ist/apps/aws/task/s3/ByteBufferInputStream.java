@@ -0,0 +1,51 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads from a ByteBuffer, such as the MappedByteBuffer of a spooled S3File, 
+ * so that stream-based consumers can read its content without first copying it into a byte array.
+ * The position of the supplied buffer is not affected.
+ * 
+ * @author wrh
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buf;
+	
+	public ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf.duplicate();
+	}
+
+	@Override
+	public int read() {
+		if( ! buf.hasRemaining())
+			return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if(len == 0)
+			return 0;
+		if( ! buf.hasRemaining())
+			return -1;
+		int n = Math.min(len, buf.remaining());
+		buf.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+}
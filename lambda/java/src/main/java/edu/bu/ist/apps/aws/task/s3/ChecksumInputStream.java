@@ -0,0 +1,155 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+
+/**
+ * Computes the MD5 digest of the content of an S3 object as it is read, so verifying the content costs no extra 
+ * pass over it. When the end of the stream is reached, the digest is compared to the ETag of the object and a 
+ * ChecksumMismatchException is thrown if they differ.
+ * <p>
+ * The ETag of an object is only its MD5 digest if the object was uploaded in a single part and is not encrypted
+ * with SSE-KMS or SSE-C, so getInstance returns null for any other object, which therefore cannot be verified.
+ * <p>
+ * The SDK also validates the MD5 of whole object downloads, and is left to do so: it offers no way to switch that off
+ * for a single request, and our own check does not cover every read (ie: when verify is off).
+ * <p>
+ * NOTE: S3 does not return CRC32C checksums through the version of the SDK in use (and java.util.zip.CRC32C is 
+ * not available before java 9), so MD5 is the only checksum there is to verify against.
+ *
+ * @author wrh
+ *
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+	private MessageDigest md5;
+	private String expected;
+	private String filename;
+	private boolean complete;
+	private ChecksumMismatchException failure;
+
+	private ChecksumInputStream(InputStream in, String expected, String filename) {
+		super(in);
+		this.expected = expected;
+		this.filename = filename;
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param in The content of the object exactly as stored (ie: before any decompression).
+	 * @param metadata
+	 * @param filename
+	 * @return A stream that verifies the content as it is read, or null if the ETag of the object is not an MD5 digest.
+	 */
+	public static ChecksumInputStream getInstance(InputStream in, ObjectMetadata metadata, String filename) {
+		String etag = getVerifiableEtag(metadata);
+		return etag == null ? null : new ChecksumInputStream(in, etag, filename);
+	}
+
+	/**
+	 * @return The ETag of the object if it is the MD5 digest of its content, otherwise null.
+	 */
+	public static String getVerifiableEtag(ObjectMetadata metadata) {
+		if(metadata == null || metadata.getETag() == null)
+			return null;
+		if(SSEAlgorithm.KMS.getAlgorithm().equals(metadata.getSSEAlgorithm()) || metadata.getSSECustomerAlgorithm() != null)
+			return null;
+		String etag = metadata.getETag();
+		if(etag.length() == 34 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			etag = etag.substring(1, 33);
+		}
+		// A multipart ETag is a digest of digests with a part count suffix (ie: "...-5"), so is neither 32 characters nor hex.
+		if(etag.length() != 32)
+			return null;
+		for(int i=0; i<etag.length(); i++) {
+			if(Character.digit(etag.charAt(i), 16) == -1)
+				return null;
+		}
+		return etag;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b == -1)
+			complete();
+		else
+			md5.update((byte) b);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if(n == -1)
+			complete();
+		else
+			md5.update(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// Skipped content must still be digested.
+		byte[] buf = new byte[(int) Math.min(n, BlockReader.DEFAULT_BLOCK_SIZE)];
+		long skipped = 0;
+		while(skipped < n) {
+			int count = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if(count == -1)
+				break;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read whatever remains of the stream (ie: the trailer of a compressed object, which a decompressor may never ask for),
+	 * and compare the digest of the entire content to the ETag.
+	 * @throws ChecksumMismatchException If the content does not match.
+	 * @throws IOException
+	 */
+	public void verify() throws IOException {
+		byte[] buf = new byte[BlockReader.DEFAULT_BLOCK_SIZE];
+		while( ! complete) {
+			// Not using read(byte[]) alone: a mocked stream can return 0 rather than -1 at its end.
+			if(read(buf, 0, buf.length) <= 0 && read() == -1)
+				break;
+		}
+		complete();
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	private void complete() throws ChecksumMismatchException {
+		if( ! complete) {
+			complete = true;
+			StringBuilder actual = new StringBuilder();
+			for(byte b : md5.digest()) {
+				actual.append(String.format("%02x", b));
+			}
+			if( ! expected.equalsIgnoreCase(actual.toString())) {
+				failure = new ChecksumMismatchException(filename, expected, actual.toString());
+			}
+		}
+		if(failure != null)
+			throw failure;
+	}
+}
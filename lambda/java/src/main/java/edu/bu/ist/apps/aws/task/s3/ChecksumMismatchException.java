@@ -0,0 +1,37 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the content downloaded for an S3 object does not match the checksum S3 holds for it, 
+ * meaning the content was corrupted somewhere between S3 and here.
+ *
+ * @author wrh
+ *
+ */
+public class ChecksumMismatchException extends IOException {
+
+	private static final long serialVersionUID = -3155460862343213877L;
+	private final String filename;
+	private final String expected;
+	private final String actual;
+
+	public ChecksumMismatchException(String filename, String expected, String actual) {
+		super("Content of " + filename + " does not match its checksum. Expected MD5 " + expected + ", but was " + actual);
+		this.filename = filename;
+		this.expected = expected;
+		this.actual = actual;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public String getExpected() {
+		return expected;
+	}
+
+	public String getActual() {
+		return actual;
+	}
+}
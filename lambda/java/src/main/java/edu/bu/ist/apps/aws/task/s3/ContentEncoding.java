@@ -0,0 +1,119 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * The compression, if any, that an S3 object was stored with. This is taken from the Content-Encoding of the object,
+ * or failing that, from the extension of its name (ie: "environment.variables.s3.gz").
+ * A compressed object is decompressed as it is read from the download stream, so there is no separate step that
+ * holds the compressed content in memory.
+ * <p>
+ * NOTE: Only the codecs available in java.util.zip are supported. A faster codec such as LZ4 or zstd would need an
+ * additional dependency, but would be added here as another constant.
+ *
+ * @author wrh
+ *
+ */
+public enum ContentEncoding {
+
+	NONE(new String[] {}, new String[] {}),
+	
+	GZIP(new String[] { "gzip", "x-gzip" }, new String[] { ".gz", ".gzip" }) {
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+	},
+	
+	DEFLATE(new String[] { "deflate" }, new String[] { ".zz", ".deflate" }) {
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						// Release the native memory of an inflater that was not created by InflaterInputStream itself.
+						inf.end();
+					}
+				}
+			};
+		}
+	};
+	
+	private static final int BUFFER_SIZE = BlockReader.DEFAULT_BLOCK_SIZE;
+	
+	private String[] encodings;
+	private String[] extensions;
+	
+	private ContentEncoding(String[] encodings, String[] extensions) {
+		this.encodings = encodings;
+		this.extensions = extensions;
+	}
+	
+	/**
+	 * @return A stream of the decompressed content of the supplied stream. Closing it closes the supplied stream.
+	 * @throws IOException
+	 */
+	public InputStream decode(InputStream in) throws IOException {
+		return in;
+	}
+	
+	public boolean isCompressed() {
+		return this != NONE;
+	}
+	
+	/**
+	 * @param parms
+	 * @param metadata The metadata of the downloaded object, may be null.
+	 * @return The encoding the content of the file must be decoded with, which is always NONE if decompression is off.
+	 */
+	public static ContentEncoding getInstance(S3FileParms parms, ObjectMetadata metadata) {
+		if(parms.useDecompress()) {
+			return getInstance(metadata, parms.getFilename());
+		}
+		return NONE;
+	}
+	
+	/**
+	 * @param metadata The metadata of the object, may be null.
+	 * @param filename The name of the object.
+	 * @return The encoding named by the Content-Encoding of the object, otherwise the encoding implied by the 
+	 * extension of the filename, otherwise NONE.
+	 */
+	public static ContentEncoding getInstance(ObjectMetadata metadata, String filename) {
+		if(metadata != null && metadata.getContentEncoding() != null) {
+			// The header may list more than one encoding (ie: "gzip, aws-chunked").
+			for(String token : metadata.getContentEncoding().split(",")) {
+				for(ContentEncoding encoding : values()) {
+					for(String s : encoding.encodings) {
+						if(s.equalsIgnoreCase(token.trim()))
+							return encoding;
+					}
+				}
+			}
+		}
+		return fromFilename(filename);
+	}
+	
+	public static ContentEncoding fromFilename(String filename) {
+		if(filename != null) {
+			String lower = filename.toLowerCase();
+			for(ContentEncoding encoding : values()) {
+				for(String extension : encoding.extensions) {
+					if(lower.endsWith(extension))
+						return encoding;
+				}
+			}
+		}
+		return NONE;
+	}
+}
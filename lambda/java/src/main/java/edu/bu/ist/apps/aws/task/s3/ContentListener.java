@@ -0,0 +1,22 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of an S3 object in order, a chunk at a time, while the rest of it may still be downloading,
+ * so that the content can be consumed (ie: parsed) as it arrives instead of after the download is complete.
+ * Chunks are delivered one at a time, but not necessarily from the same thread.
+ *
+ * @author wrh
+ *
+ */
+@FunctionalInterface
+public interface ContentListener {
+
+	/**
+	 * @param chunk The next chunk of content. Only valid for the duration of the call.
+	 * @throws IOException
+	 */
+	public void content(ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,85 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ScheduledFuture;
+
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import edu.bu.ist.apps.aws.task.Deadline;
+import edu.bu.ist.apps.aws.task.WorkerPool;
+
+/**
+ * The content of an S3 object that is aborted if it is still open when a deadline passes. Aborting the http request
+ * unblocks a read that is waiting on the socket, and any read after that fails rather than returning what is left 
+ * in a buffer. Closing the content before the deadline cancels the abort.
+ *
+ * @author wrh
+ *
+ */
+class DeadlineContent extends FilterInputStream {
+
+	private final String key;
+	private final Deadline deadline;
+	private volatile boolean aborted;
+	private ScheduledFuture<?> abort;
+
+	private DeadlineContent(InputStream in, String key, Deadline deadline) {
+		super(in);
+		this.key = key;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Replace the content of the object with one that is aborted at the deadline.
+	 */
+	static void wrap(S3Object s3obj, Deadline deadline) {
+		S3ObjectInputStream content = s3obj.getObjectContent();
+		DeadlineContent guarded = new DeadlineContent(content, s3obj.getKey(), deadline);
+		guarded.abort = WorkerPool.schedule(() -> {
+			guarded.aborted = true;
+			content.abort();
+		}, deadline);
+		s3obj.setObjectContent(new S3ObjectInputStream(guarded, content.getHttpRequest()));
+	}
+
+	private void checkAborted() throws IOException {
+		if(aborted) {
+			throw new IOException("Aborted reading " + key + ": out of time. " + deadline);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkAborted();
+		int b = super.read();
+		checkAborted();
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkAborted();
+		int n = super.read(b, off, len);
+		checkAborted();
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkAborted();
+		return super.skip(n);
+	}
+
+	@Override
+	public void close() throws IOException {
+		abort.cancel(false);
+		super.close();
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+}
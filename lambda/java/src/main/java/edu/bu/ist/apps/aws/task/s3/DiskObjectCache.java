@@ -0,0 +1,457 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of downloaded S3 objects kept as files under /tmp, which lambda preserves for as long as a container stays warm.
+ * This is the tier beneath the S3ObjectCache: it has a much larger byte budget, holds objects too large for the heap
+ * (ie: spooled objects), and keeps them regardless of heap pressure. An object found here is revalidated by ETag 
+ * in the same way as one found in the S3ObjectCache, and if still current, is served with a single read of its file. 
+ * <p>
+ * Each object is stored as two files named after a digest of its cache key: the content itself (".obj") and its
+ * metadata: ETag, versionId and fetch time (".meta"). Both are written to temporary files and then moved into place 
+ * atomically, the metadata last, so a partially written object is never seen. The metadata is also held in memory,
+ * and is read back from the directory on first use, so the cache survives a new instance of this class (ie: after the
+ * lambda function is redeployed into a container that kept its /tmp).
+ * <p>
+ * Entries are evicted least recently used first whenever the total size of all cached objects exceeds the byte budget.
+ * The budget is shared by everything that runs in the container, so it is set for the lambda function as a whole by
+ * the DISK_CACHE_BYTES environment variable, not by any one request.
+ * <p>
+ * Cached objects include environment files and keys, so the directory and every file in it are readable by their 
+ * owner only (where the file system supports posix permissions).
+ *
+ * @author wrh
+ *
+ */
+public class DiskObjectCache {
+
+	public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+	public static final String DEFAULT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "s3-object-cache").getAbsolutePath();
+	public static final String MAX_BYTES_VARIABLE = "DISK_CACHE_BYTES";
+	private static final String OBJ = ".obj";
+	private static final String META = ".meta";
+	private static final String TMP = ".tmp";
+
+	private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+	private static final DiskObjectCache instance = new DiskObjectCache(DEFAULT_DIRECTORY, getMaxBytes(System.getenv(MAX_BYTES_VARIABLE)));
+
+	private final LinkedHashMap<String, DiskEntry> entries = new LinkedHashMap<String, DiskEntry>(16, 0.75f, true);
+	private File directory;
+	private long maxBytes;
+	private long totalBytes;
+	private boolean loaded;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * The metadata of a single cached object.
+	 */
+	public static class DiskEntry {
+		private final String cacheKey;
+		private final String name;
+		private final long size;
+		private final String etag;
+		private final String versionId;
+		private final long fetchTime;
+		private DiskEntry(String cacheKey, String name, long size, String etag, String versionId, long fetchTime) {
+			this.cacheKey = cacheKey;
+			this.name = name;
+			this.size = size;
+			this.etag = etag;
+			this.versionId = versionId;
+			this.fetchTime = fetchTime;
+		}
+		public String getCacheKey() {
+			return cacheKey;
+		}
+		public long getSize() {
+			return size;
+		}
+		public String getEtag() {
+			return etag;
+		}
+		public String getVersionId() {
+			return versionId;
+		}
+		public long getFetchTime() {
+			return fetchTime;
+		}
+	}
+
+	public DiskObjectCache(String directory, long maxBytes) {
+		this.directory = new File(directory);
+		this.maxBytes = maxBytes;
+	}
+
+	public static DiskObjectCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param value The value of the DISK_CACHE_BYTES environment variable.
+	 * @return The byte budget it sets, or the default if it is not set or is not a number. Zero or less disables the cache.
+	 */
+	static long getMaxBytes(String value) {
+		if(value == null || value.trim().isEmpty())
+			return DEFAULT_MAX_BYTES;
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e) {
+			System.err.println("WARNING!: " + MAX_BYTES_VARIABLE + " is not a number: " + value);
+			return DEFAULT_MAX_BYTES;
+		}
+	}
+
+	/**
+	 * @return The metadata of the cached object, or null if the object is not cached (or the cache is disabled).
+	 */
+	public synchronized DiskEntry get(String cacheKey) {
+		if(maxBytes <= 0)
+			return null;
+		load();
+		DiskEntry entry = entries.get(cacheKey);
+		if(entry != null) {
+			// Record the access on disk too, so the order of use survives reloading.
+			getFile(entry.name, META).setLastModified(System.currentTimeMillis());
+		}
+		return entry;
+	}
+
+	/**
+	 * @return The cached object file. It may be deleted by eviction at any time, so should be read, or mapped, immediately.
+	 */
+	public File getFile(DiskEntry entry) {
+		return getFile(entry.name, OBJ);
+	}
+
+	/**
+	 * Read the content of a cached object with a single read of its file.
+	 * @return The content, or null if the file is missing or not the expected size, in which case the entry is removed.
+	 */
+	public byte[] read(DiskEntry entry) {
+		if(entry.size > Integer.MAX_VALUE - 8)
+			return null;
+		try(FileChannel channel = FileChannel.open(getFile(entry).toPath(), StandardOpenOption.READ)) {
+			if(channel.size() == entry.size) {
+				byte[] bytes = new byte[(int) entry.size];
+				ByteBuffer buf = ByteBuffer.wrap(bytes);
+				while(buf.hasRemaining() && channel.read(buf) != -1);
+				if( ! buf.hasRemaining())
+					return bytes;
+			}
+		}
+		catch(IOException e) {
+			// Treated as missing.
+		}
+		remove(entry.cacheKey);
+		return null;
+	}
+
+	/**
+	 * Add an object to the cache, evicting the least recently used entries as necessary to stay within the byte budget.
+	 * Objects larger than the whole budget are not cached.
+	 */
+	public void put(String cacheKey, ByteBuffer content, String etag, String versionId, long fetchTime) throws IOException {
+		ByteBuffer buf = content.duplicate();
+		put(cacheKey, buf.remaining(), etag, versionId, fetchTime, (FileChannel out) -> {
+			while(buf.hasRemaining()) {
+				out.write(buf);
+			}
+		});
+	}
+
+	/**
+	 * Add a copy of a file (ie: a spool file) to the cache.
+	 */
+	public void put(String cacheKey, File content, String etag, String versionId, long fetchTime) throws IOException {
+		put(cacheKey, content.length(), etag, versionId, fetchTime, (FileChannel out) -> {
+			try(FileChannel in = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+				long position = 0;
+				long size = in.size();
+				while(position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the content into the (already created, owner only) temporary file of an object.
+	 */
+	@FunctionalInterface
+	private interface ContentWriter {
+		void write(FileChannel out) throws IOException;
+	}
+
+	private synchronized void put(String cacheKey, long size, String etag, String versionId, long fetchTime, ContentWriter writer) throws IOException {
+		if(maxBytes <= 0 || size > maxBytes)
+			return;
+		load();
+		createDirectory();
+		String name = digest(cacheKey);
+		remove(cacheKey);
+
+		// Written into temporary files created owner only, so the content is never readable by others, even in part.
+		Path objTmp = Files.createTempFile(directory.toPath(), name, OBJ + TMP, ownerOnly(OWNER_ONLY_FILE));
+		Path metaTmp = Files.createTempFile(directory.toPath(), name, META + TMP, ownerOnly(OWNER_ONLY_FILE));
+		try {
+			try(FileChannel out = FileChannel.open(objTmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				writer.write(out);
+			}
+
+			Properties meta = new Properties();
+			meta.setProperty("key", cacheKey);
+			meta.setProperty("size", String.valueOf(size));
+			meta.setProperty("fetchTime", String.valueOf(fetchTime));
+			if(etag != null)
+				meta.setProperty("etag", etag);
+			if(versionId != null)
+				meta.setProperty("versionId", versionId);
+			try(OutputStream out = Files.newOutputStream(metaTmp)) {
+				meta.store(out, null);
+			}
+
+			// The metadata goes into place last, since an object is only loaded if it has metadata.
+			move(objTmp, getFile(name, OBJ).toPath());
+			move(metaTmp, getFile(name, META).toPath());
+		}
+		finally {
+			Files.deleteIfExists(objTmp);
+			Files.deleteIfExists(metaTmp);
+		}
+
+		entries.put(cacheKey, new DiskEntry(cacheKey, name, size, etag, versionId, fetchTime));
+		totalBytes += size;
+		evict();
+	}
+
+	/**
+	 * Create the cache directory owner only, or if it already exists, make sure that it is.
+	 */
+	private void createDirectory() throws IOException {
+		Path dir = directory.toPath();
+		if( ! Files.isDirectory(dir)) {
+			Files.createDirectories(dir, ownerOnly(OWNER_ONLY_DIRECTORY));
+		}
+		// Set explicitly, since the umask applies on creation, and the directory may have been created by an older version.
+		if(isPosix(dir)) {
+			Files.setPosixFilePermissions(dir, OWNER_ONLY_DIRECTORY);
+		}
+	}
+
+	/**
+	 * @return The permissions as a file attribute, or no attribute at all if the file system does not support posix permissions.
+	 */
+	private FileAttribute<?>[] ownerOnly(Set<PosixFilePermission> permissions) {
+		if( ! isPosix(directory.toPath()))
+			return new FileAttribute<?>[0];
+		return new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(permissions) };
+	}
+
+	private static boolean isPosix(Path path) {
+		return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public synchronized void remove(String cacheKey) {
+		DiskEntry removed = entries.remove(cacheKey);
+		if(removed != null) {
+			totalBytes -= removed.size;
+			delete(removed.name);
+		}
+	}
+
+	private void delete(String name) {
+		// The metadata goes first, so a failure part way leaves an object without metadata, which is never loaded.
+		getFile(name, META).delete();
+		getFile(name, OBJ).delete();
+	}
+
+	private void evict() {
+		for(Iterator<Map.Entry<String, DiskEntry>> i = entries.entrySet().iterator(); i.hasNext() && totalBytes > maxBytes;) {
+			DiskEntry entry = i.next().getValue();
+			totalBytes -= entry.size;
+			delete(entry.name);
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Read the metadata of every object already in the cache directory, least recently used first.
+	 * Leftover temporary files and objects without metadata are removed.
+	 */
+	private void load() {
+		if(loaded)
+			return;
+		loaded = true;
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+
+		List<File> metas = new ArrayList<File>();
+		for(File f : files) {
+			String filename = f.getName();
+			if(filename.endsWith(META)) {
+				metas.add(f);
+			}
+			else if(filename.endsWith(TMP) || (filename.endsWith(OBJ) && ! getFile(stripSuffix(filename, OBJ), META).exists())) {
+				f.delete();
+			}
+		}
+		metas.sort((File f1, File f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+
+		for(File f : metas) {
+			String name = stripSuffix(f.getName(), META);
+			Properties meta = new Properties();
+			try(InputStream in = Files.newInputStream(f.toPath())) {
+				meta.load(in);
+				String cacheKey = meta.getProperty("key");
+				long size = Long.parseLong(meta.getProperty("size"));
+				if(cacheKey != null && name.equals(digest(cacheKey)) && getFile(name, OBJ).length() == size) {
+					entries.put(cacheKey, new DiskEntry(cacheKey, name, size, meta.getProperty("etag"), 
+							meta.getProperty("versionId"), Long.parseLong(meta.getProperty("fetchTime", "0"))));
+					totalBytes += size;
+					continue;
+				}
+			}
+			catch(IOException | RuntimeException e) {
+				// Fall through to delete.
+			}
+			delete(name);
+		}
+		evict();
+	}
+
+	private static String stripSuffix(String filename, String suffix) {
+		return filename.substring(0, filename.length() - suffix.length());
+	}
+
+	private File getFile(String name, String suffix) {
+		return new File(directory, name + suffix);
+	}
+
+	private static String digest(String s) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} 
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Move the cache to another directory. Objects already cached in the current directory are left there.
+	 */
+	public synchronized void setDirectory(String directory) {
+		this.directory = new File(directory);
+		entries.clear();
+		totalBytes = 0;
+		loaded = false;
+	}
+
+	public synchronized File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Set the byte budget. Zero or less disables the cache.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		if(loaded)
+			evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Remove all cached objects from disk.
+	 */
+	public synchronized void clear() {
+		load();
+		for(DiskEntry entry : entries.values()) {
+			delete(entry.name);
+		}
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DiskObjectCache [directory=" + directory + ", entries=" + entries.size() + ", bytes=" + totalBytes + "/" + maxBytes
+				+ ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+	}
+}
@@ -0,0 +1,213 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The destination that the content of an S3 object is downloaded into.
+ * Objects up to the spool threshold of the S3FileParms are held on the heap in a byte array.
+ * Larger objects are spooled to a file in the spool directory (the lambda /tmp area by default) through a FileChannel,
+ * and are then read back through a read-only MappedByteBuffer, so the content never occupies heap memory.
+ * <p>
+ * Distinct regions of a target may be written from different threads at the same time (see RangedDownloader).
+ * Once finished, the target is read as DownloadedContent.
+ *
+ * @author wrh
+ *
+ */
+public abstract class DownloadTarget extends DownloadedContent {
+
+	protected BlockReader reader = new BlockReader();
+
+	/**
+	 * Get a target for an object of the specified size.
+	 * @param parms
+	 * @param size The size of the object in bytes, or -1 if not known. Objects of unknown size are always held on the heap.
+	 * @return
+	 * @throws IOException
+	 */
+	public static DownloadTarget getInstance(S3FileParms parms, long size) throws IOException {
+		if(parms.useSpool(size)) {
+			return new SpoolTarget(parms, size);
+		}
+		return new HeapTarget(size);
+	}
+
+	/**
+	 * Read a stream whose size is only known once it ends (ie: decompressed content) into a new target. The content is
+	 * held on the heap for as long as it is within the spool threshold, and is spooled from the moment it exceeds it, 
+	 * so content that inflates to many times its stored size is never held on the heap in full.
+	 * @param parms
+	 * @param in
+	 * @return The target, not yet finished.
+	 * @throws IOException
+	 */
+	public static DownloadTarget readAll(S3FileParms parms, InputStream in) throws IOException {
+		HeapTarget heap = new HeapTarget();
+		long threshold = parms.getSpoolThreshold();
+		if(threshold <= 0 || threshold >= Integer.MAX_VALUE) {
+			heap.readAll(in);
+			return heap;
+		}
+		// One byte past the threshold is enough to know that the content must be spooled.
+		byte[] head = heap.reader.readFully(in, -1, (int) threshold + 1);
+		if(head.length <= threshold) {
+			heap.bytes = head;
+			return heap;
+		}
+		SpoolTarget spool = new SpoolTarget(parms, -1);
+		try {
+			spool.write(head, head.length, 0);
+			spool.readAll(in, head.length);
+			return spool;
+		}
+		catch(IOException e) {
+			spool.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read exactly len bytes from the stream into the target starting at the specified position.
+	 */
+	public abstract void readFully(InputStream in, long position, int len) throws IOException;
+
+	/**
+	 * Read the entire stream into the target starting at position zero.
+	 */
+	public abstract void readAll(InputStream in) throws IOException;
+
+	/**
+	 * Called once all content has been written.
+	 */
+	public abstract void finish() throws IOException;
+
+	/**
+	 * Get a region of content that has been written, but possibly before the rest of the content has been.
+	 * @param position
+	 * @param len
+	 * @return A read-only buffer over the region, or null if the target cannot provide one before it is finished.
+	 * @throws IOException
+	 */
+	public ByteBuffer getRange(long position, int len) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Holds the content of the object in a byte array.
+	 */
+	private static class HeapTarget extends DownloadTarget {
+		private byte[] bytes;
+		private HeapTarget() {
+			super();
+		}
+		private HeapTarget(long size) throws IOException {
+			if(size > Integer.MAX_VALUE - 8) {
+				throw new IOException("Object of " + size + " bytes is too large to hold in a byte array");
+			}
+			if(size >= 0) {
+				bytes = new byte[(int) size];
+			}
+		}
+		@Override public void readFully(InputStream in, long position, int len) throws IOException {
+			reader.readFully(in, bytes, (int) position, len);
+		}
+		@Override public void readAll(InputStream in) throws IOException {
+			bytes = reader.readFully(in, bytes == null ? -1 : bytes.length);
+		}
+		@Override public void finish() { /* Nothing to do */ }
+		@Override public byte[] getBytes() { return bytes; }
+		@Override public ByteBuffer getBuffer() { return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer(); }
+		@Override public File getFile() { return null; }
+		@Override public ByteBuffer getRange(long position, int len) {
+			return bytes == null ? null : ByteBuffer.wrap(bytes, (int) position, len).slice().asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Spools the content of the object to a file and maps it into memory once complete.
+	 */
+	private static class SpoolTarget extends DownloadTarget {
+		private File file;
+		private FileChannel channel;
+		private MappedByteBuffer mapped;
+		private SpoolTarget(S3FileParms parms, long size) throws IOException {
+			File dir = new File(parms.getSpoolDirectory());
+			// Created readable by its owner only (where supported), since the object may hold secrets.
+			file = Files.createTempFile(dir.toPath(), "s3file-", ".spool").toFile();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			parms.logMessage("Spooling " + parms.getFilename() + " (" + (size < 0 ? "over " + parms.getSpoolThreshold() : size) 
+					+ " bytes) to " + file.getAbsolutePath());
+		}
+		@Override public void readFully(InputStream in, long position, int len) throws IOException {
+			byte[] block = new byte[reader.getBlockSize()];
+			long written = 0;
+			while(written < len) {
+				int n = reader.read(in, block, 0, (int) Math.min(block.length, len - written));
+				if(n == -1) {
+					throw new IOException("Stream ended after " + written + " of " + len + " expected bytes");
+				}
+				write(block, n, position + written);
+				written += n;
+			}
+		}
+		@Override public void readAll(InputStream in) throws IOException {
+			readAll(in, 0);
+		}
+		private void readAll(InputStream in, long position) throws IOException {
+			byte[] block = new byte[reader.getBlockSize()];
+			long written = position;
+			int n;
+			while((n = reader.read(in, block, 0, block.length)) != -1) {
+				write(block, n, written);
+				written += n;
+			}
+		}
+		private void write(byte[] block, int len, long position) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(block, 0, len);
+			while(buf.hasRemaining()) {
+				// Positional writes do not move the channel position, so are safe for concurrent use on distinct regions.
+				position += channel.write(buf, position);
+			}
+		}
+		@Override public void finish() throws IOException {
+			try {
+				mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally {
+				// The mapping remains valid after the channel is closed.
+				channel.close();
+			}
+		}
+		@Override public byte[] getBytes() { return null; }
+		@Override public ByteBuffer getBuffer() { return mapped == null ? null : mapped.asReadOnlyBuffer(); }
+		@Override public File getFile() { return file; }
+		@Override public ByteBuffer getRange(long position, int len) throws IOException {
+			// Not mapped until finished, so the region is read back from the spool file.
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, position + buf.position()) == -1) {
+					throw new IOException("Spool file ended before position " + (position + buf.position()));
+				}
+			}
+			buf.flip();
+			return buf.asReadOnlyBuffer();
+		}
+		@Override public void delete() {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// Do nothing
+			}
+			super.delete();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of an S3 object once it is available to read: held on the heap in a byte array, or in a file that is
+ * read through a read-only MappedByteBuffer.
+ * <p>
+ * Content served from the S3ObjectCache or DiskObjectCache is shared with the cache, so can only be read. Content
+ * that is still being downloaded is a DownloadTarget, which is also written to.
+ *
+ * @author wrh
+ *
+ */
+public abstract class DownloadedContent {
+
+	/**
+	 * Get content that is already held on the heap (ie: served from the S3ObjectCache).
+	 * @param bytes
+	 * @return
+	 */
+	public static DownloadedContent wrap(byte[] bytes) {
+		return new HeapContent(bytes);
+	}
+
+	/**
+	 * Get content that is already in a file owned by something else (ie: the DiskObjectCache).
+	 * The file is mapped read-only and is never deleted through the content.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static DownloadedContent map(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new MappedContent(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * @return The content as a byte array if held on the heap, otherwise null.
+	 */
+	public abstract byte[] getBytes();
+
+	/**
+	 * @return The content as a read-only buffer, whether held on the heap or mapped from a file.
+	 */
+	public abstract ByteBuffer getBuffer();
+
+	/**
+	 * @return The spool file if the content was spooled, otherwise null.
+	 */
+	public abstract File getFile();
+
+	/**
+	 * Remove any spool file. The content remains readable through any buffer already obtained until that buffer is
+	 * garbage collected, since the file system keeps the data of a deleted file for as long as it is mapped.
+	 */
+	public void delete() {
+		File f = getFile();
+		if(f != null) {
+			try {
+				Files.deleteIfExists(f.toPath());
+			}
+			catch (IOException e) {
+				// Do nothing: lambda clears /tmp eventually.
+			}
+		}
+	}
+
+	/**
+	 * Reads content held in a byte array that it does not own.
+	 */
+	private static class HeapContent extends DownloadedContent {
+		private byte[] bytes;
+		private HeapContent(byte[] bytes) {
+			this.bytes = bytes;
+		}
+		@Override public byte[] getBytes() { return bytes; }
+		@Override public ByteBuffer getBuffer() { return ByteBuffer.wrap(bytes).asReadOnlyBuffer(); }
+		@Override public File getFile() { return null; }
+	}
+
+	/**
+	 * Reads content mapped from a file that it does not own.
+	 */
+	private static class MappedContent extends DownloadedContent {
+		private MappedByteBuffer mapped;
+		private MappedContent(MappedByteBuffer mapped) {
+			this.mapped = mapped;
+		}
+		@Override public byte[] getBytes() { return null; }
+		@Override public ByteBuffer getBuffer() { return mapped.asReadOnlyBuffer(); }
+		@Override public File getFile() { return null; }
+	}
+}
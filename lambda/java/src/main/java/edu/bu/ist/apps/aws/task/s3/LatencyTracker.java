@@ -0,0 +1,49 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples (ie: time to first byte of S3 GET requests) in a ring buffer, 
+ * so that percentiles reflect current conditions rather than the whole life of the container.
+ *
+ * @author wrh
+ *
+ */
+public class LatencyTracker {
+
+	private final long[] samples;
+	private int next;
+	private int count;
+
+	public LatencyTracker(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+
+	/**
+	 * @param percentile Between 0 and 1 (ie: 0.95).
+	 * @return The latency at the specified percentile of the samples held, or -1 if there are none.
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if(count == 0)
+			return -1;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * count) - 1;
+		return sorted[Math.max(0, Math.min(index, count - 1))];
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized void clear() {
+		count = 0;
+		next = 0;
+	}
+}
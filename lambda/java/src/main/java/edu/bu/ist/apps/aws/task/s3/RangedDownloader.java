@@ -0,0 +1,225 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import edu.bu.ist.apps.aws.task.WorkerPool;
+
+/**
+ * Downloads a single S3 object as a series of byte ranges fetched concurrently.
+ * <p>
+ * The first range is requested without knowing the size of the object. The Content-Range of that response
+ * reveals the full size, so no separate HEAD request is needed. If the object fits within the first range, that is
+ * the entire download. Otherwise a DownloadTarget (an array, or a spool file for very large objects) is allocated at
+ * the full size and each remaining range is fetched on the WorkerPool and read directly into its own region of that
+ * target, so reassembly in order involves no copying.
+ * Every range after the first is constrained to the ETag of the first, so an object that is replaced partway
+ * through the download will fail rather than produce a mix of old and new content.
+ * <p>
+ * If a ContentListener is set, the content is passed to it in order while the download is still in progress: each
+ * time the range following the content already delivered is complete, it and any complete ranges after it are 
+ * delivered by the thread that completed it. Compressed content is not delivered, since it must be decoded as a whole.
+ *
+ * @author wrh
+ *
+ */
+public class RangedDownloader {
+
+	private S3FileParms parms;
+	private S3Requester requester;
+	private ContentEncoding contentEncoding = ContentEncoding.NONE;
+	private ContentListener listener;
+	private boolean delivered;
+	
+	// Delivery state: the ranges complete so far, the next range to deliver and whether a thread is delivering.
+	private final BitSet completedParts = new BitSet();
+	private int nextPart;
+	private boolean delivering;
+
+	public RangedDownloader(S3FileParms parms, AmazonS3 s3Client) {
+		this.parms = parms;
+		this.requester = new S3Requester(parms, s3Client);
+	}
+
+	/**
+	 * @param listener Receives the content in order as it is downloaded.
+	 * @return
+	 */
+	public RangedDownloader setListener(ContentListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * @return The target the object was downloaded into: a byte array, or a spool file if the object exceeds the spool threshold.
+	 * @throws Exception
+	 */
+	public DownloadTarget download() throws Exception {
+
+		long partSize = parms.getPartSize();
+		S3Object first = null;
+		try {
+			first = requester.getObject(newRequest().withRange(0, partSize - 1));
+		}
+		catch(AmazonS3Exception e) {
+			if(e.getStatusCode() == 416) {
+				// A range cannot be satisfied for an empty object.
+				delivered = listener != null;
+				return DownloadTarget.getInstance(parms, 0);
+			}
+			throw e;
+		}
+		if(first == null) {
+			throw new IOException("No content returned for " + parms.getFilename());
+		}
+
+		DownloadTarget target = null;
+		String etag = null;
+		long objectSize = -1;
+
+		S3ObjectInputStream in = first.getObjectContent();
+		try {
+			ObjectMetadata metadata = first.getObjectMetadata();
+			contentEncoding = ContentEncoding.getInstance(parms, metadata);
+			if(metadata == null || metadata.getContentRange() == null) {
+				// No range information, so the response is taken to be the whole object.
+				target = DownloadTarget.getInstance(parms, -1);
+				target.readAll(in);
+				target.finish();
+				if(isListening()) {
+					listener.content(target.getBuffer());
+					delivered = true;
+				}
+				return target;
+			}
+			objectSize = metadata.getInstanceLength();
+			etag = metadata.getETag();
+			target = DownloadTarget.getInstance(parms, objectSize);
+			target.readFully(in, 0, (int) Math.min(partSize, objectSize));
+			completed(target, 0, objectSize);
+		}
+		catch(Exception e) {
+			if(target != null)
+				target.delete();
+			throw e;
+		}
+		finally {
+			first.close();
+			in.close();
+		}
+
+		if(objectSize > partSize) {
+			int parts = (int) ((objectSize + partSize - 1) / partSize);
+			parms.logMessage("Downloading remaining " + (parts - 1) + " parts of " + parms.getFilename()
+					+ " (" + objectSize + " bytes) with parallelism of " + parms.getParallelism() + "...");
+
+			final DownloadTarget partTarget = target;
+			final String matchingEtag = etag;
+			final long size = objectSize;
+			Map<Integer, Exception> failures = WorkerPool.invokeAll(parts - 1, parms.getParallelism(), true, (int index) -> {
+				long start = (index + 1) * partSize;
+				long end = Math.min(start + partSize, size) - 1;
+				downloadPart(partTarget, start, end, matchingEtag);
+				completed(partTarget, index + 1, size);
+			});
+
+			if( ! failures.isEmpty()) {
+				target.delete();
+				throw failures.values().iterator().next();
+			}
+		}
+
+		target.finish();
+		delivered = isListening();
+		return target;
+	}
+
+	private boolean isListening() {
+		return listener != null && ! contentEncoding.isCompressed();
+	}
+
+	/**
+	 * Record that a range is complete and, unless another thread is already doing so, deliver every complete 
+	 * range that follows the content delivered so far.
+	 */
+	private void completed(DownloadTarget target, int part, long objectSize) throws IOException {
+		if( ! isListening())
+			return;
+		synchronized(this) {
+			completedParts.set(part);
+			if(delivering)
+				return;
+			delivering = true;
+		}
+		long partSize = parms.getPartSize();
+		try {
+			while(true) {
+				int from, to;
+				synchronized(this) {
+					from = nextPart;
+					to = completedParts.nextClearBit(from);
+					if(to == from) {
+						delivering = false;
+						return;
+					}
+					nextPart = to;
+				}
+				long start = from * partSize;
+				long end = Math.min(to * partSize, objectSize);
+				listener.content(target.getRange(start, (int) (end - start)));
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			synchronized(this) {
+				delivering = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Whether all of the content was passed to the listener.
+	 */
+	public boolean isDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return The encoding of the object as indicated by the first range. The target returned by download holds the 
+	 * content as stored, so it is up to the caller to decode it.
+	 */
+	public ContentEncoding getContentEncoding() {
+		return contentEncoding;
+	}
+
+	private void downloadPart(DownloadTarget target, long start, long end, String etag) throws IOException, InterruptedException {
+		GetObjectRequest request = newRequest().withRange(start, end);
+		if(etag != null) {
+			request = request.withMatchingETagConstraint(etag);
+		}
+		S3Object part = requester.getObject(request);
+		if(part == null) {
+			throw new IOException(parms.getFilename() + " changed while being downloaded (ETag no longer " + etag + ")");
+		}
+		S3ObjectInputStream in = part.getObjectContent();
+		try {
+			target.readFully(in, start, (int) (end - start + 1));
+		}
+		finally {
+			part.close();
+			in.close();
+		}
+	}
+
+	private GetObjectRequest newRequest() {
+		return new GetObjectRequest(parms.getBucketname(), parms.getFilename());
+	}
+}
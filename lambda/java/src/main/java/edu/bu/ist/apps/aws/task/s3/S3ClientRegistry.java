@@ -0,0 +1,105 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import com.amazonaws.http.IdleConnectionReaper;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * A process-wide registry of S3 clients, keyed by region and credential source.
+ * <p>
+ * Building an AmazonS3 client is expensive: each one gets its own http connection pool and credentials provider,
+ * and a profile based provider parses the aws profile files. The clients are thread-safe, so rather than build one
+ * for every S3File (ie: one per public key for EC2_PUBLIC_KEYS), the first client built for any region/credentials
+ * combination is kept here in static scope and shared. It survives warm lambda invocations, along with its open
+ * connections and any credentials it has already resolved.
+ *
+ * @author wrh
+ *
+ */
+public class S3ClientRegistry {
+
+	private static final S3ClientRegistry instance = new S3ClientRegistry();
+
+	private final ConcurrentMap<String, AmazonS3> clients = new ConcurrentHashMap<String, AmazonS3>();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	public static S3ClientRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the client registered for the region and credential source, building and registering one if there is none.
+	 * @param region
+	 * @param credentialSource Identifies the credentials the client uses (ie: a profile name). Must not contain secrets.
+	 * @param builder Builds a new client if one is not registered.
+	 * @return
+	 */
+	public AmazonS3 getClient(String region, String credentialSource, Supplier<AmazonS3> builder) {
+		String key = region + "|" + credentialSource;
+		AmazonS3 client = clients.get(key);
+		if(client != null) {
+			reused.incrementAndGet();
+			return client;
+		}
+		return clients.computeIfAbsent(key, (String k) -> {
+			created.incrementAndGet();
+			return builder.get();
+		});
+	}
+
+	/**
+	 * Remove and shut down all registered clients.
+	 */
+	public void clear() {
+		for(String key : clients.keySet()) {
+			AmazonS3 client = clients.remove(key);
+			if(client != null) {
+				client.shutdown();
+			}
+		}
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return The combined statistics of the http connection pools of all clients (in fact of all aws sdk clients in the process).
+	 */
+	public PoolStats getPoolStats() {
+		int leased = 0, pending = 0, available = 0, max = 0;
+		for(HttpClientConnectionManager manager : IdleConnectionReaper.getRegisteredConnectionManagers()) {
+			if(manager instanceof ConnPoolControl) {
+				PoolStats stats = ((ConnPoolControl<?>) manager).getTotalStats();
+				leased += stats.getLeased();
+				pending += stats.getPending();
+				available += stats.getAvailable();
+				max += stats.getMax();
+			}
+		}
+		return new PoolStats(leased, pending, available, max);
+	}
+
+	@Override
+	public String toString() {
+		return "S3ClientRegistry [clients=" + clients.size() + ", created=" + created.get() + ", reused=" + reused.get()
+				+ ", connections=" + getPoolStats() + "]";
+	}
+}
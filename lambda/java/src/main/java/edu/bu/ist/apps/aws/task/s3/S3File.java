@@ -2,27 +2,46 @@ package edu.bu.ist.apps.aws.task.s3;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 
+import edu.bu.ist.apps.aws.task.s3.DiskObjectCache.DiskEntry;
+import edu.bu.ist.apps.aws.task.s3.S3ObjectCache.CachedObject;
+
 /**
  * This class represents a single file stored in an S3 bucket.
  * Upon instantiation, the file is immediately downloaded from the bucket to a byte array.
  * Then the file can be sent to any OutputStream, ie: the local file system (FileOutputStream),
  * or printing out to the console (PrintStream), etc.
  * <p>
+ * Files larger than the spool threshold of the S3FileParms are not held in a byte array, but are spooled to a file
+ * in the lambda /tmp area and read back through a memory-mapped buffer (see getBuffer). Such instances should be
+ * closed when finished with so that the spool file is removed.
+ * <p>
+ * Files stored compressed (see ContentEncoding) are decompressed as they are downloaded, so the content is always
+ * that of the original uncompressed file.
+ * <p>
+ * Where the ETag of a file is its MD5 digest, the content is verified against it as it is downloaded, and a 
+ * ChecksumMismatchException is thrown if it does not match (see ChecksumInputStream). Ranged downloads are not verified,
+ * since the ranges arrive out of order and the digest can only be computed in order.
+ * <p>
  * Similar example:
  * https://docs.aws.amazon.com/AmazonS3/latest/dev/RetrievingObjectUsingJava.html
  * <p>
@@ -32,10 +51,13 @@ import com.amazonaws.services.s3.model.S3ObjectInputStream;
  * @author wrh
  *
  */
-public class S3File {
+public class S3File implements Closeable {
 	
 	private S3FileParms parms;
-	private byte[] bytes;
+	private DownloadedContent target;
+	private ContentListener listener;
+	private boolean delivered;
+	private boolean loaded;
 	
 	/**
 	 * Restrict default constructor
@@ -50,76 +72,289 @@ public class S3File {
 	 * @param parms
 	 */
 	public S3File(S3FileParms parms) throws Exception {
-		
+		this(parms, null);
+		load();
+	}
+	
+	/**
+	 * Check the parameters are valid. The file is not downloaded until load is called, so that the listener is 
+	 * in place before any content arrives.
+	 * @param parms
+	 * @param listener
+	 */
+	public S3File(S3FileParms parms, ContentListener listener) {
 		this.parms = parms;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Download the file, passing the content to the listener (if any) in order as it arrives.
+	 * Where the content cannot be passed on before the download is complete (ie: it is compressed, or served from
+	 * a cache), it is passed on all at once afterwards. Does nothing if the file is already loaded.
+	 * @return This S3File
+	 * @throws Exception
+	 */
+	public S3File load() throws Exception {
+		if(loaded)
+			return this;
+		loaded = true;
 		
 		if(parms.isComplete()) {
 			
 			download();
 			
-			return;
+			if(listener != null && ! delivered && target != null) {
+				listener.content(target.getBuffer());
+			}
+			return this;
 		}
 		
 		parms.logIssue();
+		return this;
 	}
 	
 	/**
-	 * Download the file in the S3 bucket into a byte array.
+	 * Download the file in the S3 bucket into a byte array, or a spool file if it exceeds the spool threshold.
+	 * The content is read in large blocks into a target pre-sized from the Content-Length of the object.
+	 * If a part size is set, the object is instead downloaded as concurrent byte ranges (see RangedDownloader).
+	 * Otherwise, if a copy of the object is in the S3ObjectCache, or failing that the DiskObjectCache, it is only 
+	 * downloaded again if its ETag has changed.
 	 * @throws Exception 
 	 */
 	private void download() throws Exception {
 		
 		S3Object s3obj = null;
 		S3ObjectInputStream s3ObjInputStr = null;
-		ByteArrayOutputStream baos = null;
+		InputStream content = null;
+		DownloadTarget downloaded = null;
 		
 		parms.logMessage("Downloading " + parms.getFilename() + " from S3 bucket " + parms.getBucketname() + "...");
 		
 		try {
 			AmazonS3 s3Client = parms.getS3Client();
-			s3obj = s3Client.getObject(new GetObjectRequest(parms.getBucketname(), parms.getFilename()));
+			if(parms.useRangedDownload()) {
+				RangedDownloader ranged = new RangedDownloader(parms, s3Client).setListener(listener);
+				downloaded = ranged.download();
+				delivered = ranged.isDelivered();
+				if(ranged.getContentEncoding().isCompressed()) {
+					// The ranges of a compressed object cannot be decoded independently, so the reassembled object is decoded as a whole.
+					DownloadTarget encoded = downloaded;
+					downloaded = null;
+					try {
+						downloaded = decode(encoded, ranged.getContentEncoding());
+					}
+					finally {
+						encoded.delete();
+					}
+				}
+				target = downloaded;
+				return;
+			}
+			
+			GetObjectRequest request = new GetObjectRequest(parms.getBucketname(), parms.getFilename(), parms.getVersionId());
+			S3ObjectCache cache = S3ObjectCache.getInstance();
+			DiskObjectCache disk = DiskObjectCache.getInstance();
+			String cacheKey = S3ObjectCache.getCacheKey(parms);
+			CachedObject cached = parms.useCache() ? cache.get(cacheKey) : null;
+			DiskEntry onDisk = null;
+			DownloadedContent fromDisk = null;
+			
+			if(parms.useCache() && cached == null) {
+				// Not in memory, but may be on disk. Either way, it is only used if still current.
+				onDisk = disk.get(cacheKey);
+				fromDisk = onDisk == null ? null : readFromDisk(disk, onDisk);
+				if(fromDisk == null) {
+					onDisk = null;
+				}
+			}
+			
+			String cachedEtag = cached != null ? cached.getEtag() : (onDisk != null ? onDisk.getEtag() : null);
+			if(cachedEtag != null) {
+				if(parms.getVersionId() != null) {
+					// A specific version of an object never changes, so there is no need to revalidate.
+					useCached(cache, cached, disk, onDisk, fromDisk);
+					return;
+				}
+				request = request.withNonmatchingETagConstraint(cachedEtag);
+			}
+			
+			s3obj = new S3Requester(parms, s3Client).getObject(request);
+			
+			if(s3obj == null && cachedEtag != null) {
+				// S3 responded with 304 (Not Modified), so the cached copy is still current.
+				useCached(cache, cached, disk, onDisk, fromDisk);
+				return;
+			}
+			if(parms.useCache()) {
+				cache.recordMiss();
+				if(cached == null) {
+					disk.recordMiss();
+				}
+			}
+			
 			// Not wrapping in BufferedInputStream because S3ObjectInputStream cannot be mocked.
 			// For some reason the mocked methods are not being called by wrapper. 
-			s3ObjInputStr = s3obj.getObjectContent();		
-			baos = new ByteArrayOutputStream();
+			s3ObjInputStr = s3obj.getObjectContent();
+			
+			ObjectMetadata metadata = s3obj.getObjectMetadata();
 			
-			int reads = s3ObjInputStr.read();
+			// The checksum is computed over the content as stored, as it is read, so verification is not a separate pass.
+			ChecksumInputStream checksum = parms.useChecksum() ? ChecksumInputStream.getInstance(s3ObjInputStr, metadata, parms.getFilename()) : null;
+			InputStream stored = checksum == null ? s3ObjInputStr : checksum;
 			
-			while(reads != -1){
-				baos.write(reads);
-				reads = s3ObjInputStr.read();
+			ContentEncoding encoding = ContentEncoding.getInstance(parms, metadata);
+			if(encoding.isCompressed()) {
+				// Decompress as the content arrives. The decompressed size is not known up front, so the download 
+				// is spooled as soon as it has inflated beyond the spool threshold.
+				parms.logMessage("Decompressing " + parms.getFilename() + " (" + encoding + ")...");
+				content = encoding.decode(stored);
+				downloaded = DownloadTarget.readAll(parms, content);
 			}
+			else {
+				content = stored;
+				downloaded = DownloadTarget.getInstance(parms, getContentLength(s3obj));
+				downloaded.readAll(content);
+			}
+			if(checksum != null) {
+				checksum.verify();
+			}
+			downloaded.finish();
+			target = downloaded;
 			
-			bytes = baos.toByteArray();
+			if(parms.useCache() && metadata != null && metadata.getETag() != null) {
+				long fetchTime = System.currentTimeMillis();
+				if( ! isSpooled()) {
+					cache.put(cacheKey, new CachedObject(target.getBytes(), metadata.getETag(), metadata.getVersionId(), fetchTime));
+				}
+				putOnDisk(disk, cacheKey, metadata, fetchTime);
+			}
 		} 
 		catch (Exception e) {
-			bytes = null;
+			if(downloaded != null)
+				downloaded.delete();
+			target = null;
 			throw e;
 		}
 		finally {
+			if(parms.useTailLatencyMode())
+				parms.logMessage(S3Requester.getStats());
 			if(s3obj != null)
 				s3obj.close();
+			if(content != null && content != s3ObjInputStr)
+				content.close();
 			if(s3ObjInputStr != null)
 				s3ObjInputStr.close();
-			if(baos != null)
-				baos.close();
 		}
 	}
 	
-	public void saveAs(File f) throws IOException {
-		
-		FileOutputStream fout = null;
-		
-		if(bytes == null || bytes.length == 0) {
+	/**
+	 * Decompress content that has already been downloaded in full into a new target.
+	 */
+	private DownloadTarget decode(DownloadTarget encoded, ContentEncoding encoding) throws IOException {
+		parms.logMessage("Decompressing " + parms.getFilename() + " (" + encoding + ")...");
+		DownloadTarget decoded = null;
+		try(InputStream in = encoding.decode(new ByteBufferInputStream(encoded.getBuffer()))) {
+			decoded = DownloadTarget.readAll(parms, in);
+			decoded.finish();
+			return decoded;
+		}
+		catch(IOException e) {
+			if(decoded != null)
+				decoded.delete();
+			throw e;
+		}
+	}
+	
+	private void useCached(S3ObjectCache cache, CachedObject cached, DiskObjectCache disk, DiskEntry onDisk, DownloadedContent fromDisk) {
+		if(cached != null) {
+			cache.recordHit();
+			target = DownloadedContent.wrap(cached.getBytes());
+			parms.logMessage("Using cached copy of " + parms.getFilename() + " (ETag " + cached.getEtag() + "). " + cache);
 			return;
 		}
+		disk.recordHit();
+		target = fromDisk;
+		parms.logMessage("Using disk cached copy of " + parms.getFilename() + " (ETag " + onDisk.getEtag() + "). " + disk);
+		if(target.getBytes() != null) {
+			// Promote to memory, so the next request need not read the disk.
+			cache.put(onDisk.getCacheKey(), new CachedObject(target.getBytes(), onDisk.getEtag(), onDisk.getVersionId(), onDisk.getFetchTime()));
+		}
+	}
+	
+	/**
+	 * @return The cached object: read into memory, or if large enough to be spooled, mapped from its file. 
+	 * Null if the object could not be read.
+	 */
+	private DownloadedContent readFromDisk(DiskObjectCache disk, DiskEntry onDisk) {
+		if(parms.useSpool(onDisk.getSize())) {
+			try {
+				return DownloadedContent.map(disk.getFile(onDisk));
+			}
+			catch(IOException e) {
+				disk.remove(onDisk.getCacheKey());
+				return null;
+			}
+		}
+		byte[] bytes = disk.read(onDisk);
+		return bytes == null ? null : DownloadedContent.wrap(bytes);
+	}
+	
+	/**
+	 * Add the downloaded object to the DiskObjectCache. Failure to do so is logged, but not fatal, since the object
+	 * has been downloaded successfully regardless.
+	 */
+	private void putOnDisk(DiskObjectCache disk, String cacheKey, ObjectMetadata metadata, long fetchTime) {
 		try {
-			fout = new FileOutputStream(f);
-			print(fout);
+			if(isSpooled()) {
+				disk.put(cacheKey, target.getFile(), metadata.getETag(), metadata.getVersionId(), fetchTime);
+			}
+			else {
+				disk.put(cacheKey, target.getBuffer(), metadata.getETag(), metadata.getVersionId(), fetchTime);
+			}
 		}
-		finally {
-			if(fout != null)
-				fout.close();
+		catch(IOException e) {
+			parms.logMessage("Could not add " + parms.getFilename() + " to the disk cache: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return The Content-Length of the object, or -1 if the object metadata does not provide it.
+	 */
+	private long getContentLength(S3Object s3obj) {
+		ObjectMetadata metadata = s3obj.getObjectMetadata();
+		if(metadata == null || metadata.getRawMetadataValue(Headers.CONTENT_LENGTH) == null)
+			return -1;
+		return metadata.getContentLength();
+	}
+	
+	/**
+	 * Write the file to the local file system byte for byte. If the file was spooled, this is a zero-copy transfer from
+	 * the spool file channel to the target file channel.
+	 * @param f
+	 * @throws IOException
+	 */
+	public void saveAs(File f) throws IOException {
+		
+		if(target == null || getSize() == 0) {
+			return;
+		}
+		try(FileChannel out = FileChannel.open(f.toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			if(isSpooled()) {
+				try(FileChannel in = FileChannel.open(target.getFile().toPath(), StandardOpenOption.READ)) {
+					long position = 0;
+					long size = in.size();
+					while(position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+				}
+			}
+			else {
+				ByteBuffer buf = target.getBuffer();
+				while(buf.hasRemaining()) {
+					out.write(buf);
+				}
+			}
 		}
 	}
 	
@@ -134,7 +369,7 @@ public class S3File {
 		
 		try {
 			pw = new PrintWriter(out);
-			reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+			reader = new BufferedReader(new InputStreamReader(getInputStream()));
 			String line = null;
 			while ((line = reader.readLine()) != null) {
 	            pw.println(line);
@@ -156,7 +391,7 @@ public class S3File {
 		List<String> lines = new ArrayList<String>();
 		
 		try {
-			reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+			reader = new BufferedReader(new InputStreamReader(getInputStream()));
 			String line = null;
 			while ((line = reader.readLine()) != null) {
 	            lines.add(line);
@@ -171,9 +406,52 @@ public class S3File {
 		return lines;
 	}
 	
+	private InputStream getInputStream() {
+		ByteBuffer buf = getBuffer();
+		return buf == null ? new ByteArrayInputStream(new byte[0]) : new ByteBufferInputStream(buf);
+	}
+	
+	/**
+	 * @return A copy of the content of the file as a byte array. The array held by this file may also be held by the 
+	 * S3ObjectCache, so it is never handed out itself.
+	 * NOTE: If the file was spooled, this copies the entire file onto the heap, so use getBuffer() instead.
+	 */
 	public byte[] getBytes() {
+		if(target == null)
+			return null;
+		if(target.getBytes() != null)
+			return target.getBytes().clone();
+		ByteBuffer buf = target.getBuffer();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
 		return bytes;
 	}
+	
+	/**
+	 * @return The content of the file as a read-only buffer: either wrapping the downloaded byte array, or mapped 
+	 * from the spool file. Null if the file was not downloaded.
+	 */
+	public ByteBuffer getBuffer() {
+		return target == null ? null : target.getBuffer();
+	}
+	
+	public long getSize() {
+		ByteBuffer buf = getBuffer();
+		return buf == null ? 0 : buf.remaining();
+	}
+	
+	public boolean isSpooled() {
+		return target != null && target.getFile() != null;
+	}
+	
+	/**
+	 * Remove the spool file, if any.
+	 */
+	@Override
+	public void close() {
+		if(target != null)
+			target.delete();
+	}
 
 	public static void main(String[] args) throws Exception {
 		
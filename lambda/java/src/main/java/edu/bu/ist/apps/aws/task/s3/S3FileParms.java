@@ -1,8 +1,12 @@
 package edu.bu.ist.apps.aws.task.s3;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
@@ -10,6 +14,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
 import edu.bu.ist.apps.aws.lambda.Logger;
+import edu.bu.ist.apps.aws.task.Deadline;
 
 /**
  * Just a bean for S3File parameters and enforcing their requirements.
@@ -19,8 +24,13 @@ import edu.bu.ist.apps.aws.lambda.Logger;
  */
 public class S3FileParms {
 	private enum parmname {
-		region, bucketname, filename, profilename, accessKey, secretKey, logger;
+		region, bucketname, filename, profilename, accessKey, secretKey, logger, partSize, parallelism, spoolThreshold, spoolDirectory, versionId, cacheEnabled, decompress, verifyChecksum, tailLatencyMode, hedgeAfterMillis, maxRetries, deadline;
 	}
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final int MAX_CONNECTIONS = 50;
+	public static final long DEFAULT_SPOOL_THRESHOLD = 64L * 1024 * 1024;
+	public static final long DEFAULT_HEDGE_AFTER_MILLIS = 1000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
 	private Map<parmname, Object> parms = new LinkedHashMap<parmname, Object>();
 	
 	private StringBuilder issue = new StringBuilder();
@@ -43,6 +53,83 @@ public class S3FileParms {
 	public S3FileParms setFilename(String filename) {
 		return setParm(parmname.filename, filename);
 	}
+	/**
+	 * @return The version of the file to download, or null for the latest version.
+	 */
+	public String getVersionId() {
+		return getStringParm(parmname.versionId);
+	}
+	public S3FileParms setVersionId(String versionId) {
+		return setParm(parmname.versionId, versionId);
+	}
+	/**
+	 * @return Whether the file may be served from (and stored in) the S3ObjectCache. Defaults to true.
+	 */
+	public boolean useCache() {
+		Object value = parms.get(parmname.cacheEnabled);
+		return value == null || Boolean.parseBoolean(String.valueOf(value));
+	}
+	public S3FileParms setUseCache(boolean useCache) {
+		return setParm(parmname.cacheEnabled, useCache);
+	}
+	/**
+	 * @return Whether a compressed file (see ContentEncoding) is decompressed as it is downloaded. Defaults to true.
+	 */
+	public boolean useDecompress() {
+		Object value = parms.get(parmname.decompress);
+		return value == null || Boolean.parseBoolean(String.valueOf(value));
+	}
+	public S3FileParms setDecompress(boolean decompress) {
+		return setParm(parmname.decompress, decompress);
+	}
+	/**
+	 * @return Whether the content of a file is checked against its MD5 ETag as it is downloaded (see ChecksumInputStream). Defaults to true.
+	 */
+	public boolean useChecksum() {
+		Object value = parms.get(parmname.verifyChecksum);
+		return value == null || Boolean.parseBoolean(String.valueOf(value));
+	}
+	public S3FileParms setVerifyChecksum(boolean verifyChecksum) {
+		return setParm(parmname.verifyChecksum, verifyChecksum);
+	}
+	/**
+	 * @return Whether slow GET requests are hedged and failed ones retried (see S3Requester). Defaults to false.
+	 */
+	public boolean useTailLatencyMode() {
+		Object value = parms.get(parmname.tailLatencyMode);
+		return value != null && Boolean.parseBoolean(String.valueOf(value));
+	}
+	public S3FileParms setTailLatencyMode(boolean tailLatencyMode) {
+		return setParm(parmname.tailLatencyMode, tailLatencyMode);
+	}
+	/**
+	 * @return How long to wait for a GET before hedging it, until S3Requester has seen enough GETs to use their 95th percentile.
+	 */
+	public long getHedgeAfterMillis() {
+		return getLongParm(parmname.hedgeAfterMillis, DEFAULT_HEDGE_AFTER_MILLIS);
+	}
+	public S3FileParms setHedgeAfterMillis(long hedgeAfterMillis) {
+		return setParm(parmname.hedgeAfterMillis, hedgeAfterMillis);
+	}
+	/**
+	 * @return How many times a GET that fails with a retryable error is retried in tail latency mode.
+	 */
+	public int getMaxRetries() {
+		return (int) getLongParm(parmname.maxRetries, DEFAULT_MAX_RETRIES);
+	}
+	public S3FileParms setMaxRetries(int maxRetries) {
+		return setParm(parmname.maxRetries, maxRetries);
+	}
+	/**
+	 * @return The time by which downloading must be finished. Defaults to no time limit.
+	 */
+	public Deadline getDeadline() {
+		Object value = parms.get(parmname.deadline);
+		return value instanceof Deadline ? (Deadline) value : Deadline.NONE;
+	}
+	public S3FileParms setDeadline(Deadline deadline) {
+		return setParm(parmname.deadline, deadline);
+	}
 	public String getProfilename() {
 		return getStringParm(parmname.profilename);
 	}
@@ -61,6 +148,57 @@ public class S3FileParms {
 	public S3FileParms setSecretKey(String secretKey) {
 		return setParm(parmname.secretKey, secretKey);
 	}	
+	/**
+	 * @return The size in bytes of each byte range when downloading in parts. Zero (the default) means objects
+	 * are always downloaded with a single request.
+	 */
+	public long getPartSize() {
+		return getLongParm(parmname.partSize, 0L);
+	}
+	/**
+	 * Objects larger than the part size are downloaded as concurrent ranged requests of this size. 
+	 * @param partSize
+	 * @return
+	 */
+	public S3FileParms setPartSize(long partSize) {
+		return setParm(parmname.partSize, partSize);
+	}
+	/**
+	 * @return The maximum number of byte ranges of a single object that are downloaded at the same time.
+	 */
+	public int getParallelism() {
+		return (int) getLongParm(parmname.parallelism, DEFAULT_PARALLELISM);
+	}
+	public S3FileParms setParallelism(int parallelism) {
+		return setParm(parmname.parallelism, parallelism);
+	}
+	public boolean useRangedDownload() {
+		return getPartSize() > 0;
+	}
+	/**
+	 * @return The size in bytes above which an object is spooled to a file instead of being held on the heap. 
+	 * Zero or less means objects are never spooled.
+	 */
+	public long getSpoolThreshold() {
+		return getLongParm(parmname.spoolThreshold, DEFAULT_SPOOL_THRESHOLD);
+	}
+	public S3FileParms setSpoolThreshold(long spoolThreshold) {
+		return setParm(parmname.spoolThreshold, spoolThreshold);
+	}
+	/**
+	 * @return The directory that oversized objects are spooled to. Defaults to java.io.tmpdir, which is /tmp in lambda.
+	 */
+	public String getSpoolDirectory() {
+		String dir = getStringParm(parmname.spoolDirectory);
+		return dir == null ? System.getProperty("java.io.tmpdir") : dir;
+	}
+	public S3FileParms setSpoolDirectory(String spoolDirectory) {
+		return setParm(parmname.spoolDirectory, spoolDirectory);
+	}
+	public boolean useSpool(long size) {
+		long threshold = getSpoolThreshold();
+		return threshold > 0 && size > threshold;
+	}
 	public Logger getLogger() {
 		return (Logger) parms.get(parmname.logger);
 	}
@@ -87,6 +225,20 @@ public class S3FileParms {
 			return null;
 		return String.valueOf(parms.get(pn));
 	}
+	private long getLongParm(parmname pn, long defaultValue) {
+		Object value = parms.get(pn);
+		if(value instanceof Number)
+			return ((Number) value).longValue();
+		if(hasValue(value)) {
+			try {
+				return Long.parseLong(String.valueOf(value).trim());
+			}
+			catch(NumberFormatException e) {
+				logMessage("WARNING!: " + pn + " is not a number: " + value);
+			}
+		}
+		return defaultValue;
+	}
 	public void logIssue() {
 		log(getIssueMessage(), true);
 	}
@@ -135,49 +287,89 @@ public class S3FileParms {
 	public boolean useProfile() {
 		return hasValue(parms.get(parmname.profilename));
 	}
+	/**
+	 * @return A client shared through the S3ClientRegistry with every other S3FileParms of the same region and credentials.
+	 */
 	public AmazonS3 getS3Client() {
 		if(isComplete()) {
-			AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard().withRegion(getRegion());
-			
-			if(hasValue(parms.get(parmname.profilename))) {
-				builder = builder.withCredentials(
-						new ProfileCredentialsProvider(getProfilename()));
-			}
-			else if(hasValue(parms.get(parmname.accessKey)) && hasValue(parms.get(parmname.secretKey))){
-				builder = builder.withCredentials(
-						new AWSStaticCredentialsProvider(
-								new BasicAWSCredentials(getAccessKey(), getSecretKey())));				
-			}
-			else {
-				/**
-				 * com.amazonaws.auth.DefaultAWSCredentialsProviderChain should try to figure out credentials if you get here.
-				 * 
-				 * 1) You have run this function locally and not explicitly provided profilename or accessKey/secretKey.
-				 * This will not be a problem as the DefaultAWSCredentialsProviderChain will find your default profile 
-				 * if you have it set in ~/.aws/config, or you have set the equivalent environment variable, etc.
-				 *  
-				 * 2) In the case of a lambda-backed custom resource being created/updated during a cloudformation template 
-				 * execution, the credentials should be discoverable through the ServiceToken tied to the AWS::Lambda::Function
-				 * resource, and this should provide sufficient privileges, provided the IAM Role associated with the lambda 
-				 * function includes the arn:aws:iam::aws:policy/AmazonS3ReadOnlyAccess policy or the equivalent.
-				 * 
-				 * SEE: https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/auth/DefaultAWSCredentialsProviderChain.html
-				 */
-			}
-			return builder.build();
+			return S3ClientRegistry.getInstance().getClient(getRegion(), getCredentialSource(), () -> buildS3Client());
 		}
 		return null;
 	}
-	private boolean validParm(parmname pn) {
-		// Credentials are not required, so any value, including null is allowed.
-		if(pn.equals(parmname.profilename))
-			return true;
-		if(pn.equals(parmname.accessKey))
-			return true;
-		if(pn.equals(parmname.secretKey))
-			return true;
+	/**
+	 * @return An identifier for the credentials a client would be built with. The secret key is represented by a digest.
+	 */
+	String getCredentialSource() {
+		if(hasValue(parms.get(parmname.profilename))) {
+			return "profile:" + getProfilename();
+		}
+		if(hasValue(parms.get(parmname.accessKey)) && hasValue(parms.get(parmname.secretKey))) {
+			return "static:" + getAccessKey() + ":" + digest(getSecretKey());
+		}
+		return "default";
+	}
+	private static String digest(String s) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} 
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	private AmazonS3 buildS3Client() {
+		AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+				.withRegion(getRegion())
+				.withClientConfiguration(new ClientConfiguration()
+						.withMaxConnections(MAX_CONNECTIONS)
+						.withTcpKeepAlive(true));
 		
-		return hasValue(parms.get(pn));
+		if(hasValue(parms.get(parmname.profilename))) {
+			builder = builder.withCredentials(
+					new ProfileCredentialsProvider(getProfilename()));
+		}
+		else if(hasValue(parms.get(parmname.accessKey)) && hasValue(parms.get(parmname.secretKey))){
+			builder = builder.withCredentials(
+					new AWSStaticCredentialsProvider(
+							new BasicAWSCredentials(getAccessKey(), getSecretKey())));				
+		}
+		else {
+			/**
+			 * com.amazonaws.auth.DefaultAWSCredentialsProviderChain should try to figure out credentials if you get here.
+			 * 
+			 * 1) You have run this function locally and not explicitly provided profilename or accessKey/secretKey.
+			 * This will not be a problem as the DefaultAWSCredentialsProviderChain will find your default profile 
+			 * if you have it set in ~/.aws/config, or you have set the equivalent environment variable, etc.
+			 *  
+			 * 2) In the case of a lambda-backed custom resource being created/updated during a cloudformation template 
+			 * execution, the credentials should be discoverable through the ServiceToken tied to the AWS::Lambda::Function
+			 * resource, and this should provide sufficient privileges, provided the IAM Role associated with the lambda 
+			 * function includes the arn:aws:iam::aws:policy/AmazonS3ReadOnlyAccess policy or the equivalent.
+			 * 
+			 * SEE: https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/auth/DefaultAWSCredentialsProviderChain.html
+			 */
+		}
+		return builder.build();
+	}
+	private boolean validParm(parmname pn) {
+		switch(pn) {
+			case profilename: case accessKey: case secretKey:
+				// Credentials are not required, so any value, including null is allowed.
+				return true;
+			case versionId:
+				// The latest version is downloaded if no version is specified.
+				return true;
+			case partSize: case parallelism: case spoolThreshold: case spoolDirectory: case cacheEnabled: case decompress: case verifyChecksum:
+			case tailLatencyMode: case hedgeAfterMillis: case maxRetries: case deadline:
+				// Tuning values are not required, and have defaults.
+				return true;
+			default:
+				return hasValue(parms.get(pn));
+		}
 	}
 	private boolean hasValue(Object obj) {
 		// all other values cannot be null or empty.
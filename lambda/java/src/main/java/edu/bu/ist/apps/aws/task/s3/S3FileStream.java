@@ -0,0 +1,387 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import edu.bu.ist.apps.aws.task.s3.DiskObjectCache.DiskEntry;
+import edu.bu.ist.apps.aws.task.s3.S3ObjectCache.CachedObject;
+
+/**
+ * This class represents a single file stored in an S3 bucket that is consumed as it arrives rather than downloaded
+ * in full up front as S3File does. Nothing is requested from S3 until the content is first asked for, and at no point
+ * is more of the file held in memory than a single block (or a single line when iterating by line).
+ * This keeps memory use flat regardless of the size of the file.
+ * <p>
+ * Small objects are served from, and added to, the S3ObjectCache and DiskObjectCache in the same way as for S3File.
+ * An object served from the DiskObjectCache is streamed from its file.
+ * Where possible, the content is verified against its MD5 ETag as it is read (see verify).
+ * Files stored compressed (see ContentEncoding) are decompressed block by block as they are read.
+ * <p>
+ * Instances must be closed when finished with, so that the underlying http connection is released.
+ *
+ * @author wrh
+ *
+ */
+public class S3FileStream implements Closeable {
+
+	/**
+	 * Objects up to this size are captured while streaming so they can be added to the S3ObjectCache. 
+	 */
+	public static final int MAX_CAPTURE_BYTES = 1024 * 1024;
+	
+	private S3FileParms parms;
+	private S3Object s3obj;
+	private InputStream in;
+	private ContentEncoding encoding = ContentEncoding.NONE;
+	private ChecksumInputStream checksum;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private S3FileStream() {
+		super();
+	}
+
+	public S3FileStream(S3FileParms parms) {
+		this.parms = parms;
+	}
+
+	/**
+	 * @return The content of the file as a pull-based stream. The request to S3 is made on the first call.
+	 * @throws IOException If the parameters are incomplete, or the request fails.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if(in == null) {
+			if( ! parms.isComplete()) {
+				parms.logIssue();
+				throw new IOException(parms.getIssueMessage());
+			}
+			parms.logMessage("Streaming " + parms.getFilename() + " from S3 bucket " + parms.getBucketname() + "...");
+			
+			GetObjectRequest request = new GetObjectRequest(parms.getBucketname(), parms.getFilename(), parms.getVersionId());
+			S3ObjectCache cache = S3ObjectCache.getInstance();
+			DiskObjectCache disk = DiskObjectCache.getInstance();
+			String cacheKey = S3ObjectCache.getCacheKey(parms);
+			CachedObject cached = parms.useCache() ? cache.get(cacheKey) : null;
+			DiskEntry onDisk = null;
+			InputStream fromDisk = null;
+			
+			if(parms.useCache() && cached == null) {
+				onDisk = disk.get(cacheKey);
+				if(onDisk != null) {
+					try {
+						// Opened now, so that the file remains readable even if evicted before S3 responds.
+						fromDisk = Files.newInputStream(disk.getFile(onDisk).toPath());
+					}
+					catch(IOException e) {
+						disk.remove(cacheKey);
+						onDisk = null;
+					}
+				}
+			}
+			
+			String cachedEtag = cached != null ? cached.getEtag() : (onDisk != null ? onDisk.getEtag() : null);
+			if(cachedEtag != null && parms.getVersionId() == null) {
+				request = request.withNonmatchingETagConstraint(cachedEtag);
+			}
+			try {
+				if(cachedEtag == null || parms.getVersionId() == null) {
+					s3obj = new S3Requester(parms, parms.getS3Client()).getObject(request);
+				}
+			}
+			catch(InterruptedException e) {
+				if(fromDisk != null)
+					fromDisk.close();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while requesting " + parms.getFilename());
+			}
+			catch(RuntimeException e) {
+				if(fromDisk != null)
+					fromDisk.close();
+				throw e;
+			}
+			if(s3obj != null && fromDisk != null) {
+				// The object has changed, so the disk cached copy is not needed.
+				fromDisk.close();
+			}
+			if(s3obj == null) {
+				if(cachedEtag == null) {
+					throw new IOException("No content returned for " + parms.getFilename());
+				}
+				// Either a specific version that cannot have changed, or S3 responded with 304 (Not Modified).
+				if(cached != null) {
+					cache.recordHit();
+					parms.logMessage("Using cached copy of " + parms.getFilename() + " (ETag " + cached.getEtag() + "). " + cache);
+					in = new ByteArrayInputStream(cached.getBytes());
+				}
+				else {
+					disk.recordHit();
+					parms.logMessage("Using disk cached copy of " + parms.getFilename() + " (ETag " + onDisk.getEtag() + "). " + disk);
+					in = fromDisk;
+				}
+				return in;
+			}
+			if(parms.useCache()) {
+				cache.recordMiss();
+				if(cached == null) {
+					disk.recordMiss();
+				}
+			}
+			
+			ObjectMetadata metadata = s3obj.getObjectMetadata();
+			long length = getContentLength(metadata);
+			encoding = ContentEncoding.getInstance(parms, metadata);
+			if(encoding.isCompressed()) {
+				parms.logMessage("Decompressing " + parms.getFilename() + " (" + encoding + ")...");
+			}
+			InputStream stored = s3obj.getObjectContent();
+			if(parms.useChecksum()) {
+				checksum = ChecksumInputStream.getInstance(stored, metadata, parms.getFilename());
+				if(checksum != null) {
+					stored = checksum;
+				}
+			}
+			in = encoding.decode(stored);
+			if(parms.useCache()) {
+				if(length >= 0 && length <= MAX_CAPTURE_BYTES && metadata.getETag() != null) {
+					// The decompressed size is not known, so is only limited by MAX_CAPTURE_BYTES.
+					in = new CapturingInputStream(in, encoding.isCompressed() ? -1 : (int) length, cacheKey, metadata);
+				}
+			}
+		}
+		return in;
+	}
+	
+	/**
+	 * Passes the content through unchanged, keeping a copy that is added to the S3ObjectCache once the end of the
+	 * stream is reached, so that the next request for the same object can be revalidated instead of downloaded.
+	 * Only used for small objects, since keeping the copy works against the flat memory use that streaming is for.
+	 */
+	private class CapturingInputStream extends FilterInputStream {
+		private byte[] copy;
+		private int count;
+		private int length;
+		private String cacheKey;
+		private ObjectMetadata metadata;
+		/**
+		 * @param length The exact length of the content, or -1 if not known, in which case up to MAX_CAPTURE_BYTES is captured.
+		 */
+		private CapturingInputStream(InputStream in, int length, String cacheKey, ObjectMetadata metadata) {
+			super(in);
+			this.length = length;
+			this.copy = new byte[length >= 0 ? length : BlockReader.DEFAULT_BLOCK_SIZE];
+			this.cacheKey = cacheKey;
+			this.metadata = metadata;
+		}
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b == -1)
+				captured();
+			else
+				capture(new byte[] { (byte) b }, 0, 1);
+			return b;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n == -1)
+				captured();
+			else
+				capture(b, off, n);
+			return n;
+		}
+		private void capture(byte[] b, int off, int len) {
+			if(copy == null)
+				return;
+			if(count + len > copy.length) {
+				if(length >= 0 || count + len > MAX_CAPTURE_BYTES) {
+					// Either the content does not match its Content-Length, so it is not safe to cache, or it is too large.
+					copy = null;
+					return;
+				}
+				copy = Arrays.copyOf(copy, Math.min(Math.max(copy.length * 2, count + len), MAX_CAPTURE_BYTES));
+			}
+			System.arraycopy(b, off, copy, count, len);
+			count += len;
+		}
+		private void captured() throws IOException {
+			if(copy != null && checksum != null) {
+				// Nothing unverified goes into the cache.
+				try {
+					checksum.verify();
+				}
+				catch(IOException e) {
+					copy = null;
+					throw e;
+				}
+			}
+			if(copy != null && (length < 0 || count == length)) {
+				byte[] bytes = count == copy.length ? copy : Arrays.copyOf(copy, count);
+				long fetchTime = System.currentTimeMillis();
+				S3ObjectCache.getInstance().put(cacheKey, new CachedObject(bytes, metadata.getETag(), metadata.getVersionId(), fetchTime));
+				try {
+					DiskObjectCache.getInstance().put(cacheKey, ByteBuffer.wrap(bytes), metadata.getETag(), metadata.getVersionId(), fetchTime);
+				}
+				catch(IOException e) {
+					parms.logMessage("Could not add " + parms.getFilename() + " to the disk cache: " + e.getMessage());
+				}
+			}
+			copy = null;
+		}
+	}
+
+	/**
+	 * Confirm that the content matched its checksum. The check is made as the end of the content is read, but a reader
+	 * may not report the failure (ie: Properties.load), or may stop short of the end, so this should be called once 
+	 * reading is done and before anything read is used. Whatever was not read is read and discarded.
+	 * Content served from a cache, or without an MD5 ETag, is not checked.
+	 * @throws ChecksumMismatchException If the content did not match its checksum.
+	 * @throws IOException
+	 */
+	public void verify() throws IOException {
+		if(checksum != null) {
+			checksum.verify();
+		}
+	}
+
+	/**
+	 * @return The content of the file as a channel.
+	 * @throws IOException
+	 */
+	public ReadableByteChannel getChannel() throws IOException {
+		return Channels.newChannel(getInputStream());
+	}
+
+	/**
+	 * @return The length of the content of the file, or -1 if not known (ie: the file is being decompressed).
+	 * @throws IOException
+	 */
+	public long getContentLength() throws IOException {
+		getInputStream();
+		if(s3obj == null) {
+			// Served from the cache.
+			return in.available();
+		}
+		if(encoding.isCompressed()) {
+			return -1;
+		}
+		return getContentLength(s3obj.getObjectMetadata());
+	}
+	
+	private static long getContentLength(ObjectMetadata metadata) {
+		if(metadata == null || metadata.getRawMetadataValue(Headers.CONTENT_LENGTH) == null)
+			return -1;
+		return metadata.getContentLength();
+	}
+
+	/**
+	 * Write the content of the file to the output stream block by block as it arrives.
+	 * The output stream is flushed, but not closed.
+	 * @param out
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+	public long copyTo(OutputStream out) throws IOException {
+		InputStream stream = getInputStream();
+		BlockReader reader = new BlockReader();
+		byte[] block = new byte[reader.getBlockSize()];
+		long total = 0;
+		int n;
+		while((n = reader.read(stream, block, 0, block.length)) != -1) {
+			out.write(block, 0, n);
+			total += n;
+		}
+		out.flush();
+		return total;
+	}
+
+	/**
+	 * @return An iterator over the lines of the file, each line read from the network only when asked for.
+	 * An IOException encountered while iterating is rethrown as an UncheckedIOException.
+	 * @throws IOException
+	 */
+	public Iterator<String> lines() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+		return new Iterator<String>() {
+			private String next;
+			private boolean done;
+			@Override
+			public boolean hasNext() {
+				if(next != null)
+					return true;
+				if(done)
+					return false;
+				try {
+					next = reader.readLine();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				done = (next == null);
+				return ! done;
+			}
+			@Override
+			public String next() {
+				if( ! hasNext())
+					throw new NoSuchElementException();
+				String line = next;
+				next = null;
+				return line;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if(in != null)
+				in.close();
+		}
+		finally {
+			if(s3obj != null)
+				s3obj.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		S3FileStream s3file = new S3FileStream(new S3FileParms()
+				.setRegion("us-east-1")
+				.setBucketname("kuali-research-ec2-setup")
+				.setFilename("qa/core/environment.variables.s3")
+				.setProfilename("ecr.access")
+				.setLogger((String msg) -> System.out.println(msg)));
+
+		try {
+			for(Iterator<String> lines = s3file.lines(); lines.hasNext();) {
+				System.out.println(lines.next());
+			}
+		}
+		finally {
+			s3file.close();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of downloaded S3 objects, held in static scope so that it survives between invocations of a
+ * warm lambda container. Each CloudFormation create/update tends to ask for the same environment variables file and
+ * the same ssh keys, so rather than downloading them again, S3File sends the ETag of the cached copy in an
+ * If-None-Match header. If S3 responds with 304 (Not Modified), the cached bytes are reused.
+ * An object requested by version id can never change, so a cached copy of it is reused without asking S3 at all.
+ * <p>
+ * Since such a copy is served without S3 checking that the caller may read it, entries are keyed by the region and
+ * credentials they were downloaded with as well as the object, and a caller using other credentials downloads its own copy.
+ * <p>
+ * Entries are evicted least recently used first whenever the total size of all cached objects exceeds the byte budget.
+ * <p>
+ * NOTE: Cached byte arrays are shared by every S3File that is served from the cache, so must not be modified.
+ *
+ * @author wrh
+ *
+ */
+public class S3ObjectCache {
+
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private static final S3ObjectCache instance = new S3ObjectCache(DEFAULT_MAX_BYTES);
+
+	private final LinkedHashMap<String, CachedObject> entries = new LinkedHashMap<String, CachedObject>(16, 0.75f, true);
+	private long maxBytes;
+	private long totalBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A single cached object and the identifying metadata it was downloaded with.
+	 */
+	public static class CachedObject {
+		private final byte[] bytes;
+		private final String etag;
+		private final String versionId;
+		private final long fetchTime;
+		public CachedObject(byte[] bytes, String etag, String versionId, long fetchTime) {
+			this.bytes = bytes;
+			this.etag = etag;
+			this.versionId = versionId;
+			this.fetchTime = fetchTime;
+		}
+		public byte[] getBytes() {
+			return bytes;
+		}
+		public String getEtag() {
+			return etag;
+		}
+		public String getVersionId() {
+			return versionId;
+		}
+		public long getFetchTime() {
+			return fetchTime;
+		}
+	}
+
+	public S3ObjectCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static S3ObjectCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return The key for the object the parameters identify, qualified by the region and the credentials (see 
+	 * S3FileParms.getCredentialSource, which holds no secrets) that it is requested with. The content of a compressed 
+	 * object is cached as it was delivered, so a copy kept compressed (decompress=false) has a key of its own.
+	 */
+	public static String getCacheKey(S3FileParms parms) {
+		return parms.getRegion() + "|" + parms.getCredentialSource() + "|" 
+				+ getCacheKey(parms.getBucketname(), parms.getFilename(), parms.getVersionId())
+				+ (parms.useDecompress() ? "" : "|encoded");
+	}
+
+	public static String getCacheKey(String bucketname, String filename, String versionId) {
+		StringBuilder s = new StringBuilder().append(bucketname).append('/').append(filename);
+		if(versionId != null) {
+			s.append("?versionId=").append(versionId);
+		}
+		return s.toString();
+	}
+
+	public synchronized CachedObject get(String cacheKey) {
+		return entries.get(cacheKey);
+	}
+
+	/**
+	 * Add an object to the cache, evicting the least recently used entries as necessary to stay within the byte budget.
+	 * Objects larger than the whole budget are not cached.
+	 * @param cacheKey
+	 * @param obj
+	 */
+	public synchronized void put(String cacheKey, CachedObject obj) {
+		if(obj.getBytes().length > maxBytes)
+			return;
+		CachedObject replaced = entries.put(cacheKey, obj);
+		if(replaced != null) {
+			totalBytes -= replaced.getBytes().length;
+		}
+		totalBytes += obj.getBytes().length;
+		evict();
+	}
+
+	public synchronized void remove(String cacheKey) {
+		CachedObject removed = entries.remove(cacheKey);
+		if(removed != null) {
+			totalBytes -= removed.getBytes().length;
+		}
+	}
+
+	private void evict() {
+		for(Iterator<Map.Entry<String, CachedObject>> i = entries.entrySet().iterator(); i.hasNext() && totalBytes > maxBytes;) {
+			totalBytes -= i.next().getValue().getBytes().length;
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "S3ObjectCache [entries=" + entries.size() + ", bytes=" + totalBytes + "/" + maxBytes
+				+ ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+	}
+}
@@ -0,0 +1,91 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Pages through the names of all objects in a bucket under a prefix (ie: "ecs/ssh-keys/") using ListObjectsV2.
+ * <p>
+ * Listing is pipelined: as each page is handed out, the request for the page after it is started in the background,
+ * so that whatever the caller does with one page (ie: download the objects in it) overlaps the listing of the next.
+ * Objects directly under the prefix are listed. "Folders" below it are not descended into.
+ *
+ * @author wrh
+ *
+ */
+public class S3PrefixListing {
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private AmazonS3 s3Client;
+	private String bucketname;
+	private String prefix;
+	private int pageSize;
+	private Executor executor;
+	private CompletableFuture<ListObjectsV2Result> nextPage;
+
+	public S3PrefixListing(AmazonS3 s3Client, String bucketname, String prefix, int pageSize, Executor executor) {
+		this.s3Client = s3Client;
+		this.bucketname = bucketname;
+		this.prefix = prefix;
+		this.pageSize = pageSize;
+		this.executor = executor;
+		this.nextPage = CompletableFuture.supplyAsync(() -> list(null), executor);
+	}
+
+	public boolean hasNextPage() {
+		return nextPage != null;
+	}
+
+	/**
+	 * @return The keys of the objects in the next page, in the lexicographical order S3 lists them in.
+	 * @throws Exception If the listing request failed.
+	 */
+	public List<String> nextPage() throws Exception {
+		if(nextPage == null)
+			throw new NoSuchElementException("No more pages under " + prefix);
+
+		ListObjectsV2Result page;
+		try {
+			page = nextPage.get();
+		}
+		catch(ExecutionException e) {
+			nextPage = null;
+			throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+		}
+
+		if(page.isTruncated()) {
+			String token = page.getNextContinuationToken();
+			nextPage = CompletableFuture.supplyAsync(() -> list(token), executor);
+		}
+		else {
+			nextPage = null;
+		}
+
+		List<String> keys = new ArrayList<String>();
+		for(S3ObjectSummary summary : page.getObjectSummaries()) {
+			if( ! summary.getKey().endsWith("/")) {
+				keys.add(summary.getKey());
+			}
+		}
+		return keys;
+	}
+
+	private ListObjectsV2Result list(String continuationToken) {
+		return s3Client.listObjectsV2(new ListObjectsV2Request()
+				.withBucketName(bucketname)
+				.withPrefix(prefix)
+				.withDelimiter("/")
+				.withMaxKeys(pageSize)
+				.withContinuationToken(continuationToken));
+	}
+}
@@ -0,0 +1,244 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import edu.bu.ist.apps.aws.task.Deadline;
+import edu.bu.ist.apps.aws.task.WorkerPool;
+
+/**
+ * Makes S3 GET requests on behalf of S3File, S3FileStream and RangedDownloader. 
+ * <p>
+ * Normally a request is simply passed to the client. In tail latency mode (see S3FileParms.useTailLatencyMode) 
+ * a single slow request is kept from stalling the whole download:
+ * <ul>
+ *   <li>Hedging: If a GET has not returned (ie: received its response headers, which is as far as getObject waits)
+ *   within the 95th percentile of recent GET latencies, a duplicate GET is sent, and whichever returns first is used.
+ *   The other is aborted when it returns. Until enough latencies have been recorded, a fixed threshold is used.</li>
+ *   <li>Retrying: A GET that fails with a retryable error (ie: 500, 503 Slow Down, a connection reset) is retried 
+ *   after an exponential backoff with full jitter, up to the maximum number of retries.</li>
+ * </ul>
+ * Neither happens if the Deadline of the S3FileParms would be passed, and waiting is given up once it is.
+ * Whatever the mode, a request still in flight when the deadline passes is aborted, as is the content of any object
+ * still being read, so that abandoned work does not carry on downloading into the next invocation.
+ * The number of requests, hedges, hedges that won and retries are counted across all instances.
+ *
+ * @author wrh
+ *
+ */
+public class S3Requester {
+
+	public static final int MIN_SAMPLES = 20;
+	public static final double HEDGE_PERCENTILE = 0.95;
+	public static final long BASE_BACKOFF_MILLIS = 100;
+	public static final long MAX_BACKOFF_MILLIS = 5000;
+
+	private static final LatencyTracker latencies = new LatencyTracker(100);
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong hedges = new AtomicLong();
+	private static final AtomicLong hedgeWins = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+
+	private S3FileParms parms;
+	private AmazonS3 s3Client;
+
+	public S3Requester(S3FileParms parms, AmazonS3 s3Client) {
+		this.parms = parms;
+		this.s3Client = s3Client;
+	}
+
+	/**
+	 * @return The object, or null if an ETag constraint of the request was not met (as for AmazonS3.getObject).
+	 * @throws InterruptedException
+	 */
+	public S3Object getObject(GetObjectRequest request) throws InterruptedException {
+		Deadline deadline = parms.getDeadline();
+		if( ! parms.useTailLatencyMode()) {
+			return send(request, deadline);
+		}
+		for(int attempt = 0; ; attempt++) {
+			try {
+				return getObjectHedged(request, deadline);
+			}
+			catch(SdkClientException e) {
+				if(attempt >= parms.getMaxRetries() || ! isRetryable(e)) {
+					throw e;
+				}
+				long backoff = getBackoff(attempt);
+				if(deadline.getRemainingMillis() < backoff + getHedgeThreshold()) {
+					parms.logMessage("Not retrying GET of " + request.getKey() + ": too little time remains. " + e.getMessage());
+					throw e;
+				}
+				retries.incrementAndGet();
+				parms.logMessage("Retrying GET of " + request.getKey() + " in " + backoff + "ms after: " + e.getMessage());
+				Thread.sleep(backoff);
+			}
+		}
+	}
+
+	private S3Object getObjectHedged(GetObjectRequest request, Deadline deadline) throws InterruptedException {
+		BlockingQueue<CompletableFuture<S3Object>> completed = new LinkedBlockingQueue<CompletableFuture<S3Object>>();
+		List<CompletableFuture<S3Object>> attempts = new ArrayList<CompletableFuture<S3Object>>(2);
+		attempts.add(submit(request, completed, deadline));
+
+		long threshold = getHedgeThreshold();
+		CompletableFuture<S3Object> next = completed.poll(Math.min(threshold, deadline.getRemainingMillis()), TimeUnit.MILLISECONDS);
+		if(next == null && ! deadline.isExpired()) {
+			hedges.incrementAndGet();
+			parms.logMessage("No response to GET of " + request.getKey() + " within " + threshold + "ms, sending another...");
+			attempts.add(submit(request, completed, deadline));
+		}
+
+		SdkClientException failure = null;
+		int taken = 0;
+		try {
+			while(taken < attempts.size()) {
+				if(next == null) {
+					next = completed.poll(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+					if(next == null) {
+						break;
+					}
+				}
+				taken++;
+				try {
+					S3Object winner = next.join();
+					if(next != attempts.get(0)) {
+						hedgeWins.incrementAndGet();
+					}
+					attempts.remove(next);
+					return winner;
+				}
+				catch(CompletionException e) {
+					if(e.getCause() instanceof SdkClientException)
+						failure = (SdkClientException) e.getCause();
+					else if(e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					else
+						throw e;
+				}
+				next = null;
+			}
+		}
+		finally {
+			// Any request still outstanding is no longer wanted.
+			for(CompletableFuture<S3Object> attempt : attempts) {
+				attempt.thenAccept((S3Object unwanted) -> abort(unwanted));
+			}
+		}
+		if(failure != null && taken == attempts.size()) {
+			throw failure;
+		}
+		throw new SdkClientException("Gave up waiting for GET of " + request.getKey() + ": out of time. " + deadline);
+	}
+
+	private CompletableFuture<S3Object> submit(GetObjectRequest request, BlockingQueue<CompletableFuture<S3Object>> completed, Deadline deadline) {
+		requests.incrementAndGet();
+		CompletableFuture<S3Object> attempt = CompletableFuture.supplyAsync(() -> {
+			long start = System.nanoTime();
+			S3Object s3obj = send(request, deadline);
+			latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return s3obj;
+		}, WorkerPool.getExecutor());
+		attempt.whenComplete((S3Object s3obj, Throwable t) -> completed.add(attempt));
+		return attempt;
+	}
+
+	/**
+	 * Send the request, bounded by the deadline: the SDK gives up waiting for the response once it passes, and 
+	 * the content of the object is aborted if it is still being read then (see DeadlineContent). Interrupting the 
+	 * thread is not enough for either, since a socket read ignores interrupts.
+	 */
+	private S3Object send(GetObjectRequest request, Deadline deadline) {
+		if(deadline == null || ! deadline.isLimited()) {
+			return s3Client.getObject(request);
+		}
+		long remaining = deadline.getRemainingMillis();
+		if(remaining <= 0) {
+			throw new SdkClientException("Not sending GET of " + request.getKey() + ": out of time. " + deadline);
+		}
+		request.setSdkClientExecutionTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+		S3Object s3obj = s3Client.getObject(request);
+		if(s3obj != null) {
+			DeadlineContent.wrap(s3obj, deadline);
+		}
+		return s3obj;
+	}
+
+	private static void abort(S3Object s3obj) {
+		if(s3obj == null)
+			return;
+		try {
+			// Abort rather than close, so the rest of the content is not downloaded just to reuse the connection.
+			s3obj.getObjectContent().abort();
+			s3obj.close();
+		}
+		catch(Exception e) {
+			// Do nothing.
+		}
+	}
+
+	private boolean isRetryable(SdkClientException e) {
+		if(e instanceof AmazonServiceException) {
+			return RetryUtils.isRetryableServiceException(e) || RetryUtils.isThrottlingException(e);
+		}
+		// A client side failure (ie: connection reset, timeout) is retryable unless it says otherwise.
+		return e.isRetryable();
+	}
+
+	/**
+	 * @return A random backoff between zero and the exponential backoff for the attempt ("full jitter").
+	 */
+	private long getBackoff(int attempt) {
+		long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * @return The 95th percentile of recent GET latencies, or the fixed threshold of the S3FileParms until there are enough samples.
+	 */
+	private long getHedgeThreshold() {
+		if(latencies.getCount() < MIN_SAMPLES) {
+			return parms.getHedgeAfterMillis();
+		}
+		return Math.max(1, latencies.getPercentile(HEDGE_PERCENTILE));
+	}
+
+	public static long getRequests() {
+		return requests.get();
+	}
+
+	public static long getHedges() {
+		return hedges.get();
+	}
+
+	public static long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	public static long getRetries() {
+		return retries.get();
+	}
+
+	public static LatencyTracker getLatencies() {
+		return latencies;
+	}
+
+	public static String getStats() {
+		return "S3Requester [requests=" + requests.get() + ", hedges=" + hedges.get() + ", hedgeWins=" + hedgeWins.get() 
+			+ ", retries=" + retries.get() + ", p95=" + latencies.getPercentile(HEDGE_PERCENTILE) + "ms]";
+	}
+}
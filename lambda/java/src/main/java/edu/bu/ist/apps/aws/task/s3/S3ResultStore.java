@@ -0,0 +1,70 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import edu.bu.ist.apps.aws.task.ResultStore;
+
+/**
+ * A ResultStore that writes results to objects in an S3 bucket, under a common prefix (ie: "lambda-results/").
+ * Objects are encrypted at rest, since a result may hold values that are only masked in logs.
+ *
+ * @author wrh
+ *
+ */
+public class S3ResultStore implements ResultStore {
+
+	public static final String DEFAULT_PREFIX = "lambda-results/";
+
+	private AmazonS3 s3Client;
+	private String bucketname;
+	private String prefix;
+
+	/**
+	 * Restrict default constructor
+	 */
+	@SuppressWarnings("unused")
+	private S3ResultStore() {
+		super();
+	}
+
+	public S3ResultStore(AmazonS3 s3Client, String bucketname, String prefix) {
+		this.s3Client = s3Client;
+		this.bucketname = bucketname;
+		this.prefix = prefix == null ? "" : prefix;
+	}
+
+	@Override
+	public boolean exists(String name) throws IOException {
+		try {
+			return s3Client.doesObjectExist(bucketname, prefix + name);
+		}
+		catch(SdkClientException e) {
+			throw new IOException("Could not check for s3://" + bucketname + "/" + prefix + name, e);
+		}
+	}
+
+	@Override
+	public void put(String name, byte[] content) throws IOException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setContentType("application/json");
+		metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+		try {
+			s3Client.putObject(new PutObjectRequest(bucketname, prefix + name, new ByteArrayInputStream(content), metadata));
+		}
+		catch(SdkClientException e) {
+			throw new IOException("Could not write s3://" + bucketname + "/" + prefix + name, e);
+		}
+	}
+
+	@Override
+	public String getLocation(String name) {
+		return "s3://" + bucketname + "/" + prefix + name;
+	}
+}
@@ -0,0 +1,200 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.bu.ist.apps.aws.task.Deadline;
+import edu.bu.ist.apps.aws.task.Task;
+import edu.bu.ist.apps.aws.task.s3.InMemoryS3;
+import edu.bu.ist.apps.aws.task.s3.S3ClientRegistry;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CustomResourceHandlerTest {
+
+	private static final String REGION = "us-east-1";
+	private static final String PROFILE = "custom-resource-handler-test";
+	private static final String BUCKET = "my-bucket";
+
+	private HttpServer server;
+	private ByteArrayOutputStream received;
+
+	private Map<String, Object> startServer() throws Exception {
+		received = new ByteArrayOutputStream();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/response", exchange -> {
+			try(InputStream in = exchange.getRequestBody()) {
+				byte[] buf = new byte[1024];
+				int read;
+				while((read = in.read(buf)) != -1) {
+					received.write(buf, 0, read);
+				}
+			}
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		server.start();
+		Map<String, Object> input = new LinkedHashMap<String, Object>();
+		input.put("RequestType", "Create");
+		input.put("StackId", "arn:aws:cloudformation:us-east-1:123456789012:stack/test/1");
+		input.put("RequestId", "request-1");
+		input.put("LogicalResourceId", "PublicKeysLookup");
+		input.put("ResponseURL", "http://127.0.0.1:" + server.getAddress().getPort() + "/response");
+		input.put("ResourceProperties", new LinkedHashMap<String, Object>());
+		return input;
+	}
+
+	private Context getContext(int remainingMillis) {
+		Context context = mock(Context.class);
+		when(context.getLogStreamName()).thenReturn("log-stream");
+		when(context.getLogger()).thenReturn(mock(LambdaLogger.class));
+		when(context.getRemainingTimeInMillis()).thenReturn(remainingMillis);
+		return context;
+	}
+
+	@Test
+	public void test01TimeoutRespondsFailed() throws Exception {
+		Map<String, Object> input = startServer();
+		try {
+			CustomResourceHandler handler = new CustomResourceHandler() {
+				@Override ResponseData getResponseData(Map<String, Object> request, String requestType, ScrubbingLogger logger, Deadline deadline) throws Exception {
+					Thread.sleep(10000);
+					return null;
+				}
+			};
+			long start = System.currentTimeMillis();
+			handler.handleRequest(input, getContext((int) CustomResourceHandler.RESPONSE_MARGIN_MILLIS + 200));
+			assertTrue("Should not wait for the task", System.currentTimeMillis() - start < 5000);
+			
+			JSONObject response = new JSONObject(new String(received.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals("FAILED", response.getString("Status"));
+			assertTrue(response.getString("Reason").startsWith("Task did not finish"));
+			assertFalse(response.has("Data"));
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> putEnvVarsTask(Map<String, Object> input, String s3file) {
+		Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+		rsrcProps.put("task", Task.CONTAINER_ENV_VARS.getShortname());
+		rsrcProps.put("region", REGION);
+		rsrcProps.put("profile", PROFILE);
+		rsrcProps.put("s3bucket", BUCKET);
+		rsrcProps.put("s3file", s3file);
+		rsrcProps.put("cache", "false");
+		rsrcProps.put("outputmask", "{class: edu.bu.ist.apps.aws.task.BasicOutputMask, parameters: {fieldsToMask: {full: [], logs: [all]}}}");
+		return rsrcProps;
+	}
+
+	@Test
+	public void test02FailureRespondsWithReason() throws Exception {
+		Map<String, Object> input = startServer();
+		try {
+			new InMemoryS3().register(REGION, PROFILE).addObject(BUCKET, "env/app.env", "DB_HOST=localhost\n");
+			putEnvVarsTask(input, "env/missing.env");
+			CustomResourceHandler handler = new CustomResourceHandler();
+			handler.handleRequest(input, getContext(0));
+			
+			// A task that fails is reported as FAILED, not as SUCCESS with the error in its data.
+			JSONObject response = new JSONObject(new String(received.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals("FAILED", response.getString("Status"));
+			assertTrue(response.getString("Reason"), response.getString("Reason").startsWith("AmazonS3Exception: "));
+			assertFalse(response.has("Data"));
+			
+			// A warm container reuses the handler, and the last failure must not carry over.
+			received.reset();
+			input.put("RequestType", "Delete");
+			handler.handleRequest(input, getContext(0));
+			response = new JSONObject(new String(received.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals("SUCCESS", response.getString("Status"));
+			assertFalse(response.has("Reason"));
+		}
+		finally {
+			server.stop(0);
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+
+	@Test
+	public void test03OutOfTimeRespondsFailed() throws Exception {
+		Map<String, Object> input = startServer();
+		try {
+			new InMemoryS3().register(REGION, PROFILE).addObject(BUCKET, "env/app.env", "DB_HOST=localhost\n");
+			putEnvVarsTask(input, "env/app.env");
+			
+			// Only the margins remain, so the task is out of time before it starts, and gives up before the handler does.
+			new CustomResourceHandler().handleRequest(input, 
+					getContext((int) (CustomResourceHandler.RESPONSE_MARGIN_MILLIS + CustomResourceHandler.TASK_MARGIN_MILLIS)));
+			
+			JSONObject response = new JSONObject(new String(received.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals("FAILED", response.getString("Status"));
+			assertTrue(response.getString("Reason"), response.getString("Reason").contains("out of time"));
+			assertFalse(response.has("Data"));
+		}
+		finally {
+			server.stop(0);
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+
+	@Test
+	public void test04TaskGetsSnapshotOfRequest() throws Exception {
+		Map<String, Object> input = startServer();
+		try {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+			rsrcProps.put("keys", new ArrayList<Object>(Arrays.asList("wrh", "mukadder")));
+			List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+			CustomResourceHandler handler = new CustomResourceHandler() {
+				@Override ResponseData getResponseData(Map<String, Object> request, String requestType, ScrubbingLogger logger, Deadline deadline) throws Exception {
+					requests.add(request);
+					return null;
+				}
+			};
+			handler.handleRequest(input, getContext(0));
+			
+			// What the task was given does not change with the input of the next invocation, nor can the task change it.
+			Map<String, Object> request = requests.get(0);
+			rsrcProps.put("task", "next");
+			input.put("RequestId", "request-2");
+			assertEquals("request-1", request.get("RequestId"));
+			assertFalse(((Map<?,?>) request.get("ResourceProperties")).containsKey("task"));
+			assertEquals(Arrays.asList("wrh", "mukadder"), ((Map<?,?>) request.get("ResourceProperties")).get("keys"));
+			try {
+				((List<?>) ((Map<?,?>) request.get("ResourceProperties")).get("keys")).clear();
+				fail("Expected UnsupportedOperationException");
+			}
+			catch(UnsupportedOperationException e) {
+				// Expected.
+			}
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+}
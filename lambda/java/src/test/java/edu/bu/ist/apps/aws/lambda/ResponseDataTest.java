@@ -1,17 +1,27 @@
 package edu.bu.ist.apps.aws.lambda;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -19,10 +29,14 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import edu.bu.ist.apps.aws.task.DirectoryResultStore;
+import edu.bu.ist.apps.aws.task.ResponsePacker;
+import edu.bu.ist.apps.aws.task.ResultStore;
 import edu.bu.ist.apps.aws.task.Task;
 import edu.bu.ist.apps.aws.task.TaskFactory;
 import edu.bu.ist.apps.aws.task.TaskResult;
 import edu.bu.ist.apps.aws.task.TaskRunner;
+import edu.bu.ist.apps.aws.task.ValueEncoder;
 
 @FixMethodOrder
 @RunWith(MockitoJUnitRunner.class)
@@ -193,4 +207,160 @@ public class ResponseDataTest {
 				"input.ResourceProperties.map1.key3.map2.key3.map3.key3: map3.value3\r\n" +
 				" "), getLogString());
 	}
+	
+	@Test
+	public void test04ScrubbedSecrets() throws Exception {
+		
+		// A value masked in the output that also turns up elsewhere, and a credential passed in as a resource property.
+		@SuppressWarnings("unchecked")
+		Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+		rsrcProps.put("secretkey", "my-secret-key");
+		rsrcProps.put("map1.key4", "The password is myresult2!");
+		when(taskResult.getSensitiveValues()).thenReturn(Arrays.asList("myresult2"));
+		parms.setInput(input).setLogger(new ScrubbingLogger(logger));
+		
+		ResponseData rd = new ResponseData(parms);
+		assertEquals("myresult2", rd.get("result2"));
+		
+		String logged = getLogString();
+		assertTrue(logged.contains("input.ResourceProperties.secretkey: *************\r\n"));
+		assertTrue(logged.contains("result.result2: *********\r\n"));
+		assertFalse(logged.contains("my-secret-key"));
+		
+		// The input is not logged until the results are known, so a result echoed in the input is masked there too.
+		assertTrue(logged.contains("input.ResourceProperties.map1.key4: The password is *********!\r\n"));
+		assertFalse(logged.contains("myresult2"));
+		assertEquals("Still *********", scrub(parms, "Still myresult2"));
+	}
+	
+	@Test
+	public void test05Packed() throws Exception {
+		
+		@SuppressWarnings("unchecked")
+		Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+		rsrcProps.put("pack", "true");
+		
+		// The results are replaced by the packed attributes, and still logged as they are.
+		ResponseData rd = new ResponseData(parms);
+		assertEquals("1", rd.get(ResponsePacker.PARTS));
+		assertNotNull(rd.get(ResponsePacker.DATA_PREFIX + "1"));
+		assertNull(rd.get("result1"));
+		assertEquals(taskResult.getMaskedResults(), ResponsePacker.unpack(rd));
+		assertTrue(getLogString().contains("result.result1: myresult1\r\n"));
+	}
+	
+	@Test
+	public void test06Spilled() throws Exception {
+		
+		@SuppressWarnings("unchecked")
+		Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+		File directory = Files.createTempDirectory("results").toFile();
+		DirectoryResultStore store = new DirectoryResultStore(directory);
+		when(taskRunner.getResultStore(any(Object.class), any(Logger.class))).thenReturn(store);
+		
+		// Small enough to return as is.
+		ResponseData rd = new ResponseData(parms);
+		assertEquals("myresult1", rd.get("result1"));
+		assertNull(rd.get(ResultStore.LOCATION));
+		
+		// Asked to be stored anyway, so only the pointer is returned.
+		rsrcProps.put("spill", "true");
+		rd = new ResponseData(parms);
+		assertNull(rd.get("result1"));
+		String digest = String.valueOf(rd.get(ResultStore.DIGEST));
+		File stored = new File(directory, digest + ".json");
+		assertEquals(stored.toURI().toString(), rd.get(ResultStore.LOCATION));
+		assertEquals(new JSONObject(taskResult.getMaskedResults()).toMap(), 
+				new JSONObject(new String(Files.readAllBytes(stored.toPath()), StandardCharsets.UTF_8)).toMap());
+		
+		// Too large to return, so stored without being asked to.
+		rsrcProps.remove("spill");
+		StringBuilder large = new StringBuilder();
+		while(large.length() <= ResponsePacker.RESPONSE_LIMIT) {
+			large.append("myresult4 ");
+		}
+		taskResult.getMaskedResults().put("result4", large.toString());
+		rd = new ResponseData(parms);
+		assertNull(rd.get("result4"));
+		assertNotNull(rd.get(ResultStore.LOCATION));
+		assertNotEquals(digest, rd.get(ResultStore.DIGEST));
+		assertEquals(2, directory.list().length);
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	@Test
+	public void test07SpilledByResponseSize() throws Exception {
+		
+		@SuppressWarnings("unchecked")
+		Map<String, Object> rsrcProps = (Map<String, Object>) input.get("ResourceProperties");
+		File directory = Files.createTempDirectory("results").toFile();
+		when(taskRunner.getResultStore(any(Object.class), any(Logger.class))).thenReturn(new DirectoryResultStore(directory));
+		
+		// Fewer characters than the limit, but more bytes once encoded as UTF-8.
+		StringBuilder accented = new StringBuilder();
+		while(accented.length() <= ResponsePacker.RESPONSE_LIMIT / 2) {
+			accented.append("\u00e9");
+		}
+		taskResult.getMaskedResults().put("result4", accented.toString());
+		ResponseData rd = new ResponseData(parms);
+		assertNull(rd.get("result4"));
+		assertNotNull(rd.get(ResultStore.LOCATION));
+		
+		// A small result, but the input echoed along with it makes the whole response too large.
+		taskResult.getMaskedResults().remove("result4");
+		StringBuilder padding = new StringBuilder();
+		while(padding.length() <= ResponsePacker.RESPONSE_LIMIT) {
+			padding.append("padding ");
+		}
+		rsrcProps.put("padding", padding.toString());
+		rd = new ResponseData(parms);
+		assertNull(rd.get("result1"));
+		assertNotNull(rd.get(ResultStore.LOCATION));
+		
+		// Small enough all told.
+		rsrcProps.remove("padding");
+		rd = new ResponseData(parms);
+		assertEquals("myresult1", rd.get("result1"));
+		assertNull(rd.get(ResultStore.LOCATION));
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	@Test
+	public void test08EncodedKeys() throws Exception {
+		
+		// A public key file ends with a line break, which is returned as it is, since a template cannot decode base64.
+		Map<String, Object> keys = new LinkedHashMap<String, Object>();
+		keys.put("wrh", "ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n");
+		keys.put("mukadder", "ssh-rsa AAAAB3NzaC1yc2F mukadder@bu.edu");
+		when(taskRunner.run(any(Task.class), any(Object.class), any(Logger.class))).thenReturn(TaskResult.getInstanceFromMap(keys));
+		ResponseData rd = new ResponseData(parms);
+		assertEquals("ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n", rd.get("wrh"));
+		assertEquals("ssh-rsa AAAAB3NzaC1yc2F mukadder@bu.edu", rd.get("mukadder"));
+		assertNull(rd.get(ValueEncoder.ENCODED_KEYS));
+		
+		// Only a value that could not be returned as it is gets encoded, and the response says which one that was.
+		keys.put("keystore", "PKCS12\u0000\u0001binary");
+		when(taskRunner.run(any(Task.class), any(Object.class), any(Logger.class))).thenReturn(TaskResult.getInstanceFromMap(keys));
+		rd = new ResponseData(parms);
+		assertEquals(Base64.getEncoder().encodeToString("PKCS12\u0000\u0001binary".getBytes(StandardCharsets.UTF_8)), rd.get("keystore"));
+		assertEquals("ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n", rd.get("wrh"));
+		assertEquals("keystore", rd.get(ValueEncoder.ENCODED_KEYS));
+		
+		// Everything is encoded if asked to, and all of it listed.
+		keys.remove("keystore");
+		when(taskRunner.run(any(Task.class), any(Object.class), any(Logger.class))).thenReturn(TaskResult.getInstanceFromMap(keys));
+		rd = new ResponseData(parms.setBase64(true));
+		assertEquals(Base64.getEncoder().encodeToString("ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n".getBytes(StandardCharsets.UTF_8)), rd.get("wrh"));
+		assertEquals("wrh,mukadder", rd.get(ValueEncoder.ENCODED_KEYS));
+	}
+	
+	private String scrub(ResponseDataParms parms, String s) {
+		return ((ScrubbingLogger) parms.getLogger()).scrub(s);
+	}
 }
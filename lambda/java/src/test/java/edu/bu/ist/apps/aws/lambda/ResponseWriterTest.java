@@ -0,0 +1,116 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.sun.net.httpserver.HttpServer;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ResponseWriterTest {
+
+	private Map<String, Object> getInput() {
+		Map<String, Object> resourceProperties = new LinkedHashMap<String, Object>();
+		resourceProperties.put("task", "get.ec2.public.keys");
+		resourceProperties.put("nested", new LinkedHashMap<String, Object>(Collections.singletonMap("list", Arrays.asList(1, 2.5, true, null))));
+		Map<String, Object> input = new LinkedHashMap<String, Object>();
+		input.put("RequestType", "Create");
+		input.put("StackId", "arn:aws:cloudformation:us-east-1:123456789012:stack/test/1");
+		input.put("RequestId", "request-1");
+		input.put("LogicalResourceId", "PublicKeysLookup");
+		input.put("ResourceProperties", resourceProperties);
+		return input;
+	}
+
+	private ResponseData getResponseData(Map<String, Object> input) throws Exception {
+		ResponseData responseData = new ResponseData(new ResponseDataParms().setRequestType("DELETE").setLogger((String msg) -> { }));
+		responseData.put("input", input);
+		responseData.put("wrh", "ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n");
+		responseData.put("escapes", "quote\" backslash\\ </script> tab\t bell\u0007 nbsp\u0085 dash—");
+		responseData.put("unicode", "café 中文 😀");
+		responseData.put("missing", null);
+		return responseData;
+	}
+
+	@Test
+	public void test01SameAsJSONObject() throws Exception {
+		Map<String, Object> input = getInput();
+		ResponseData responseData = getResponseData(input);
+		ResponseWriter writer = new ResponseWriter(input, "SUCCESS", "log-stream", responseData);
+		
+		String json = writer.toString();
+		assertEquals(json.getBytes(StandardCharsets.UTF_8).length, writer.getLength());
+		assertTrue(new JSONObject(json).similar(CustomResourceHandler.getResponseBody(input, "SUCCESS", "log-stream", responseData)));
+		
+		// Strings are escaped exactly as JSONObject escapes them.
+		for(String key : new String[] { "escapes", "unicode" }) {
+			String value = String.valueOf(responseData.get(key));
+			assertTrue(key, json.contains(JSONObject.quote(key) + ":" + JSONObject.quote(value)));
+		}
+		
+		// An unpaired surrogate cannot be encoded as UTF-8, so is sent as "?", as an OutputStreamWriter would.
+		responseData.put("unicode", "lone\ud83d");
+		writer = new ResponseWriter(input, "SUCCESS", "log-stream", responseData);
+		json = writer.toString();
+		assertTrue(json.contains("\"unicode\":\"lone?\""));
+		assertEquals(json.getBytes(StandardCharsets.UTF_8).length, writer.getLength());
+		
+		// No data, no Data.
+		assertEquals(new JSONObject(CustomResourceHandler.getResponseBody(input, "FAILED", "log-stream", null).toString()).toMap(),
+				new JSONObject(new ResponseWriter(input, "FAILED", "log-stream", null).toString()).toMap());
+	}
+
+	@Test
+	public void test02SendResponse() throws Exception {
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		String[] contentLength = new String[1];
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/response", exchange -> {
+			contentLength[0] = exchange.getRequestHeaders().getFirst("Content-Length");
+			try(InputStream in = exchange.getRequestBody()) {
+				byte[] buf = new byte[1024];
+				int read;
+				while((read = in.read(buf)) != -1) {
+					received.write(buf, 0, read);
+				}
+			}
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		server.start();
+		try {
+			Map<String, Object> input = getInput();
+			input.put("ResponseURL", "http://127.0.0.1:" + server.getAddress().getPort() + "/response");
+			Context context = mock(Context.class);
+			when(context.getLogStreamName()).thenReturn("log-stream");
+			when(context.getLogger()).thenReturn(mock(LambdaLogger.class));
+			ResponseData responseData = getResponseData(input);
+			
+			new CustomResourceHandler().sendResponse(input, context, responseData);
+			
+			String expected = new ResponseWriter(input, "SUCCESS", "log-stream", responseData).toString();
+			assertEquals(expected, new String(received.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals(String.valueOf(received.size()), contentLength[0]);
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package edu.bu.ist.apps.aws.lambda;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SecretScrubberTest {
+
+	@Test
+	public void testScrub() {
+		SecretScrubber scrubber = SecretScrubber.getInstance(Arrays.asList("password1", "word1234", "secret", "ab", null, "  ab  "));
+		assertEquals(3, scrubber.getSecretCount());
+		
+		assertEquals("nothing to see here", scrubber.scrub("nothing to see here"));
+		String clean = "nothing hidden";
+		assertSame(clean, scrubber.scrub(clean));
+		assertEquals(null, scrubber.scrub(null));
+		
+		assertEquals("the ****** is out", scrubber.scrub("the secret is out"));
+		assertEquals("******,******", scrubber.scrub("secret,secret"));
+		assertEquals("************", scrubber.scrub("secretsecret"));
+		
+		// Overlapping secrets are masked as one.
+		assertEquals("pass: ************ end", scrubber.scrub("pass: password1234 end"));
+		// A secret that fails to match partway through is still found when it starts inside that partial match.
+		assertEquals("passwor********", scrubber.scrub("passworword1234"));
+		// Too short to be treated as a secret.
+		assertEquals("ab", scrubber.scrub("ab"));
+	}
+
+	@Test
+	public void testManySecrets() {
+		List<String> secrets = new ArrayList<String>();
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 1000; i++) {
+			secrets.add("secret-" + i + "-value");
+			text.append("key").append(i).append("=secret-").append(i).append("-value; ");
+		}
+		String scrubbed = SecretScrubber.getInstance(secrets).scrub(text.toString());
+		assertEquals(text.length(), scrubbed.length());
+		assertTrue( ! scrubbed.contains("secret-"));
+		assertTrue(scrubbed.startsWith("key0=**************; key1=**************; "));
+	}
+
+	@Test
+	public void testScrubbingLogger() {
+		List<String> logs = new ArrayList<String>();
+		ScrubbingLogger logger = new ScrubbingLogger((String msg) -> logs.add(msg));
+		logger.log("my-password before");
+		logger.addSecrets(Arrays.asList("my-password"));
+		logger.log("my-password after");
+		assertEquals(Arrays.asList("my-password before", "*********** after"), logs);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		logger.printStackTrace(new IllegalStateException("Could not connect with my-password"), new PrintStream(out));
+		String trace = out.toString();
+		assertTrue(trace.startsWith("java.lang.IllegalStateException: Could not connect with ***********"));
+		assertTrue(trace.contains("at edu.bu.ist.apps.aws.lambda.SecretScrubberTest.testScrubbingLogger"));
+	}
+}
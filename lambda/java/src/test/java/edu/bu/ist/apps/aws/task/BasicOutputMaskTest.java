@@ -5,7 +5,10 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.FixMethodOrder;
@@ -263,6 +266,82 @@ public class BasicOutputMaskTest {
 				"}", GOOD_CLASS), false, true);
 	}
 
+	@Test
+	public void test05Patterns() {
+		OutputMask mask = OutputMask.getInstance(String.format("{  \r\n" + 
+				"   class: %s,\r\n" + 
+				"   parameters:{  \r\n" + 
+				"      fieldsToMask:{  \r\n" + 
+				"         full:[\"*_SECRET*\", \"/mongo_(user|pass)/\", mongo_uri],\r\n" + 
+				"         logs:[\"AWS_*\", \"KEY?\", all]\r\n" + 
+				"      }\r\n" + 
+				"   }\r\n" + 
+				"}", GOOD_CLASS), (String msg) -> { log(msg); });
+		
+		assertTrue(mask instanceof BasicOutputMask);
+		
+		// Wildcards and regular expressions match the whole field name, ignoring case.
+		assertEquals("******", mask.getOutput("SERVICE_SECRET_1", "123456"));
+		assertEquals("******", mask.getOutput("service_secret", "123456"));
+		assertEquals("123456", mask.getOutput("SECRET", "123456"));
+		assertEquals("****", mask.getOutput("MONGO_PASS", "1234"));
+		assertEquals("****", mask.getOutput("Mongo_User", "1234"));
+		assertEquals("1234", mask.getOutput("MONGO_PASSWORD", "1234"));
+		assertEquals("****", mask.getOutput("MONGO_URI", "1234"));
+		assertEquals("****", mask.getLogOutput("MONGO_URI", "1234"));
+		
+		// Logs only.
+		assertEquals("12345", mask.getOutput("AWS_ACCESS_KEY_ID", "12345"));
+		assertEquals("*****", mask.getLogOutput("AWS_ACCESS_KEY_ID", "12345"));
+		assertEquals("*****", mask.getLogOutput("key1", "12345"));
+		assertEquals("12345", mask.getLogOutput("key12", "12345"));
+		assertEquals("12345", mask.getLogOutput("MY_AWS_KEY", "12345"));
+		
+		// "all" alongside other fields is just a field name.
+		assertEquals("*****", mask.getLogOutput("ALL", "12345"));
+		assertEquals("12345", mask.getLogOutput("anything", "12345"));
+		
+		// Repeated lookups give the same answer, and blank values are still not masked.
+		assertEquals("******", mask.getOutput("SERVICE_SECRET_1", "abcdef"));
+		assertNull(mask.getOutput("SERVICE_SECRET_1", "  "));
+		assertEquals(200, mask.getOutput("SERVICE_SECRET_1", new String(new char[200]).replace('\0', 'x')).length());
+		assertTrue(logs.isEmpty());
+	}
+
+	@Test
+	public void test06BulkMasking() {
+		OutputMask mask = OutputMask.getInstance(String.format("{  \r\n" + 
+				"   class: %s,\r\n" + 
+				"   parameters:{  \r\n" + 
+				"      fieldsToMask:{  \r\n" + 
+				"         full:[\"*_SECRET\"],\r\n" + 
+				"         logs:[\"*_USER\"]\r\n" + 
+				"      }\r\n" + 
+				"   }\r\n" + 
+				"}", GOOD_CLASS), (String msg) -> { log(msg); });
+		
+		// Below and above the size at which maps are masked concurrently.
+		for(int size : new int[] { 10, BasicOutputMask.PARALLEL_THRESHOLD * 3 + 7 }) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			for(int i = 0; i < size; i++) {
+				String suffix = i % 3 == 0 ? "_SECRET" : i % 3 == 1 ? "_USER" : "_NAME";
+				values.put("FIELD" + i + suffix, i % 10 == 0 ? "  " : "value" + i);
+			}
+			Map<String, String> outputs = mask.getOutputs(values);
+			Map<String, String> logOutputs = mask.getLogOutputs(values);
+			assertEquals(new ArrayList<String>(values.keySet()), new ArrayList<String>(outputs.keySet()));
+			assertEquals(new ArrayList<String>(values.keySet()), new ArrayList<String>(logOutputs.keySet()));
+			for(Map.Entry<String, Object> entry : values.entrySet()) {
+				assertEquals(mask.getOutput(entry.getKey(), entry.getValue()), outputs.get(entry.getKey()));
+				assertEquals(mask.getLogOutput(entry.getKey(), entry.getValue()), logOutputs.get(entry.getKey()));
+			}
+		}
+		assertEquals("******", mask.getOutputs(Collections.singletonMap("A_SECRET", "123456")).get("A_SECRET"));
+		assertEquals("123456", mask.getOutputs(Collections.singletonMap("A_USER", "123456")).get("A_USER"));
+		assertEquals("******", mask.getLogOutputs(Collections.singletonMap("A_USER", "123456")).get("A_USER"));
+		assertTrue(logs.isEmpty());
+	}
+
 	private void log(String msg) {
 		System.out.println(msg);
 		logs.add(msg);
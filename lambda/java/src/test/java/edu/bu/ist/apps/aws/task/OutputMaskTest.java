@@ -114,6 +114,64 @@ public class OutputMaskTest {
 		assertTrue(logs.isEmpty());
 	}
 	
+	@Test
+	public void test08CachedInstance() {
+		OutputMask mask = OutputMask.getInstance(String.format("{ class: %s, parameters: { fieldsToMask: { full: [A, B], logs: [C] } } }", GOOD_CLASS), 
+				(String msg) -> { log(msg); });
+		assertNotNull(mask);
+		
+		// The same json, and json that differs only in formatting, get the same mask.
+		assertSame(mask, OutputMask.getInstance(String.format("{ class: %s, parameters: { fieldsToMask: { full: [A, B], logs: [C] } } }", GOOD_CLASS), 
+				(String msg) -> { log(msg); }));
+		assertSame(mask, OutputMask.getInstance(String.format("{\"parameters\":{\"fieldsToMask\":{\"logs\":[\"C\"],\"full\":[\"A\",\"B\"]}},\"class\":\"%s\"}", GOOD_CLASS), 
+				(String msg) -> { log(msg); }));
+		
+		// Different json gets a different mask.
+		OutputMask other = OutputMask.getInstance(String.format("{ class: %s, parameters: { fieldsToMask: { full: [B, A], logs: [C] } } }", GOOD_CLASS), 
+				(String msg) -> { log(msg); });
+		assertNotNull(other);
+		assertNotSame(mask, other);
+		assertTrue(logs.isEmpty());
+		
+		// Failures are not cached, so are reported every time.
+		assertNull(OutputMask.getInstance("THIS IS NOT JSON", (String msg) -> { log(msg); }));
+		assertNull(OutputMask.getInstance("THIS IS NOT JSON", (String msg) -> { log(msg); }));
+		assertEquals(2, logs.size());
+	}
+
+	@Test
+	public void test09UnregisteredClass() {
+		String json = String.format("{ class: %s, parameters: { prefix: \"masked:\" } }", PrefixMask.class.getName());
+		OutputMask mask = OutputMask.getInstance(json, (String msg) -> { log(msg); });
+		assertTrue(mask instanceof PrefixMask);
+		assertEquals("masked:value", mask.getOutput("key", "value"));
+		assertSame(mask, OutputMask.getInstance(json, (String msg) -> { log(msg); }));
+		
+		// A class that is not an OutputMask is reported.
+		assertNull(OutputMask.getInstance("{ class: java.lang.String, parameters: {} }", (String msg) -> { log(msg); }));
+		assertEquals(1, logs.size());
+		assertTrue(logs.get(0).contains("ClassCastException"));
+	}
+	
+	@Test
+	public void test10InvalidPattern() {
+		// The constructor of a registered mask throws PatternSyntaxException, which is reported rather than thrown.
+		OutputMask mask = OutputMask.getInstance(String.format("{ class: %s, parameters: { fieldsToMask: { full: [\"/MONGO_(USER/\"], logs: [] } } }", GOOD_CLASS), 
+				(String msg) -> { log(msg); });
+		assertNull(mask);
+		assertEquals(1, logs.size());
+		assertTrue(logs.get(0).contains("PatternSyntaxException"));
+	}
+	
+	public static class PrefixMask implements OutputMask {
+		private String prefix;
+		public PrefixMask(String json) {
+			prefix = new org.json.JSONObject(json).getString("prefix");
+		}
+		@Override public String getLogOutput(String key, Object value) { return prefix + value; }
+		@Override public String getOutput(String key, Object value) { return prefix + value; }
+	}
+	
 	private void log(String msg) {
 		System.out.println(msg);
 		logs.add(msg);
@@ -0,0 +1,113 @@
+package edu.bu.ist.apps.aws.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class PropertiesParserTest {
+
+	// Every feature of the properties file format that java.util.Properties supports.
+	private static String props = "# A comment\r\n" + 
+			"! Another comment \\\r\n" + 
+			"ZEBRA=last alphabetically, first in the file\n" + 
+			"   INDENTED = value with spaces around the separator   \n" + 
+			"COLON:value\n" + 
+			"WHITESPACE value\n" + 
+			"WHITESPACE_THEN_EQUALS   =   value\n" + 
+			"EMPTY=\n" + 
+			"KEY_ONLY\n" + 
+			"\n" + 
+			"   \t\n" + 
+			"CONTINUED=first, \\\n" + 
+			"     second, \\\r\n" + 
+			"\tthird\n" + 
+			"ESCAPED\\=KEY\\ WITH\\:SEPARATORS=value\n" + 
+			"ESCAPES=tab\\tnewline\\nreturn\\rformfeed\\fbackslash\\\\other\\q\n" + 
+			"UNICODE=caf\\u00e9 \\u2603\n" + 
+			"LATIN1=caf\u00e9\n" + 
+			"EQUALS_IN_VALUE=a=b:c\n" + 
+			"DUPLICATE=first\r" + 
+			"DUPLICATE=second\r" + 
+			"NO_LINE_BREAK_AT_END=done\\";
+
+	private Map<String, String> getExpected(byte[] bytes) throws Exception {
+		Properties expected = new Properties();
+		expected.load(new ByteArrayInputStream(bytes));
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for(String key : expected.stringPropertyNames()) {
+			map.put(key, expected.getProperty(key));
+		}
+		return map;
+	}
+
+	@Test
+	public void testSameAsProperties() throws Exception {
+		byte[] bytes = props.getBytes(StandardCharsets.ISO_8859_1);
+		Map<String, String> parsed = PropertiesParser.parse(bytes);
+		assertEquals(getExpected(bytes), parsed);
+		assertEquals("first, second, third", parsed.get("CONTINUED"));
+		assertEquals("caf\u00e9 \u2603", parsed.get("UNICODE"));
+		assertEquals("second", parsed.get("DUPLICATE"));
+		assertEquals("done", parsed.get("NO_LINE_BREAK_AT_END"));
+	}
+
+	@Test
+	public void testFileOrder() throws Exception {
+		List<String> keys = new ArrayList<String>(PropertiesParser.parse(props.getBytes(StandardCharsets.ISO_8859_1)).keySet());
+		assertEquals(Arrays.asList("ZEBRA", "INDENTED", "COLON", "WHITESPACE", "WHITESPACE_THEN_EQUALS", "EMPTY", "KEY_ONLY", 
+				"CONTINUED", "ESCAPED=KEY WITH:SEPARATORS", "ESCAPES", "UNICODE", "LATIN1", "EQUALS_IN_VALUE", "DUPLICATE", 
+				"NO_LINE_BREAK_AT_END"), keys);
+	}
+
+	@Test
+	public void testChunked() throws Exception {
+		// Every possible split of the content between two chunks, as well as a byte at a time, should parse the same.
+		byte[] bytes = props.getBytes(StandardCharsets.ISO_8859_1);
+		Map<String, String> expected = getExpected(bytes);
+		for(int split = 0; split <= bytes.length; split++) {
+			Map<String, String> parsed = new LinkedHashMap<String, String>();
+			PropertiesParser parser = new PropertiesParser((String key, String value) -> parsed.put(key, value));
+			parser.feed(bytes, 0, split);
+			parser.feed(bytes, split, bytes.length - split);
+			parser.finish();
+			assertEquals("split at " + split, expected, parsed);
+		}
+		
+		Map<String, String> parsed = new LinkedHashMap<String, String>();
+		PropertiesParser parser = new PropertiesParser((String key, String value) -> parsed.put(key, value));
+		for(int i = 0; i < bytes.length; i++) {
+			parser.feed(bytes, i, 1);
+		}
+		parser.finish();
+		assertEquals(expected, parsed);
+		assertEquals(16, parser.getEntryCount());
+		
+		// Same again from a direct buffer, as when memory-mapped from a spool file.
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		assertEquals(expected, PropertiesParser.parse(direct));
+		assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void testMalformedUnicode() {
+		try {
+			PropertiesParser.parse("BAD=\\u00zz".getBytes(StandardCharsets.ISO_8859_1));
+			fail("Expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			assertEquals("Malformed \\uxxxx encoding.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package edu.bu.ist.apps.aws.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ResponsePackerTest {
+
+	/**
+	 * @return A public key as it would appear in an id_rsa.pub file (with a random, rather than generated, modulus).
+	 */
+	private static String getPublicKey(String comment, Random random) throws IOException {
+		byte[] modulus = new byte[257];
+		random.nextBytes(modulus);
+		modulus[0] = 0;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for(byte[] part : new byte[][] { "ssh-rsa".getBytes(StandardCharsets.US_ASCII), new byte[] { 1, 0, 1 }, modulus }) {
+			out.writeInt(part.length);
+			out.write(part);
+		}
+		return "ssh-rsa " + Base64.getEncoder().encodeToString(bytes.toByteArray()) + " " + comment + "\n";
+	}
+
+	@Test
+	public void test01SshKeys() throws Exception {
+		Random random = new Random(42);
+		String[] users = new String[] { "wrh", "mukadder", "dhaywood", "mkousheh", "user5", "user6", "user7", "user8", "user9", "user10" };
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for(String user : users) {
+			values.put(user, getPublicKey(user + "@kuali-research-ci.bu.edu", random));
+		}
+		values.put("note", "ssh-rsa but not a key");
+		
+		// Ten 2048 bit keys do not fit in one response as they are, but do once packed.
+		ResponsePacker packer = new ResponsePacker();
+		Map<String, Object> packed = packer.pack(values);
+		assertTrue(packer.getRawSize() > ResponsePacker.RESPONSE_LIMIT);
+		assertTrue(packer.toString(), packer.fitsResponse());
+		assertEquals(String.valueOf(packer.getParts()), packed.get(ResponsePacker.PARTS));
+		assertEquals(String.valueOf(packer.getPackedSize()), packed.get(ResponsePacker.SIZE));
+		
+		// The keys come back without their comments, and anything else as it was.
+		Map<String, String> unpacked = ResponsePacker.unpack(packed);
+		assertEquals(values.keySet(), unpacked.keySet());
+		for(String user : users) {
+			String key = String.valueOf(values.get(user));
+			assertEquals(key.substring(0, key.lastIndexOf(' ')), unpacked.get(user));
+		}
+		assertEquals("ssh-rsa but not a key", unpacked.get("note"));
+	}
+
+	@Test
+	public void test02Parts() throws Exception {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < 500; i++) {
+			s.append(Integer.toHexString(i * 7919));
+			values.put("key" + i, s.toString().substring(Math.max(0, s.length() - 40)));
+		}
+		values.put("empty", "");
+		values.put("null", null);
+		
+		ResponsePacker packer = new ResponsePacker(100);
+		Map<String, Object> packed = packer.pack(values);
+		assertTrue(packer.getParts() > 1);
+		for(int i = 1; i <= packer.getParts(); i++) {
+			String part = String.valueOf(packed.get(ResponsePacker.DATA_PREFIX + i));
+			assertTrue(part.length() <= 100);
+		}
+		assertNull(packed.get(ResponsePacker.DATA_PREFIX + (packer.getParts() + 1)));
+		
+		Map<String, String> unpacked = ResponsePacker.unpack(packed);
+		assertEquals(values.size(), unpacked.size());
+		assertEquals(values.get("key499"), unpacked.get("key499"));
+		assertEquals("", unpacked.get("null"));
+		
+		// A missing part is reported rather than unpacked as garbage.
+		packed.remove(ResponsePacker.DATA_PREFIX + "2");
+		try {
+			ResponsePacker.unpack(packed);
+			throw new AssertionError("Expected an IOException");
+		}
+		catch(IOException e) {
+			assertNotNull(e.getMessage());
+		}
+	}
+
+	@Test
+	public void test03NotSshKeys() {
+		assertNull(ResponsePacker.decodeSshKey("ssh-rsa"));
+		assertNull(ResponsePacker.decodeSshKey("ssh-rsa AAAA!"));
+		// Valid base64, but the key inside names another algorithm.
+		String dss = Base64.getEncoder().encodeToString(new byte[] { 0, 0, 0, 7, 's', 's', 'h', '-', 'd', 's', 's', 1, 2, 3 });
+		assertNull(ResponsePacker.decodeSshKey("ssh-rsa " + dss));
+		assertNotNull(ResponsePacker.decodeSshKey("ssh-dss " + dss));
+	}
+}
@@ -1,10 +1,23 @@
 package edu.bu.ist.apps.aws.task;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -176,6 +189,195 @@ public class TaskResultTest {
 		assertMember("KC_IDP_AUTH_REQUEST_URL", "https://kuali-research-ci.bu.edu/Shibboleth.sso/SAML2/POST", map);
 	}
 
+	@Test
+	public void testPropertiesFromStream() throws IOException {
+		
+		TaskResult tr = TaskResult.getInstanceFromProperties(new ByteArrayInputStream(props.getBytes()), null);
+		Map<String, Object> map = tr.getMaskedResults();
+		assertNotNull(map);
+		assertEquals(19, map.keySet().size());
+		assertMember("LANDSCAPE", "ci", map);
+		assertMember("MONGO_PASS", "mongo-password", map);
+		assertMember("START_CMD", "node --inspect /var/core/index.js", map);
+	}
+
+	@Test
+	public void testPropertiesFromBrokenStream() {
+		
+		// A download that breaks off part way must fail rather than pass for a shorter file.
+		byte[] bytes = props.getBytes();
+		InputStream in = new SequenceInputStream(new ByteArrayInputStream(bytes, 0, bytes.length / 2), new InputStream() {
+			@Override public int read() throws IOException { throw new IOException("Connection reset"); }
+		});
+		try {
+			TaskResult.getInstanceFromProperties(in, null);
+			fail("Expected IOException");
+		}
+		catch(IOException e) {
+			assertEquals("Connection reset", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testPropertiesFromMalformedStream() throws IOException {
+		
+		// A malformed escape is not a failure to read, so the entries before it are kept.
+		String malformed = "KEY1=value1\nKEY2=value2\nKEY3=bad\\u00zz\nKEY4=value4\n";
+		List<String> messages = new ArrayList<String>();
+		TaskResult tr = TaskResult.getInstanceFromProperties(new ByteArrayInputStream(malformed.getBytes()), null, 
+				(String msg) -> { messages.add(msg); });
+		Map<String, Object> map = tr.getMaskedResults();
+		assertEquals(2, map.size());
+		assertMember("KEY2", "value2", map);
+		
+		// It is reported through the logger given, without the content.
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(0).startsWith("WARNING!: Properties content could not be parsed after 2 entries"));
+		assertFalse(messages.get(0).contains("bad"));
+	}
+
+	@Test
+	public void testPropertiesLoader() {
+		
+		OutputMask outputmask = OutputMask.getInstance(String.format("{ class: %s, parameters: { fieldsToMask: { "
+				+ "full: [MONGO_PASS], logs: [LANDSCAPE] } } }", GOOD_CLASS), (String msg) -> { log(msg); } );
+		
+		// Fed in chunks that split entries, as when the ranges of a download arrive.
+		byte[] bytes = props.getBytes();
+		TaskResult.PropertiesLoader loader = new TaskResult.PropertiesLoader(outputmask);
+		for(int i = 0; i < bytes.length; i += 37) {
+			loader.content(ByteBuffer.wrap(bytes, i, Math.min(37, bytes.length - i)));
+		}
+		TaskResult tr = loader.getResult();
+		Map<String, Object> map = tr.getMaskedResults();
+		assertEquals(19, map.keySet().size());
+		assertEquals("LANDSCAPE", map.keySet().iterator().next());
+		assertMember("MONGO_PASS", "**************", map);
+		assertMember("KC_IDP_AUTH_REQUEST_URL", "https://kuali-research-ci.bu.edu/Shibboleth.sso/SAML2/POST", map);
+		assertMember("LANDSCAPE", "**", tr.getMaskedResultsForLogging());
+	}
+
+	@Test
+	public void testMemoizedViews() {
+		
+		int[] maskCalls = new int[1];
+		OutputMask outputmask = new OutputMask() {
+			@Override public String getLogOutput(String key, Object value) { maskCalls[0]++; return "***"; }
+			@Override public String getOutput(String key, Object value) { maskCalls[0]++; return String.valueOf(value); }
+		};
+		TaskResult tr = TaskResult.getInstanceFromProperties(props.getBytes(), outputmask);
+		
+		// The mask is applied once per entry no matter how often the views are asked for, and the views are reused.
+		Map<String, Object> map = tr.getMaskedResults();
+		assertSame(map, tr.getMaskedResults());
+		assertSame(tr.getMaskedResultsForLogging(), tr.getMaskedResultsForLogging());
+		assertSame(tr.getResults(), tr.getResults());
+		tr.toString();
+		assertEquals(38, maskCalls[0]);
+		
+		// A change is reflected in new views.
+		tr.put("NEW_KEY", "new value");
+		assertNotSame(map, tr.getMaskedResults());
+		assertEquals(20, tr.getMaskedResults().size());
+		assertEquals("new value", tr.getMaskedResults().get("NEW_KEY"));
+		assertEquals("***", tr.getMaskedResultsForLogging().get("NEW_KEY"));
+		assertEquals(40, maskCalls[0]);
+		
+		tr.replaceKey("NEW_KEY", "RENAMED_KEY");
+		assertNull(tr.getMaskedResults().get("NEW_KEY"));
+		assertEquals("new value", tr.getMaskedResults().get("RENAMED_KEY"));
+		
+		Map<String, Object> more = new LinkedHashMap<String, Object>();
+		more.put("MORE_1", "one");
+		more.put("MORE_2", "two");
+		tr.putAll(more);
+		assertEquals(22, tr.getResults().size());
+		assertEquals("two", tr.getMaskedResults().get("MORE_2"));
+	}
+
+	@Test
+	public void testBulkMasking() {
+		
+		int[] bulkCalls = new int[1];
+		OutputMask outputmask = new OutputMask() {
+			@Override public String getLogOutput(String key, Object value) { return "***"; }
+			@Override public String getOutput(String key, Object value) { return String.valueOf(value); }
+			@Override public Map<String, String> getOutputs(Map<String, ?> values) {
+				bulkCalls[0]++;
+				return OutputMask.super.getOutputs(values);
+			}
+			@Override public Map<String, String> getLogOutputs(Map<String, ?> values) {
+				bulkCalls[0]++;
+				return OutputMask.super.getLogOutputs(values);
+			}
+		};
+		Map<String, Object> raw = new LinkedHashMap<String, Object>();
+		for(int i = 0; i < 100; i++) {
+			raw.put("KEY_" + i, "value " + i);
+		}
+		TaskResult tr = TaskResult.getInstanceFromMap(raw, outputmask);
+		
+		// All entries are masked in one call per view, and only the new entry when the results change.
+		assertEquals("value 99", tr.getMaskedResults().get("KEY_99"));
+		assertEquals("***", tr.getMaskedResultsForLogging().get("KEY_99"));
+		assertEquals(2, bulkCalls[0]);
+		tr.put("KEY_100", "value 100");
+		assertEquals(101, tr.getMaskedResults().size());
+		assertEquals("value 100", tr.getMaskedResults().get("KEY_100"));
+		assertEquals(3, bulkCalls[0]);
+		assertEquals("value 0", tr.getResults().get(0).getValue());
+	}
+
+	@Test
+	public void testBase64() {
+		// Binary content (ie: a keystore) cannot be returned as it is.
+		String key = "0\u0082\u0003PKCS12\u0000\u0001\u0002keystore";
+		Map<String, Object> raw = new LinkedHashMap<String, Object>();
+		raw.put("HOST", "kuali-research-ci.bu.edu");
+		raw.put("PUBLIC_KEY", "ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n");
+		raw.put("SSH_KEY", key);
+		raw.put("SSH_KEY_LOGGED", key);
+		raw.put("SSH_KEY_HIDDEN", key);
+		raw.put("BLANK", "  ");
+		OutputMask outputmask = OutputMask.getInstance(String.format("{class: %s, parameters: {fieldsToMask: {"
+				+ "full: [SSH_KEY_HIDDEN], logs: [SSH_KEY]}}}", GOOD_CLASS), (String msg) -> { logs.add(msg); });
+		TaskResult tr = TaskResult.getInstanceFromMap(raw, outputmask);
+		
+		// Only the values that need it are encoded. A masked value is all asterisks, so needs no encoding, and a line
+		// break can be returned as it is.
+		assertTrue(tr.containsIllegalCharacters());
+		List<String> encoded = tr.convertToBase64();
+		assertEquals(2, encoded.size());
+		assertEquals("SSH_KEY", encoded.get(0));
+		assertEquals("SSH_KEY_LOGGED", encoded.get(1));
+		String base64 = Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+		assertEquals("kuali-research-ci.bu.edu", tr.getMaskedResults().get("HOST"));
+		assertEquals("ssh-rsa AAAAB3NzaC1yc2E wrh@bu.edu\n", tr.getMaskedResults().get("PUBLIC_KEY"));
+		assertEquals(base64, tr.getMaskedResults().get("SSH_KEY"));
+		assertEquals(base64, tr.getMaskedResults().get("SSH_KEY_LOGGED"));
+		assertEquals(key.replaceAll(".", "*").length(), String.valueOf(tr.getMaskedResults().get("SSH_KEY_HIDDEN")).length());
+		assertFalse(tr.containsIllegalCharacters());
+		
+		// The log values are not encoded, and the encoding of a sensitive value is sensitive too.
+		assertEquals(key, tr.getMaskedResultsForLogging().get("SSH_KEY_LOGGED"));
+		assertTrue(tr.getSensitiveValues().contains(base64));
+		
+		// Encoding again changes nothing, but everything can be encoded if asked for.
+		assertEquals(encoded, tr.convertToBase64());
+		assertEquals(5, tr.convertToBase64(true).size());
+		assertEquals(Base64.getEncoder().encodeToString("kuali-research-ci.bu.edu".getBytes(StandardCharsets.UTF_8)), tr.getMaskedResults().get("HOST"));
+		assertEquals(base64, tr.getMaskedResults().get("SSH_KEY"));
+		assertTrue(logs.isEmpty());
+	}
+
+	@Test
+	public void testBlobIsUtf8() {
+		String comment = "ssh-rsa AAAAB3NzaC1yc2E José Müller 中文";
+		byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+		assertEquals(comment, TaskResult.getInstanceFromBlob(bytes).getMaskedResults().get("blob"));
+		assertEquals(comment, TaskResult.getInstanceFromBlob(ByteBuffer.wrap(bytes), null).getMaskedResults().get("blob"));
+	}
+
 	@Test
 	public void testBlob() {		
 		TaskResult tr = TaskResult.getInstanceFromBlob(sblob.getBytes());
@@ -0,0 +1,193 @@
+package edu.bu.ist.apps.aws.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.After;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import edu.bu.ist.apps.aws.lambda.Logger;
+import edu.bu.ist.apps.aws.task.s3.InMemoryS3;
+import edu.bu.ist.apps.aws.task.s3.S3ClientRegistry;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TaskRunnerTest {
+
+	private static final String REGION = "us-east-1";
+	private static final String PROFILE = "task-runner-test";
+	private static final String BUCKET = "my-bucket";
+	
+	private List<String> logged = new ArrayList<String>();
+	private Logger logger = (String msg) -> { logged.add(msg); };
+
+	@After
+	public void teardown() {
+		S3ClientRegistry.getInstance().clear();
+	}
+	
+	private Map<String, Object> getResourceProperties(Task task) {
+		Map<String, Object> resourceProperties = new LinkedHashMap<String, Object>();
+		resourceProperties.put("task", task.getShortname());
+		resourceProperties.put("region", REGION);
+		resourceProperties.put("profile", PROFILE);
+		resourceProperties.put("s3bucket", BUCKET);
+		resourceProperties.put("cache", "false");
+		resourceProperties.put("outputmask", "{class: edu.bu.ist.apps.aws.task.BasicOutputMask, parameters: {fieldsToMask: {full: [], logs: [all]}}}");
+		return resourceProperties;
+	}
+
+	@Test
+	public void test01BadNumbersFallBackToDefaults() throws Exception {
+		new InMemoryS3().register(REGION, PROFILE).addObject(BUCKET, "env/app.env", "DB_HOST=localhost\nDB_PORT=5432\n");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.CONTAINER_ENV_VARS);
+		resourceProperties.put("s3file", "env/app.env");
+		resourceProperties.put("partsize", "4k");
+		resourceProperties.put("parallelism", "four");
+		resourceProperties.put("maxretries", " ");
+		
+		TaskResult result = new TaskRunner().run(Task.CONTAINER_ENV_VARS, resourceProperties, logger);
+		
+		assertEquals("localhost", result.getMaskedResults().get("DB_HOST"));
+		assertEquals("5432", result.getMaskedResults().get("DB_PORT"));
+		assertTrue(logged.contains("WARNING!: partsize is not a number: 4k"));
+		assertTrue(logged.contains("WARNING!: parallelism is not a number: four"));
+	}
+	
+	@Test
+	public void test02PublicKeys() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().register(REGION, PROFILE)
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-wrh", "ssh-rsa AAAA wrh@bu.edu")
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-mukadder", "ssh-rsa BBBB mukadder@bu.edu")
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-dhaywood", "ssh-rsa CCCC dhaywood@bu.edu");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.EC2_PUBLIC_KEYS);
+		resourceProperties.put("keyparallelism", "2");
+		resourceProperties.put("s3files", "{s3keyfiles: ["
+				+ "  {user:wrh, keyfile:\"ecs/ssh-keys/rsa-key-wrh\"},"
+				+ "  {user:mukadder, keyfile:\"ecs/ssh-keys/rsa-key-mukadder\"},"
+				+ "  {user:dhaywood, keyfile:\"ecs/ssh-keys/rsa-key-dhaywood\"}"
+				+ "]}");
+		
+		TaskResult result = new TaskRunner().run(Task.EC2_PUBLIC_KEYS, resourceProperties, logger);
+		
+		// Keyed by the user named for each key file, in the order the key files are listed.
+		Map<String, Object> keys = result.getMaskedResults();
+		assertEquals(Arrays.asList("wrh", "mukadder", "dhaywood"), new ArrayList<String>(keys.keySet()));
+		assertEquals("ssh-rsa AAAA wrh@bu.edu", keys.get("wrh"));
+		assertEquals("ssh-rsa BBBB mukadder@bu.edu", keys.get("mukadder"));
+		assertEquals("ssh-rsa CCCC dhaywood@bu.edu", keys.get("dhaywood"));
+		assertEquals(3, s3.getRequestCount());
+	}
+	
+	@Test
+	public void test03PublicKeysFailure() throws Exception {
+		new InMemoryS3().register(REGION, PROFILE)
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-wrh", "ssh-rsa AAAA wrh@bu.edu");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.EC2_PUBLIC_KEYS);
+		resourceProperties.put("s3files", "{s3keyfiles: ["
+				+ "  {user:wrh, keyfile:\"ecs/ssh-keys/rsa-key-wrh\"},"
+				+ "  {user:mukadder, keyfile:\"ecs/ssh-keys/rsa-key-mukadder\"},"
+				+ "  {user:dhaywood, keyfile:\"ecs/ssh-keys/rsa-key-dhaywood\"}"
+				+ "]}");
+		
+		// Every missing key is reported, not just the first.
+		try {
+			new TaskRunner().run(Task.EC2_PUBLIC_KEYS, resourceProperties, logger);
+			fail("Expected a TaskFailureException");
+		}
+		catch(TaskFailureException e) {
+			assertEquals(Arrays.asList("mukadder (ecs/ssh-keys/rsa-key-mukadder)", "dhaywood (ecs/ssh-keys/rsa-key-dhaywood)"), 
+					new ArrayList<String>(e.getFailures().keySet()));
+		}
+		
+		// Unless a partial result is allowed.
+		resourceProperties.put("allowpartial", "true");
+		TaskResult result = new TaskRunner().run(Task.EC2_PUBLIC_KEYS, resourceProperties, logger);
+		assertEquals("ssh-rsa AAAA wrh@bu.edu", result.getMaskedResults().get("wrh"));
+		assertEquals("mukadder (ecs/ssh-keys/rsa-key-mukadder), dhaywood (ecs/ssh-keys/rsa-key-dhaywood)", 
+				result.getMaskedResults().get(TaskRunner.FAILED_KEYS));
+	}
+	
+	@Test
+	public void test04PublicKeysByPrefix() throws Exception {
+		new InMemoryS3().register(REGION, PROFILE)
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-wrh.pub", "ssh-rsa AAAA wrh@bu.edu")
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-mukadder.pub", "ssh-rsa BBBB mukadder@bu.edu")
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-dhaywood.pub", "ssh-rsa CCCC dhaywood@bu.edu")
+				// Not a key file: no user name, wrong prefix or suffix, in a sub folder, or not under the prefix at all.
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-.pub", "ssh-rsa DDDD")
+				.addObject(BUCKET, "ecs/ssh-keys/readme.txt", "Upload keys as rsa-key-[user].pub")
+				.addObject(BUCKET, "ecs/ssh-keys/rsa-key-wrh", "ssh-rsa EEEE")
+				.addObject(BUCKET, "ecs/ssh-keys/old/rsa-key-olduser.pub", "ssh-rsa FFFF")
+				.addObject(BUCKET, "ecs/other/rsa-key-other.pub", "ssh-rsa GGGG");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.EC2_PUBLIC_KEYS_BY_PREFIX);
+		resourceProperties.put("s3prefix", "ecs/ssh-keys/");
+		// Several pages, so that a page is downloaded while the next is listed.
+		resourceProperties.put("pagesize", "2");
+		
+		TaskResult result = new TaskRunner().run(Task.EC2_PUBLIC_KEYS_BY_PREFIX, resourceProperties, logger);
+		
+		// The user name is the file name between the key prefix and suffix. Keys come in the order they are listed.
+		Map<String, Object> keys = result.getMaskedResults();
+		assertEquals(Arrays.asList("dhaywood", "mukadder", "wrh"), new ArrayList<String>(keys.keySet()));
+		assertEquals("ssh-rsa AAAA wrh@bu.edu", keys.get("wrh"));
+		assertEquals("ssh-rsa BBBB mukadder@bu.edu", keys.get("mukadder"));
+		assertEquals("ssh-rsa CCCC dhaywood@bu.edu", keys.get("dhaywood"));
+		assertTrue(logged.contains("Found 3 public keys under ecs/ssh-keys/"));
+	}
+	
+	@Test
+	public void test05PublicKeysByPrefixCustomNames() throws Exception {
+		new InMemoryS3().register(REGION, PROFILE)
+				.addObject(BUCKET, "keys/jdoe.key", "ssh-rsa AAAA jdoe@bu.edu")
+				.addObject(BUCKET, "keys/first.last.key", "ssh-rsa BBBB first.last@bu.edu")
+				.addObject(BUCKET, "keys/rsa-key-wrh.pub", "ssh-rsa CCCC wrh@bu.edu")
+				.addObject(BUCKET, "keys/.key", "ssh-rsa DDDD");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.EC2_PUBLIC_KEYS_BY_PREFIX);
+		resourceProperties.put("s3prefix", "keys/");
+		resourceProperties.put("keyprefix", "");
+		resourceProperties.put("keysuffix", ".key");
+		
+		Map<String, Object> keys = new TaskRunner().run(Task.EC2_PUBLIC_KEYS_BY_PREFIX, resourceProperties, logger).getMaskedResults();
+		assertEquals(Arrays.asList("first.last", "jdoe"), new ArrayList<String>(keys.keySet()));
+		assertEquals("ssh-rsa BBBB first.last@bu.edu", keys.get("first.last"));
+		
+		// Nothing under the prefix is not a failure.
+		resourceProperties.put("s3prefix", "nokeys/");
+		assertTrue(new TaskRunner().run(Task.EC2_PUBLIC_KEYS_BY_PREFIX, resourceProperties, logger).getMaskedResults().isEmpty());
+	}
+	
+	@Test
+	public void test06CompressedEnvVarsStreamed() throws Exception {
+		// The inflater stops at the end of the compressed data, so the end of the stream is still unread when the parser
+		// reaches the end of the decompressed content.
+		StringBuilder env = new StringBuilder();
+		for(int i = 0; i < 2000; i++) {
+			env.append("VAR_").append(i).append("=value-").append(i).append("\n");
+		}
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		try(DeflaterOutputStream out = new DeflaterOutputStream(deflated)) {
+			out.write(env.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		new InMemoryS3().register(REGION, PROFILE).addObject(BUCKET, "env/app.env", deflated.toByteArray(), "deflate");
+		Map<String, Object> resourceProperties = getResourceProperties(Task.CONTAINER_ENV_VARS);
+		resourceProperties.put("s3file", "env/app.env");
+		
+		// The content is verified before its stream is closed, which a real connection would not allow reads after.
+		TaskResult result = new TaskRunner().run(Task.CONTAINER_ENV_VARS, resourceProperties, logger);
+		
+		assertEquals(2000, result.getMaskedResults().size());
+		assertEquals("value-1999", result.getMaskedResults().get("VAR_1999"));
+	}
+}
@@ -0,0 +1,117 @@
+package edu.bu.ist.apps.aws.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class WorkerPoolTest {
+
+	@Test
+	public void test01AllIndexesRunWithBoundedParallelism() throws Exception {
+		int[] ran = new int[50];
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		
+		Map<Integer, Exception> failures = WorkerPool.invokeAll(ran.length, 4, false, (int index) -> {
+			int now = running.incrementAndGet();
+			maxRunning.accumulateAndGet(now, Math::max);
+			Thread.sleep(2);
+			ran[index]++;
+			running.decrementAndGet();
+		});
+		
+		assertTrue(failures.isEmpty());
+		assertTrue(Arrays.stream(ran).allMatch((int count) -> count == 1));
+		assertTrue(maxRunning.get() <= 4);
+	}
+	
+	@Test
+	public void test02AllFailuresReportedInOrder() throws Exception {
+		AtomicInteger ran = new AtomicInteger();
+		
+		Map<Integer, Exception> failures = WorkerPool.invokeAll(10, 3, false, (int index) -> {
+			ran.incrementAndGet();
+			if(index % 3 == 0) {
+				throw new IllegalStateException("failed " + index);
+			}
+		});
+		
+		assertEquals(10, ran.get());
+		assertEquals(Arrays.asList(0, 3, 6, 9), Arrays.asList(failures.keySet().toArray()));
+		assertEquals("failed 6", failures.get(6).getMessage());
+	}
+	
+	@Test
+	public void test03FailFast() throws Exception {
+		AtomicInteger ran = new AtomicInteger();
+		
+		Map<Integer, Exception> failures = WorkerPool.invokeAll(100, 1, true, (int index) -> {
+			ran.incrementAndGet();
+			if(index == 2) {
+				throw new IllegalStateException("failed " + index);
+			}
+		});
+		
+		assertEquals(3, ran.get());
+		assertEquals(1, failures.size());
+	}
+	
+	@Test
+	public void test04TaskFailureExceptionMessage() {
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		failures.put("user1", new IllegalStateException("Access Denied"));
+		failures.put("user2", new IllegalStateException("Not Found"));
+		TaskFailureException e = new TaskFailureException("Could not download all public keys", failures);
+		
+		assertEquals("Could not download all public keys (2 failed)\n"
+				+ "   user1: IllegalStateException: Access Denied\n"
+				+ "   user2: IllegalStateException: Not Found", e.getMessage());
+		assertEquals(2, e.getSuppressed().length);
+	}
+	
+	@Test
+	public void test05CallAgainstDeadline() throws Exception {
+		assertEquals("done", WorkerPool.call(() -> "done", Deadline.NONE));
+		
+		CountDownLatch interrupted = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		try {
+			WorkerPool.call(() -> {
+				try {
+					Thread.sleep(10000);
+				}
+				catch(InterruptedException e) {
+					interrupted.countDown();
+				}
+				return "late";
+			}, Deadline.fromRemainingMillis(100));
+			fail("Expected a TimeoutException");
+		}
+		catch(TimeoutException e) {
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+		assertTrue("Work should be cancelled", interrupted.await(5, TimeUnit.SECONDS));
+		
+		try {
+			WorkerPool.call(() -> { throw new IllegalStateException("broken"); }, Deadline.fromRemainingMillis(5000));
+			fail("Expected an ExecutionException");
+		}
+		catch(ExecutionException e) {
+			assertEquals("broken", e.getCause().getMessage());
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.bu.ist.apps.aws.task.s3.DiskObjectCache.DiskEntry;
+
+public class DiskObjectCacheTest {
+
+	@Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+	
+	@Test
+	public void testPutAndRead() throws Exception {
+		DiskObjectCache cache = new DiskObjectCache(tempFolder.getRoot().getAbsolutePath(), 100);
+		byte[] content = "some content".getBytes();
+		cache.put("mybucket/myfile", ByteBuffer.wrap(content), "etag1", "v1", 123L);
+		
+		DiskEntry entry = cache.get("mybucket/myfile");
+		assertEquals("etag1", entry.getEtag());
+		assertEquals("v1", entry.getVersionId());
+		assertEquals(123L, entry.getFetchTime());
+		assertArrayEquals(content, cache.read(entry));
+		
+		// Nothing temporary is left behind: just the object and its metadata.
+		assertEquals(2, tempFolder.getRoot().listFiles().length);
+		
+		// A file that has gone missing is treated as not cached.
+		assertTrue(cache.getFile(entry).delete());
+		assertNull(cache.read(entry));
+		assertNull(cache.get("mybucket/myfile"));
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception {
+		DiskObjectCache cache = new DiskObjectCache(tempFolder.getRoot().getAbsolutePath(), 100);
+		cache.put("a", ByteBuffer.wrap(new byte[40]), "etag-a", null, 0);
+		cache.put("b", ByteBuffer.wrap(new byte[40]), "etag-b", null, 0);
+		assertNotNull(cache.get("a"));
+		cache.put("c", ByteBuffer.wrap(new byte[40]), "etag-c", null, 0);
+		
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(80, cache.getTotalBytes());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(4, tempFolder.getRoot().listFiles().length);
+		
+		// Too big to cache at all.
+		cache.put("d", ByteBuffer.wrap(new byte[101]), "etag-d", null, 0);
+		assertNull(cache.get("d"));
+	}
+	
+	@Test
+	public void testReload() throws Exception {
+		String dir = tempFolder.getRoot().getAbsolutePath();
+		DiskObjectCache cache = new DiskObjectCache(dir, 100);
+		cache.put("a", ByteBuffer.wrap(new byte[40]), "etag-a", null, 0);
+		cache.put("b", ByteBuffer.wrap(new byte[40]), "etag-b", null, 0);
+		// Leftovers of an interrupted write.
+		new File(dir, "orphan.obj").createNewFile();
+		new File(dir, "partial.obj.tmp").createNewFile();
+		
+		// A new instance (ie: after redeployment to a warm container) finds what was cached before, and tidies up.
+		DiskObjectCache reloaded = new DiskObjectCache(dir, 100);
+		assertEquals("etag-a", reloaded.get("a").getEtag());
+		assertEquals("etag-b", reloaded.get("b").getEtag());
+		assertEquals(80, reloaded.getTotalBytes());
+		assertEquals(4, tempFolder.getRoot().listFiles().length);
+		
+		reloaded.clear();
+		assertEquals(0, tempFolder.getRoot().listFiles().length);
+	}
+	
+	@Test
+	public void testOwnerOnly() throws Exception {
+		assumeTrue(tempFolder.getRoot().toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+		File dir = new File(tempFolder.getRoot(), "cache");
+		DiskObjectCache cache = new DiskObjectCache(dir.getAbsolutePath(), 100);
+		cache.put("env", ByteBuffer.wrap("password=secret".getBytes()), "etag1", null, 0);
+		File spooled = tempFolder.newFile("spooled");
+		Files.write(spooled.toPath(), "key=secret".getBytes());
+		cache.put("key", spooled, "etag2", null, 0);
+		
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath())));
+		assertEquals(4, dir.listFiles().length);
+		for(File file : dir.listFiles()) {
+			assertEquals(file.getName(), "rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		}
+		assertArrayEquals("key=secret".getBytes(), cache.read(cache.get("key")));
+		
+		// A directory left open by an older version is closed up on the next write.
+		Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+		cache.put("other", ByteBuffer.wrap(new byte[10]), "etag3", null, 0);
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath())));
+	}
+	
+	@Test
+	public void testMaxBytesFromEnvironment() {
+		assertEquals(DiskObjectCache.DEFAULT_MAX_BYTES, DiskObjectCache.getMaxBytes(null));
+		assertEquals(DiskObjectCache.DEFAULT_MAX_BYTES, DiskObjectCache.getMaxBytes(" "));
+		assertEquals(DiskObjectCache.DEFAULT_MAX_BYTES, DiskObjectCache.getMaxBytes("lots"));
+		assertEquals(1024L, DiskObjectCache.getMaxBytes(" 1024 "));
+		assertEquals(0L, DiskObjectCache.getMaxBytes("0"));
+	}
+}
@@ -0,0 +1,360 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * A deterministic stand-in for S3 that holds its objects in memory, so that downloads can be tested and benchmarked
+ * without network access. Supports what this project asks of S3: whole and ranged gets, ETag constraints 
+ * (returning null for 304/412 as the real client does), object metadata, paged listing and puts.
+ * Every request can be delayed by a fixed latency to simulate the round trip to S3, and the next few requests can be
+ * made to stall or fail to simulate the occasional slow or throttled response.
+ * Any other operation throws UnsupportedOperationException.
+ *
+ * @author wrh
+ *
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+	private final Map<String, StoredObject> objects = new ConcurrentSkipListMap<String, StoredObject>();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong putCount = new AtomicLong();
+	private volatile long latencyMillis;
+	private final AtomicLong stalls = new AtomicLong();
+	private volatile long stallMillis;
+	private final AtomicLong failures = new AtomicLong();
+	private volatile int failureStatusCode;
+
+	private static class StoredObject {
+		private final byte[] content;
+		private final String etag;
+		private final String contentEncoding;
+		private StoredObject(byte[] content, String contentEncoding) {
+			this.content = content;
+			this.etag = md5Hex(content);
+			this.contentEncoding = contentEncoding;
+		}
+	}
+
+	/**
+	 * Object content that, like content streamed over a real http connection, cannot be read once it is closed.
+	 */
+	private static class ConnectionInputStream extends FilterInputStream {
+		private volatile boolean closed;
+		private ConnectionInputStream(byte[] content, int offset, int length) {
+			super(new ByteArrayInputStream(content, offset, length));
+		}
+		@Override
+		public int read() throws IOException {
+			checkOpen();
+			return super.read();
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			return super.read(b, off, len);
+		}
+		@Override
+		public long skip(long n) throws IOException {
+			checkOpen();
+			return super.skip(n);
+		}
+		@Override
+		public int available() throws IOException {
+			checkOpen();
+			return super.available();
+		}
+		@Override
+		public void close() {
+			closed = true;
+		}
+		private void checkOpen() throws IOException {
+			if(closed)
+				throw new IOException("Attempted read on closed stream.");
+		}
+	}
+
+	/**
+	 * Delay every request by the specified number of milliseconds.
+	 */
+	public InMemoryS3 setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+		return this;
+	}
+
+	public InMemoryS3 addObject(String bucketname, String key, byte[] content) {
+		return addObject(bucketname, key, content, null);
+	}
+
+	/**
+	 * Add an object that is served with the specified Content-Encoding (ie: "gzip").
+	 */
+	public InMemoryS3 addObject(String bucketname, String key, byte[] content, String contentEncoding) {
+		objects.put(bucketname + "/" + key, new StoredObject(content, contentEncoding));
+		return this;
+	}
+
+	public InMemoryS3 addObject(String bucketname, String key, String content) {
+		return addObject(bucketname, key, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Add an object of the specified size, filled with pseudo-random bytes that are the same for the same seed.
+	 */
+	public InMemoryS3 addObject(String bucketname, String key, int size, long seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return addObject(bucketname, key, content);
+	}
+
+	/**
+	 * Make this the client that S3FileParms (and so TaskRunner) hands out for the specified region and profile.
+	 * All other registered clients are removed.
+	 */
+	public InMemoryS3 register(String region, String profilename) {
+		String credentialSource = new S3FileParms().setRegion(region).setProfilename(profilename).getCredentialSource();
+		S3ClientRegistry.getInstance().clear();
+		S3ClientRegistry.getInstance().getClient(region, credentialSource, () -> this);
+		return this;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Delay each of the next count requests by an additional number of milliseconds.
+	 */
+	public InMemoryS3 stallNext(int count, long stallMillis) {
+		this.stallMillis = stallMillis;
+		this.stalls.set(count);
+		return this;
+	}
+
+	/**
+	 * Fail each of the next count requests with the specified http status code (ie: 503 Slow Down).
+	 */
+	public InMemoryS3 failNext(int count, int statusCode) {
+		this.failureStatusCode = statusCode;
+		this.failures.set(count);
+		return this;
+	}
+
+	@Override
+	public S3Object getObject(String bucketname, String key) {
+		return getObject(new GetObjectRequest(bucketname, key));
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest request) {
+		StoredObject stored = find(request.getBucketName(), request.getKey());
+		
+		// The real client returns null rather than throwing when an ETag constraint is not met.
+		if( ! request.getMatchingETagConstraints().isEmpty() && ! request.getMatchingETagConstraints().contains(stored.etag))
+			return null;
+		if(request.getNonmatchingETagConstraints().contains(stored.etag))
+			return null;
+
+		int start = 0;
+		int end = stored.content.length - 1;
+		ObjectMetadata metadata = getMetadata(stored);
+		if(request.getRange() != null) {
+			if(request.getRange()[0] >= stored.content.length) {
+				AmazonS3Exception e = new AmazonS3Exception("The requested range is not satisfiable");
+				e.setStatusCode(416);
+				throw e;
+			}
+			start = (int) request.getRange()[0];
+			end = (int) Math.min(request.getRange()[1], stored.content.length - 1);
+			metadata.setHeader(Headers.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + stored.content.length);
+		}
+		metadata.setContentLength(end - start + 1);
+
+		S3Object s3obj = new S3Object();
+		s3obj.setBucketName(request.getBucketName());
+		s3obj.setKey(request.getKey());
+		s3obj.setObjectMetadata(metadata);
+		s3obj.setObjectContent(new S3ObjectInputStream(new ConnectionInputStream(stored.content, start, end - start + 1), null));
+		return s3obj;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucketname, String key) {
+		return getMetadata(find(bucketname, key));
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+		return getObjectMetadata(request.getBucketName(), request.getKey());
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucketname, String key) {
+		delay();
+		return objects.containsKey(bucketname + "/" + key);
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		delay();
+		putCount.incrementAndGet();
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int read;
+			while((read = request.getInputStream().read(buf)) != -1) {
+				content.write(buf, 0, read);
+			}
+			String contentEncoding = request.getMetadata() == null ? null : request.getMetadata().getContentEncoding();
+			addObject(request.getBucketName(), request.getKey(), content.toByteArray(), contentEncoding);
+			PutObjectResult result = new PutObjectResult();
+			result.setETag(objects.get(request.getBucketName() + "/" + request.getKey()).etag);
+			return result;
+		}
+		catch(IOException e) {
+			throw new AmazonS3Exception("Could not read content to put: " + e.getMessage());
+		}
+	}
+
+	public long getPutCount() {
+		return putCount.get();
+	}
+
+	public byte[] getContent(String bucketname, String key) {
+		StoredObject object = objects.get(bucketname + "/" + key);
+		return object == null ? null : object.content;
+	}
+
+	/**
+	 * Lists keys in lexicographical order. The continuation token is simply the last key of the previous page.
+	 */
+	@Override
+	public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+		delay();
+		String bucketPrefix = request.getBucketName() + "/";
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		String after = request.getContinuationToken();
+		int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		result.setBucketName(request.getBucketName());
+		result.setPrefix(request.getPrefix());
+		List<String> commonPrefixes = new ArrayList<String>();
+		for(Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+			if( ! entry.getKey().startsWith(bucketPrefix))
+				continue;
+			String key = entry.getKey().substring(bucketPrefix.length());
+			if( ! key.startsWith(prefix) || (after != null && key.compareTo(after) <= 0))
+				continue;
+			if(request.getDelimiter() != null) {
+				int i = key.indexOf(request.getDelimiter(), prefix.length());
+				if(i != -1) {
+					String commonPrefix = key.substring(0, i + request.getDelimiter().length());
+					if( ! commonPrefixes.contains(commonPrefix))
+						commonPrefixes.add(commonPrefix);
+					continue;
+				}
+			}
+			if(result.getObjectSummaries().size() == maxKeys) {
+				result.setTruncated(true);
+				result.setNextContinuationToken(result.getObjectSummaries().get(maxKeys - 1).getKey());
+				break;
+			}
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(request.getBucketName());
+			summary.setKey(key);
+			summary.setSize(entry.getValue().content.length);
+			summary.setETag(entry.getValue().etag);
+			result.getObjectSummaries().add(summary);
+		}
+		result.setCommonPrefixes(commonPrefixes);
+		result.setKeyCount(result.getObjectSummaries().size());
+		return result;
+	}
+
+	@Override
+	public void shutdown() {
+		// Nothing to release.
+	}
+
+	private StoredObject find(String bucketname, String key) {
+		delay();
+		StoredObject stored = objects.get(bucketname + "/" + key);
+		if(stored == null) {
+			AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+			e.setStatusCode(404);
+			e.setErrorCode("NoSuchKey");
+			throw e;
+		}
+		return stored;
+	}
+
+	private ObjectMetadata getMetadata(StoredObject stored) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(stored.content.length);
+		metadata.setHeader(Headers.ETAG, stored.etag);
+		if(stored.contentEncoding != null) {
+			metadata.setContentEncoding(stored.contentEncoding);
+		}
+		return metadata;
+	}
+
+	private void delay() {
+		requestCount.incrementAndGet();
+		long millis = latencyMillis;
+		if(stalls.getAndDecrement() > 0) {
+			millis += stallMillis;
+		}
+		if(millis > 0) {
+			try {
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(failures.getAndDecrement() > 0) {
+			AmazonS3Exception e = new AmazonS3Exception("Simulated failure");
+			e.setStatusCode(failureStatusCode);
+			throw e;
+		}
+	}
+
+	private static String md5Hex(byte[] content) {
+		try {
+			StringBuilder s = new StringBuilder();
+			for(byte b : MessageDigest.getInstance("MD5").digest(content)) {
+				s.append(String.format("%02x", b));
+			}
+			return s.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -3,7 +3,9 @@ package edu.bu.ist.apps.aws.task.s3;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -47,6 +49,56 @@ public class S3FileParmsTest {
 		assertTrue(p.isComplete());
 		assertNotNull(p.getS3Client());
 		assertTrue(p.useProfile());
+		
+		// Building a client leaves the MD5 validation of the SDK on for every other client in the jvm.
+		assertNull(System.getProperty("com.amazonaws.services.s3.disableGetObjectMD5Validation"));
 	}
 
+	@Test
+	public void test2RangedDownload() {
+		S3FileParms p = new S3FileParms()
+				.setRegion("myregion")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setLogger((String msg) -> System.out.println(msg));
+		assertFalse(p.useRangedDownload());
+		assertEquals(0L, p.getPartSize());
+		assertEquals(S3FileParms.DEFAULT_PARALLELISM, p.getParallelism());
+		
+		p = p.setPartSize(8 * 1024 * 1024).setParallelism(8);
+		assertTrue(p.isComplete());
+		assertTrue(p.useRangedDownload());
+		assertEquals(8 * 1024 * 1024, p.getPartSize());
+		assertEquals(8, p.getParallelism());
+	}
+	
+	@Test
+	public void test3SharedClients() {
+		S3FileParms p1 = new S3FileParms()
+				.setRegion("us-east-1")
+				.setBucketname("mybucket")
+				.setFilename("myfile1")
+				.setProfilename("myprofilename")
+				.setLogger((String msg) -> System.out.println(msg));
+		S3FileParms p2 = new S3FileParms()
+				.setRegion("us-east-1")
+				.setBucketname("mybucket")
+				.setFilename("myfile2")
+				.setProfilename("myprofilename")
+				.setLogger((String msg) -> System.out.println(msg));
+		S3FileParms p3 = new S3FileParms()
+				.setRegion("us-east-1")
+				.setBucketname("mybucket")
+				.setFilename("myfile2")
+				.setAccessKey("myaccesskey")
+				.setSecretKey("mysecretkey")
+				.setLogger((String msg) -> System.out.println(msg));
+		
+		long reused = S3ClientRegistry.getInstance().getReusedCount();
+		assertSame(p1.getS3Client(), p2.getS3Client());
+		assertNotSame(p1.getS3Client(), p3.getS3Client());
+		assertSame(p3.getS3Client(), p3.getS3Client());
+		assertTrue(S3ClientRegistry.getInstance().getReusedCount() >= reused + 3);
+		assertNotNull(S3ClientRegistry.getInstance().getPoolStats());
+	}
 }
@@ -0,0 +1,117 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+@RunWith(MockitoJUnitRunner.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class S3FileStreamTest {
+
+	@Mock private S3FileParms parms;
+	@Mock private AmazonS3 s3Client;
+	@Mock private S3Object s3Object;
+	
+	private String filecontent = "line1\nline2\r\nline3";
+	
+	@Before
+	public void setup() {
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(filecontent.getBytes()), null));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object);
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		when(parms.getBucketname()).thenReturn("mybucket");
+		when(parms.getFilename()).thenReturn("myfilename");
+	}
+	
+	@Test
+	public void test01NothingRequestedUntilRead() throws Exception {
+		S3FileStream file = new S3FileStream(parms);
+		verify(s3Client, never()).getObject(any(GetObjectRequest.class));
+		file.getInputStream();
+		file.getInputStream();
+		verify(s3Client, times(1)).getObject(any(GetObjectRequest.class));
+		verify(parms, times(1)).logMessage("Streaming myfilename from S3 bucket mybucket...");
+		file.close();
+		verify(s3Object, times(1)).close();
+	}
+	
+	@Test
+	public void test02Lines() throws Exception {
+		try(S3FileStream file = new S3FileStream(parms)) {
+			Iterator<String> lines = file.lines();
+			assertTrue(lines.hasNext());
+			assertEquals("line1", lines.next());
+			assertEquals("line2", lines.next());
+			assertEquals("line3", lines.next());
+			assertFalse(lines.hasNext());
+		}
+	}
+	
+	@Test
+	public void test03CopyToPreservesContent() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(S3FileStream file = new S3FileStream(parms)) {
+			assertEquals(filecontent.length(), file.copyTo(out));
+		}
+		assertArrayEquals(filecontent.getBytes(), out.toByteArray());
+	}
+	
+	@Test(expected=IOException.class)
+	public void test04Incomplete() throws Exception {
+		when(parms.isComplete()).thenReturn(false);
+		try(S3FileStream file = new S3FileStream(parms)) {
+			file.getInputStream();
+		}
+		finally {
+			verify(parms, times(1)).logIssue();
+		}
+	}
+	
+	@Test
+	/**
+	 * Content that does not match its MD5 ETag should fail verification, even if the reader stopped short of the end.
+	 */
+	public void test05ChecksumMismatch() throws Exception {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setHeader("ETag", "0cc175b9c0f1b6a831c399e269772661"); // MD5 of "a"
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(parms.useChecksum()).thenReturn(true);
+		try(S3FileStream file = new S3FileStream(parms)) {
+			// Stop short of the end.
+			assertEquals('l', file.getInputStream().read());
+			file.verify();
+			fail("Expected a ChecksumMismatchException");
+		}
+		catch(ChecksumMismatchException e) {
+			assertEquals("0cc175b9c0f1b6a831c399e269772661", e.getExpected());
+			assertEquals("myfilename", e.getFilename());
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package edu.bu.ist.apps.aws.task.s3;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.times;
@@ -10,10 +14,22 @@ import static org.mockito.Mockito.when;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.FixMethodOrder;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 import org.mockito.Mock;
@@ -23,6 +39,7 @@ import org.mockito.stubbing.Answer;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 
@@ -37,6 +54,18 @@ public class S3FileTest {
 	@Mock private AmazonS3 s3Client;
 	@Mock private S3Object s3Object;
 	@Mock private S3ObjectInputStream s3InputStream;
+	@Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+	
+	@Before
+	public void setup() {
+		// Keep the disk tier of the cache out of the real /tmp area.
+		DiskObjectCache.getInstance().setDirectory(new File(tempFolder.getRoot(), "cache").getAbsolutePath());
+	}
+	
+	@After
+	public void teardown() {
+		DiskObjectCache.getInstance().setDirectory(DiskObjectCache.DEFAULT_DIRECTORY);
+	}
 	
 	@Test
 	/**
@@ -109,4 +138,484 @@ public class S3FileTest {
 		assertEquals("line2", lines.get(1));
 		assertEquals("line3", lines.get(2));
 	}
+
+	@Test
+	/**
+	 * An object whose metadata provides a Content-Length should be read in blocks into an array of exactly that size.
+	 */
+	public void test03BlockReadWithContentLength() throws Exception {
+		byte[] content = new byte[300 * 1024];
+		for(int i=0; i<content.length; i++) {
+			content[i] = (byte) ('a' + (i % 26));
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object);
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		
+		S3File file = new S3File(parms);
+		
+		assertEquals(content.length, file.getBytes().length);
+		assertArrayEquals(content, file.getBytes());
+	}
+	
+	@Test
+	/**
+	 * A Content-Length that understates the actual content should not cause any content to be lost.
+	 */
+	public void test04BlockReadWithShortContentLength() throws Exception {
+		byte[] content = "line1\nline2\nline3".getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(5);
+		
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object);
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		
+		S3File file = new S3File(parms);
+		
+		assertArrayEquals(content, file.getBytes());
+	}
+	
+	@Test
+	/**
+	 * An object larger than the part size should be downloaded as byte ranges and reassembled in order.
+	 */
+	public void test05RangedDownload() throws Exception {
+		final byte[] content = new byte[1000];
+		for(int i=0; i<content.length; i++) {
+			content[i] = (byte) (i % 251);
+		}
+		final List<String> etags = Collections.synchronizedList(new ArrayList<String>());
+		
+		doAnswer(new Answer<S3Object>() {
+			@Override
+			public S3Object answer(InvocationOnMock invocation) throws Throwable {
+				GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+				long start = request.getRange()[0];
+				long end = Math.min(request.getRange()[1], content.length - 1);
+				if( ! request.getMatchingETagConstraints().isEmpty()) {
+					etags.add(request.getMatchingETagConstraints().get(0));
+				}
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+				metadata.setHeader("ETag", "myetag");
+				S3Object part = new S3Object();
+				part.setObjectMetadata(metadata);
+				part.setObjectContent(new S3ObjectInputStream(
+						new ByteArrayInputStream(content, (int) start, (int) (end - start + 1)), null));
+				return part;
+			}
+		}).when(s3Client).getObject(any(GetObjectRequest.class));
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		when(parms.useRangedDownload()).thenReturn(true);
+		when(parms.getPartSize()).thenReturn(64L);
+		when(parms.getParallelism()).thenReturn(3);
+		
+		S3File file = new S3File(parms);
+		
+		assertArrayEquals(content, file.getBytes());
+		verify(s3Client, times(16)).getObject(any(GetObjectRequest.class));
+		assertEquals(15, etags.size());
+		assertTrue(etags.stream().allMatch((String etag) -> "myetag".equals(etag)));
+	}
+	
+	@Test
+	/**
+	 * An object over the spool threshold should be spooled to a file and read back through a mapped buffer.
+	 * Saving it should reproduce the original bytes exactly, including line endings.
+	 */
+	public void test06SpoolAndSaveAs() throws Exception {
+		byte[] content = "line1\r\nline2\nline3\r\n".getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object);
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		when(parms.useSpool(content.length)).thenReturn(true);
+		when(parms.getSpoolDirectory()).thenReturn(tempFolder.getRoot().getAbsolutePath());
+		
+		File saved = new File(tempFolder.getRoot(), "saved.txt");
+		File spoolFile = null;
+		try(S3File file = new S3File(parms)) {
+			assertTrue(file.isSpooled());
+			spoolFile = tempFolder.getRoot().listFiles((File f) -> f.getName().endsWith(".spool"))[0];
+			assertEquals(content.length, file.getSize());
+			assertArrayEquals(content, file.getBytes());
+			assertEquals(3, file.getLines().size());
+			
+			file.saveAs(saved);
+		}
+		
+		assertArrayEquals(content, Files.readAllBytes(saved.toPath()));
+		assertFalse(spoolFile.exists());
+	}
+	
+	@Test
+	/**
+	 * A second download of an unchanged object should send the cached ETag and reuse the cached bytes on a 304 response.
+	 */
+	public void test07ConditionalGetFromCache() throws Exception {
+		byte[] content = "line1\nline2".getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setHeader("ETag", "etag1");
+		final List<GetObjectRequest> requests = new ArrayList<GetObjectRequest>();
+		
+		S3ObjectCache.getInstance().clear();
+		long hits = S3ObjectCache.getInstance().getHits();
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+		doAnswer(new Answer<S3Object>() {
+			@Override
+			public S3Object answer(InvocationOnMock invocation) throws Throwable {
+				GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+				requests.add(request);
+				// The AmazonS3 client returns null when an ETag constraint is not met (ie: 304 Not Modified)
+				return request.getNonmatchingETagConstraints().contains("etag1") ? null : s3Object;
+			}
+		}).when(s3Client).getObject(any(GetObjectRequest.class));
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		when(parms.useCache()).thenReturn(true);
+		when(parms.getBucketname()).thenReturn("mybucket");
+		when(parms.getFilename()).thenReturn("myfilename");
+		
+		S3File file1 = new S3File(parms);
+		S3File file2 = new S3File(parms);
+		
+		assertEquals(2, requests.size());
+		assertTrue(requests.get(0).getNonmatchingETagConstraints().isEmpty());
+		assertEquals("etag1", requests.get(1).getNonmatchingETagConstraints().get(0));
+		assertArrayEquals(content, file1.getBytes());
+		assertArrayEquals(content, file2.getBytes());
+		assertEquals(hits + 1, S3ObjectCache.getInstance().getHits());
+		S3ObjectCache.getInstance().clear();
+	}
+	
+	@Test
+	/**
+	 * Ranged and whole downloads from the in-memory stand-in for S3 should produce the same content, and a repeated
+	 * whole download should be revalidated against the cache rather than downloaded again.
+	 */
+	public void test08InMemoryS3() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3()
+				.addObject("mybucket", "myfile", 1000, 42)
+				.register("us-east-1", "inmemory");
+		S3FileParms realParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setLogger((String msg) -> { });
+		
+		S3ObjectCache.getInstance().clear();
+		try {
+			byte[] whole = new S3File(realParms).getBytes();
+			assertEquals(1000, whole.length);
+			assertEquals(1, s3.getRequestCount());
+			
+			assertArrayEquals(whole, new S3File(realParms.setPartSize(300)).getBytes());
+			assertEquals(5, s3.getRequestCount());
+			
+			long hits = S3ObjectCache.getInstance().getHits();
+			assertArrayEquals(whole, new S3File(realParms.setPartSize(0)).getBytes());
+			assertEquals(hits + 1, S3ObjectCache.getInstance().getHits());
+		}
+		finally {
+			S3ObjectCache.getInstance().clear();
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+	
+	@Test
+	/**
+	 * Compressed objects should be decompressed whether identified by extension or Content-Encoding, 
+	 * and whether downloaded whole, in ranges or streamed. They should be left as is if decompression is turned off.
+	 */
+	public void test09CompressedObject() throws Exception {
+		byte[] content = new byte[20000];
+		for(int i=0; i<content.length; i++) {
+			content[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + (i % 26));
+		}
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		try(GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+			out.write(content);
+		}
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		try(DeflaterOutputStream out = new DeflaterOutputStream(deflated)) {
+			out.write(content);
+		}
+		new InMemoryS3()
+			.addObject("mybucket", "myfile.gz", gzipped.toByteArray())
+			.addObject("mybucket", "myfile", deflated.toByteArray(), "deflate")
+			.register("us-east-1", "inmemory");
+		S3FileParms gzipParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile.gz")
+				.setUseCache(false)
+				.setLogger((String msg) -> { });
+		S3FileParms deflateParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setUseCache(false)
+				.setPartSize(100)
+				.setLogger((String msg) -> { });
+		
+		try {
+			assertArrayEquals(content, new S3File(gzipParms).getBytes());
+			assertArrayEquals(content, new S3File(deflateParms).getBytes());
+			try(S3FileStream stream = new S3FileStream(gzipParms)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				stream.copyTo(out);
+				assertArrayEquals(content, out.toByteArray());
+				assertEquals(-1, stream.getContentLength());
+			}
+			assertArrayEquals(gzipped.toByteArray(), new S3File(gzipParms.setDecompress(false)).getBytes());
+		}
+		finally {
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+	
+	@Test
+	/**
+	 * An object no longer in memory should be revalidated against, and served from, the disk cache.
+	 * Objects too large for memory should be served mapped from their cache file.
+	 */
+	public void test10DiskCache() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3()
+				.addObject("mybucket", "small", 1000, 1)
+				.addObject("mybucket", "large", 5000, 2)
+				.register("us-east-1", "inmemory");
+		S3FileParms smallParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("small")
+				.setSpoolThreshold(2000)
+				.setSpoolDirectory(tempFolder.getRoot().getAbsolutePath())
+				.setLogger((String msg) -> { });
+		S3FileParms largeParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("large")
+				.setSpoolThreshold(2000)
+				.setSpoolDirectory(tempFolder.getRoot().getAbsolutePath())
+				.setLogger((String msg) -> { });
+		DiskObjectCache disk = DiskObjectCache.getInstance();
+		
+		S3ObjectCache.getInstance().clear();
+		try {
+			byte[] small = new S3File(smallParms).getBytes();
+			byte[] large;
+			try(S3File file = new S3File(largeParms)) {
+				assertTrue(file.isSpooled());
+				large = file.getBytes();
+			}
+			assertEquals(2, disk.getEntryCount());
+			assertEquals(6000, disk.getTotalBytes());
+			
+			// As if the heap cache had been lost.
+			S3ObjectCache.getInstance().clear();
+			long hits = disk.getHits();
+			assertArrayEquals(small, new S3File(smallParms).getBytes());
+			try(S3File file = new S3File(largeParms)) {
+				assertFalse(file.isSpooled());
+				assertArrayEquals(large, file.getBytes());
+			}
+			assertEquals(hits + 2, disk.getHits());
+			assertEquals(4, s3.getRequestCount());
+			
+			// The small object was promoted back to memory.
+			assertEquals(1, S3ObjectCache.getInstance().getEntryCount());
+		}
+		finally {
+			S3ObjectCache.getInstance().clear();
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+	
+	@Test
+	/**
+	 * The content of a single part object should be checked against its ETag as it is downloaded.
+	 * A multipart or SSE-KMS ETag is not an MD5 digest, so such objects cannot be checked.
+	 */
+	public void test11Checksum() throws Exception {
+		byte[] content = "a".getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setHeader("ETag", "\"0cc175b9c0f1b6a831c399e269772661\""); // MD5 of "a"
+		
+		when(s3Object.getObjectMetadata()).thenReturn(metadata);
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object);
+		when(parms.getS3Client()).thenReturn(s3Client);
+		when(parms.isComplete()).thenReturn(true);
+		when(parms.useChecksum()).thenReturn(true);
+		when(parms.getFilename()).thenReturn("myfilename");
+		assertArrayEquals(content, new S3File(parms).getBytes());
+		
+		when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream("b".getBytes()), null));
+		try {
+			new S3File(parms);
+			fail("Expected a ChecksumMismatchException");
+		}
+		catch(ChecksumMismatchException e) {
+			assertEquals("92eb5ffee6ae2fec3ad71c777531578f", e.getActual()); // MD5 of "b"
+		}
+		
+		metadata.setHeader("ETag", "0cc175b9c0f1b6a831c399e269772661-2");
+		assertNull(ChecksumInputStream.getVerifiableEtag(metadata));
+		metadata.setHeader("ETag", "0cc175b9c0f1b6a831c399e269772661");
+		metadata.setSSEAlgorithm("aws:kms");
+		assertNull(ChecksumInputStream.getVerifiableEtag(metadata));
+	}
+	
+	@Test
+	/**
+	 * A listener should receive the content of a ranged download in order, in more than one chunk, whether the
+	 * content is held on the heap or spooled.
+	 */
+	public void test12ContentListener() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3()
+				.addObject("mybucket", "myfile", 10000, 7)
+				.register("us-east-1", "inmemory");
+		S3FileParms realParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setPartSize(300)
+				.setParallelism(4)
+				.setUseCache(false)
+				.setSpoolDirectory(tempFolder.getRoot().getAbsolutePath())
+				.setLogger((String msg) -> { });
+		try {
+			for(long spoolThreshold : new long[] { S3FileParms.DEFAULT_SPOOL_THRESHOLD, 1000 }) {
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				List<Integer> chunks = new ArrayList<Integer>();
+				try(S3File file = new S3File(realParms.setSpoolThreshold(spoolThreshold), (ByteBuffer chunk) -> {
+					chunks.add(chunk.remaining());
+					while(chunk.hasRemaining()) {
+						received.write(chunk.get());
+					}
+				})) {
+					// Nothing is downloaded until asked for.
+					assertTrue(chunks.isEmpty());
+					file.load();
+					assertEquals(spoolThreshold == 1000, file.isSpooled());
+					assertArrayEquals(file.getBytes(), received.toByteArray());
+					assertTrue(chunks.size() > 1);
+				}
+			}
+		}
+		finally {
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+	
+	@Test
+	/**
+	 * A cached copy of a version of an object should only be served without asking S3 to a caller with the same 
+	 * region and credentials it was downloaded with, and should not be changed by changes to the bytes handed out.
+	 */
+	public void test13CacheKeyedByCredentials() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3()
+				.addObject("mybucket", "myfile", 1000, 42)
+				.register("us-east-1", "inmemory");
+		S3FileParms otherParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("other")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setVersionId("v1")
+				.setLogger((String msg) -> { });
+		S3ClientRegistry.getInstance().getClient("us-east-1", otherParms.getCredentialSource(), () -> s3);
+		S3FileParms realParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setVersionId("v1")
+				.setLogger((String msg) -> { });
+		
+		S3ObjectCache.getInstance().clear();
+		try {
+			byte[] first = new S3File(realParms).getBytes();
+			assertEquals(1, s3.getRequestCount());
+			byte[] expected = first.clone();
+			first[0]++;
+			
+			// The same caller gets the version from the cache, unchanged.
+			assertArrayEquals(expected, new S3File(realParms).getBytes());
+			assertEquals(1, s3.getRequestCount());
+			
+			// Another caller must ask S3 for it.
+			assertArrayEquals(expected, new S3File(otherParms).getBytes());
+			assertEquals(2, s3.getRequestCount());
+		}
+		finally {
+			S3ObjectCache.getInstance().clear();
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
+	
+	@Test
+	/**
+	 * A cached compressed object should only be served to a caller wanting it in the same form it was cached in, and
+	 * content that inflates beyond the spool threshold should be spooled however small it was compressed.
+	 */
+	public void test14CompressedObjectCacheAndSpool() throws Exception {
+		byte[] content = new byte[100000];
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		try(GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+			out.write(content);
+		}
+		InMemoryS3 s3 = new InMemoryS3()
+			.addObject("mybucket", "myfile.gz", gzipped.toByteArray())
+			.register("us-east-1", "inmemory");
+		S3FileParms gzipParms = new S3FileParms()
+				.setRegion("us-east-1")
+				.setProfilename("inmemory")
+				.setBucketname("mybucket")
+				.setFilename("myfile.gz")
+				.setSpoolDirectory(tempFolder.getRoot().getAbsolutePath())
+				.setLogger((String msg) -> { });
+		
+		S3ObjectCache.getInstance().clear();
+		try {
+			assertArrayEquals(content, new S3File(gzipParms).getBytes());
+			// Revalidated against the cache, but the cached copy is decompressed, so not what this caller wants.
+			assertArrayEquals(gzipped.toByteArray(), new S3File(gzipParms.setDecompress(false)).getBytes());
+			assertArrayEquals(content, new S3File(gzipParms.setDecompress(true)).getBytes());
+			assertArrayEquals(gzipped.toByteArray(), new S3File(gzipParms.setDecompress(false)).getBytes());
+			assertEquals(4, s3.getRequestCount());
+			
+			assertTrue(gzipped.size() < 1000);
+			try(S3File file = new S3File(gzipParms.setDecompress(true).setUseCache(false).setSpoolThreshold(1000))) {
+				assertTrue(file.isSpooled());
+				assertArrayEquals(content, file.getBytes());
+			}
+		}
+		finally {
+			S3ObjectCache.getInstance().clear();
+			S3ClientRegistry.getInstance().clear();
+		}
+	}
 }
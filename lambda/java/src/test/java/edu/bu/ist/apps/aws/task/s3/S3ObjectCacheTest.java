@@ -0,0 +1,70 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import edu.bu.ist.apps.aws.task.s3.S3ObjectCache.CachedObject;
+
+public class S3ObjectCacheTest {
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		S3ObjectCache cache = new S3ObjectCache(100);
+		cache.put("a", new CachedObject(new byte[40], "etag-a", null, 0));
+		cache.put("b", new CachedObject(new byte[40], "etag-b", null, 0));
+		assertEquals(80, cache.getTotalBytes());
+		
+		// Touch "a" so that "b" becomes the least recently used.
+		assertNotNull(cache.get("a"));
+		cache.put("c", new CachedObject(new byte[40], "etag-c", null, 0));
+		
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(80, cache.getTotalBytes());
+		assertEquals(1, cache.getEvictions());
+		
+		// Too big to cache at all.
+		cache.put("d", new CachedObject(new byte[101], "etag-d", null, 0));
+		assertNull(cache.get("d"));
+		assertEquals(2, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testReplaceAndRemove() {
+		S3ObjectCache cache = new S3ObjectCache(100);
+		cache.put("a", new CachedObject(new byte[40], "etag-a1", null, 0));
+		cache.put("a", new CachedObject(new byte[10], "etag-a2", null, 0));
+		assertEquals(10, cache.getTotalBytes());
+		assertEquals("etag-a2", cache.get("a").getEtag());
+		cache.remove("a");
+		assertEquals(0, cache.getTotalBytes());
+		assertEquals(0, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testCacheKey() {
+		assertEquals("mybucket/my/file", S3ObjectCache.getCacheKey("mybucket", "my/file", null));
+		assertEquals("mybucket/my/file?versionId=v1", S3ObjectCache.getCacheKey("mybucket", "my/file", "v1"));
+	}
+	
+	@Test
+	public void testCacheKeyQualifiedByCredentials() {
+		S3FileParms parms = new S3FileParms().setRegion("us-east-1").setBucketname("mybucket").setFilename("my/file");
+		String defaultKey = S3ObjectCache.getCacheKey(parms);
+		assertEquals("us-east-1|default|mybucket/my/file", defaultKey);
+		assertNotEquals(defaultKey, S3ObjectCache.getCacheKey(parms.setRegion("us-west-2")));
+		
+		String profileKey = S3ObjectCache.getCacheKey(parms.setProfilename("other"));
+		assertEquals("us-west-2|profile:other|mybucket/my/file", profileKey);
+		
+		String staticKey = S3ObjectCache.getCacheKey(parms.setProfilename(null).setAccessKey("AKIAEXAMPLE").setSecretKey("my-secret-key"));
+		assertNotEquals(profileKey, staticKey);
+		assertFalse(staticKey.contains("my-secret-key"));
+	}
+}
@@ -0,0 +1,64 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import edu.bu.ist.apps.aws.task.WorkerPool;
+
+public class S3PrefixListingTest {
+
+	@Test
+	public void testPaging() throws Exception {
+		AmazonS3 s3 = mock(AmazonS3.class);
+		when(s3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(new Answer<ListObjectsV2Result>() {
+			@Override
+			public ListObjectsV2Result answer(InvocationOnMock invocation) throws Throwable {
+				ListObjectsV2Request request = (ListObjectsV2Request) invocation.getArguments()[0];
+				assertEquals("ecs/ssh-keys/", request.getPrefix());
+				assertEquals(2, request.getMaxKeys().intValue());
+				if(request.getContinuationToken() == null) {
+					return page("token1", "ecs/ssh-keys/", "ecs/ssh-keys/rsa-key-abc.pub");
+				}
+				assertEquals("token1", request.getContinuationToken());
+				return page(null, "ecs/ssh-keys/rsa-key-def.pub");
+			}
+		});
+		
+		S3PrefixListing listing = new S3PrefixListing(s3, "mybucket", "ecs/ssh-keys/", 2, WorkerPool.getExecutor());
+		assertTrue(listing.hasNextPage());
+		// The "folder" object itself is left out.
+		assertEquals(Arrays.asList("ecs/ssh-keys/rsa-key-abc.pub"), listing.nextPage());
+		assertTrue(listing.hasNextPage());
+		List<String> page2 = listing.nextPage();
+		assertEquals(Arrays.asList("ecs/ssh-keys/rsa-key-def.pub"), page2);
+		assertFalse(listing.hasNextPage());
+	}
+	
+	private static ListObjectsV2Result page(String nextToken, String...keys) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		for(String key : keys) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey(key);
+			result.getObjectSummaries().add(summary);
+		}
+		result.setTruncated(nextToken != null);
+		result.setNextContinuationToken(nextToken);
+		return result;
+	}
+}
@@ -0,0 +1,165 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+
+import edu.bu.ist.apps.aws.task.Deadline;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class S3RequesterTest {
+
+	private static final byte[] CONTENT = "KEY1=value1\nKEY2=value2".getBytes(StandardCharsets.UTF_8);
+
+	private S3FileParms getParms() {
+		return new S3FileParms()
+				.setBucketname("mybucket")
+				.setFilename("myfile")
+				.setTailLatencyMode(true)
+				.setHedgeAfterMillis(50)
+				.setLogger((String msg) -> { });
+	}
+
+	private byte[] getContent(S3Object s3obj) throws Exception {
+		try {
+			return IOUtils.toByteArray(s3obj.getObjectContent());
+		}
+		finally {
+			s3obj.close();
+		}
+	}
+
+	@Test
+	/**
+	 * A request that stalls should be hedged, and the hedge, which returns first, used.
+	 */
+	public void test01Hedge() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().addObject("mybucket", "myfile", CONTENT).stallNext(1, 5000);
+		long hedges = S3Requester.getHedges();
+		long wins = S3Requester.getHedgeWins();
+		long start = System.currentTimeMillis();
+		
+		S3Object s3obj = new S3Requester(getParms(), s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+		
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertArrayEquals(CONTENT, getContent(s3obj));
+		assertEquals(2, s3.getRequestCount());
+		assertEquals(hedges + 1, S3Requester.getHedges());
+		assertEquals(wins + 1, S3Requester.getHedgeWins());
+	}
+
+	@Test
+	/**
+	 * Throttled or failed requests should be retried, but not requests that can never succeed.
+	 */
+	public void test02Retry() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().addObject("mybucket", "myfile", CONTENT).failNext(2, 503);
+		long retries = S3Requester.getRetries();
+		
+		S3Object s3obj = new S3Requester(getParms(), s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+		
+		assertArrayEquals(CONTENT, getContent(s3obj));
+		assertEquals(3, s3.getRequestCount());
+		assertEquals(retries + 2, S3Requester.getRetries());
+		
+		// Not found is not retried.
+		retries = S3Requester.getRetries();
+		try {
+			new S3Requester(getParms(), s3).getObject(new GetObjectRequest("mybucket", "nosuchfile"));
+			fail("Expected AmazonS3Exception");
+		}
+		catch(AmazonS3Exception e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(retries, S3Requester.getRetries());
+		
+		// Nor is a request that fails more times than allowed.
+		s3.failNext(3, 500);
+		try {
+			new S3Requester(getParms().setMaxRetries(1), s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+			fail("Expected AmazonS3Exception");
+		}
+		catch(AmazonS3Exception e) {
+			assertEquals(500, e.getStatusCode());
+		}
+		assertEquals(retries + 1, S3Requester.getRetries());
+		s3.failNext(0, 0);
+	}
+
+	@Test
+	/**
+	 * Waiting on a request should be given up once the deadline passes.
+	 */
+	public void test03Deadline() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().addObject("mybucket", "myfile", CONTENT).stallNext(2, 5000);
+		S3FileParms parms = getParms()
+				.setHedgeAfterMillis(1000)
+				.setDeadline(Deadline.fromRemainingMillis(200));
+		long start = System.currentTimeMillis();
+		try {
+			new S3Requester(parms, s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+			fail("Expected SdkClientException");
+		}
+		catch(SdkClientException e) {
+			assertTrue(e.getMessage().contains("out of time"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	/**
+	 * Content still being read when the deadline passes should be aborted, whether or not requests are hedged.
+	 */
+	public void test04AbortedAtDeadline() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().addObject("mybucket", "myfile", CONTENT);
+		for(boolean tailLatencyMode : new boolean[] { false, true }) {
+			S3FileParms parms = getParms()
+					.setTailLatencyMode(tailLatencyMode)
+					.setDeadline(Deadline.fromRemainingMillis(200));
+			
+			// Read in time.
+			S3Object s3obj = new S3Requester(parms, s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+			assertArrayEquals(CONTENT, getContent(s3obj));
+			
+			// Still open at the deadline.
+			s3obj = new S3Requester(parms, s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+			InputStream content = s3obj.getObjectContent();
+			assertEquals(CONTENT[0], content.read());
+			Thread.sleep(400);
+			try {
+				content.read();
+				fail("Expected IOException");
+			}
+			catch(IOException e) {
+				assertTrue(e.getMessage().contains("out of time"));
+			}
+			s3obj.close();
+			
+			// Not even sent once the deadline has passed.
+			long requests = s3.getRequestCount();
+			try {
+				new S3Requester(parms.setMaxRetries(0), s3).getObject(new GetObjectRequest("mybucket", "myfile"));
+				fail("Expected SdkClientException");
+			}
+			catch(SdkClientException e) {
+				assertTrue(e.getMessage().contains("out of time"));
+			}
+			assertEquals(requests, s3.getRequestCount());
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package edu.bu.ist.apps.aws.task.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.bu.ist.apps.aws.lambda.Logger;
+import edu.bu.ist.apps.aws.task.ResultStore;
+import edu.bu.ist.apps.aws.task.TaskRunner;
+
+public class S3ResultStoreTest {
+
+	private static final String REGION = "us-east-1";
+	private static final String PROFILE = "result-store-test";
+	private Logger logger = (String msg) -> { System.out.println(msg); };
+
+	@After
+	public void teardown() {
+		S3ClientRegistry.getInstance().clear();
+	}
+
+	@Test
+	public void testStoreOnce() throws Exception {
+		InMemoryS3 s3 = new InMemoryS3().register(REGION, PROFILE);
+		Map<String, Object> resourceProperties = new LinkedHashMap<String, Object>();
+		resourceProperties.put("region", REGION);
+		resourceProperties.put("profile", PROFILE);
+		assertNull(new TaskRunner().getResultStore(resourceProperties, logger));
+		
+		resourceProperties.put("resultbucket", "my-results");
+		ResultStore store = new TaskRunner().getResultStore(resourceProperties, logger);
+		assertTrue(store instanceof S3ResultStore);
+		
+		// The same values in another order make the same json, so are only written once.
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("wrh", "ssh-rsa AAAA");
+		values.put("mukadder", "ssh-rsa BBBB");
+		Map<String, Object> reordered = new LinkedHashMap<String, Object>();
+		reordered.put("mukadder", "ssh-rsa BBBB");
+		reordered.put("wrh", "ssh-rsa AAAA");
+		String json = ResultStore.toJson(values);
+		assertEquals(json, ResultStore.toJson(reordered));
+		
+		Map<String, Object> pointer = store.store(json);
+		String digest = String.valueOf(pointer.get(ResultStore.DIGEST));
+		String key = S3ResultStore.DEFAULT_PREFIX + digest + ".json";
+		assertEquals("s3://my-results/" + key, pointer.get(ResultStore.LOCATION));
+		assertEquals(String.valueOf(json.length()), pointer.get(ResultStore.SIZE));
+		assertEquals(json, new String(s3.getContent("my-results", key), StandardCharsets.UTF_8));
+		assertEquals(1, s3.getPutCount());
+		
+		assertEquals(pointer, store.store(ResultStore.toJson(reordered)));
+		assertEquals(1, s3.getPutCount());
+		
+		// Anything different is written under a name of its own.
+		values.put("dhaywood", "ssh-rsa CCCC");
+		Map<String, Object> other = store.store(ResultStore.toJson(values));
+		assertNotEquals(pointer.get(ResultStore.LOCATION), other.get(ResultStore.LOCATION));
+		assertEquals(2, s3.getPutCount());
+	}
+}